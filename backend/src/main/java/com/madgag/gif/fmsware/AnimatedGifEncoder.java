@@ -40,12 +40,9 @@ public class AnimatedGifEncoder {
 	protected int delay = 0; // frame delay (hundredths)
 	protected boolean started = false; // ready to output frames
 	protected OutputStream out;
-	protected BufferedImage image; // current frame
-	protected byte[] pixels; // BGR byte array from frame
-	protected byte[] indexedPixels; // converted frame indexed to palette
-	protected int colorDepth; // number of bit planes
-	protected byte[] colorTab; // RGB palette
-	protected boolean[] usedEntry = new boolean[256]; // active palette entries
+	protected int colorDepth = 8; // number of bit planes
+	protected byte[] colorTab; // RGB palette of the last written frame
+	protected boolean[] usedEntry = new boolean[256]; // active palette entries of the last written frame
 	protected int palSize = 7; // color table size (bits-1)
 	protected int dispose = -1; // disposal code (-1 = use default)
 	protected boolean closeStream = false; // close stream when finished
@@ -53,6 +50,27 @@ public class AnimatedGifEncoder {
 	protected boolean sizeSet = false; // if false, get size from first frame
 	protected int sample = 10; // default sample interval for quantizer
 
+	/**
+	 * A frame which has been quantized and compressed, ready to be written.
+	 * Frames are prepared independently of each other, so that they may be
+	 * prepared concurrently and then written in order with
+	 * <code>addFrame(Frame)</code>.
+	 */
+	public static class Frame {
+		private final int width;
+		private final int height;
+		private final byte[] colorTab; // RGB palette
+		private final boolean[] usedEntry = new boolean[256]; // active palette entries
+		private int transIndex; // transparent index in color table
+		private byte[] indexedPixels; // frame indexed to palette, dropped once compressed
+		private byte[] data; // LZW compressed pixels, with the sub-block framing
+
+		private Frame(int width, int height, byte[] colorTab) {
+			this.width = width;
+			this.height = height;
+			this.colorTab = colorTab;
+		}
+	}
 
 	/**
 	 * Sets the delay time between each frame, or changes it
@@ -155,15 +173,55 @@ public class AnimatedGifEncoder {
 		if ((im == null) || !started) {
 			return false;
 		}
+		if (!sizeSet) {
+			// use first frame's size
+			setSize(im.getWidth(), im.getHeight());
+		}
+		try {
+			return addFrame(prepareFrame(im));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Converts, quantizes and compresses a frame without writing it.
+	 * This method only reads the settings of the encoder, so several
+	 * frames may be prepared concurrently as long as the settings are not
+	 * changed meanwhile.  The size of the GIF must be known, either from
+	 * <code>setSize</code> or from a frame already added.
+	 *
+	 * @param im BufferedImage containing the frame.
+	 * @return the prepared frame.
+	 */
+	public Frame prepareFrame(BufferedImage im) throws IOException {
+		if (!sizeSet) {
+			throw new IllegalStateException("GIF size is not set");
+		}
+		Frame frame = analyzePixels(getImagePixels(im)); // build color table & map pixels
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		new com.madgag.gif.fmsware.LZWEncoder(width, height, frame.indexedPixels, colorDepth).encode(data);
+		frame.data = data.toByteArray();
+		frame.indexedPixels = null;
+		return frame;
+	}
+
+	/**
+	 * Writes a frame returned by <code>prepareFrame</code>, with the
+	 * current delay.  Frames must be written in display order.
+	 *
+	 * @param frame prepared frame to write.
+	 * @return true if successful.
+	 */
+	public boolean addFrame(Frame frame) {
+		if ((frame == null) || !started || frame.width != width || frame.height != height) {
+			return false;
+		}
 		boolean ok = true;
 		try {
-			if (!sizeSet) {
-				// use first frame's size
-				setSize(im.getWidth(), im.getHeight());
-			}
-			image = im;
-			getImagePixels(); // convert to correct format if necessary
-			analyzePixels(); // build color table & map pixels
+			colorTab = frame.colorTab;
+			usedEntry = frame.usedEntry;
+			transIndex = frame.transIndex;
 			if (firstFrame) {
 				writeLSD(); // logical screen descriptior
 				writePalette(); // global color table
@@ -177,7 +235,7 @@ public class AnimatedGifEncoder {
 			if (!firstFrame) {
 				writePalette(); // local color table
 			}
-			writePixels(); // encode and write pixel data
+			out.write(frame.data, 0, frame.data.length); // write pixel data
 			firstFrame = false;
 		} catch (IOException e) {
 			ok = false;
@@ -208,9 +266,6 @@ public class AnimatedGifEncoder {
 		// reset for subsequent use
 		transIndex = 0;
 		out = null;
-		image = null;
-		pixels = null;
-		indexedPixels = null;
 		colorTab = null;
 		closeStream = false;
 		firstFrame = true;
@@ -307,19 +362,20 @@ public class AnimatedGifEncoder {
 	/**
 	 * Analyzes image colors and creates color map.
 	 */
-	protected void analyzePixels() {
+	protected Frame analyzePixels(byte[] pixels) {
 		int len = pixels.length;
 		int nPix = len / 3;
-		indexedPixels = new byte[nPix];
+		byte[] indexedPixels = new byte[nPix];
 		com.madgag.gif.fmsware.NeuQuant nq = new com.madgag.gif.fmsware.NeuQuant(pixels, len, sample);
 		// initialize quantizer
-		colorTab = nq.process(); // create reduced palette
+		Frame frame = new Frame(width, height, nq.process()); // create reduced palette
+		byte[] colorTab = frame.colorTab;
+		boolean[] usedEntry = frame.usedEntry;
 		// convert map from BGR to RGB
 		for (int i = 0; i < colorTab.length; i += 3) {
 			byte temp = colorTab[i];
 			colorTab[i] = colorTab[i + 2];
 			colorTab[i + 2] = temp;
-			usedEntry[i / 3] = false;
 		}
 		// map image pixels to new palette
 		int k = 0;
@@ -331,20 +387,20 @@ public class AnimatedGifEncoder {
 			usedEntry[index] = true;
 			indexedPixels[i] = (byte) index;
 		}
-		pixels = null;
-		colorDepth = 8;
-		palSize = 7;
+		frame.indexedPixels = indexedPixels;
 		// get closest match to transparent color if specified
 		if (transparent != null) {
-			transIndex = transparentExactMatch ? findExact(transparent) : findClosest(transparent);
+			frame.transIndex = transparentExactMatch ? findExact(frame.colorTab, frame.usedEntry, transparent)
+				: findClosest(frame.colorTab, frame.usedEntry, transparent);
 		}
+		return frame;
 	}
 	
 	/**
 	 * Returns index of palette color closest to c
 	 *
 	 */
-	protected int findClosest(Color c) {
+	protected int findClosest(byte[] colorTab, boolean[] usedEntry, Color c) {
 		if (colorTab == null) return -1;
 		int r = c.getRed();
 		int g = c.getGreen();
@@ -368,18 +424,18 @@ public class AnimatedGifEncoder {
 	}
 	
     /*
-     * Returns true if the exact matching color is existing, and used in the color palette, otherwise, return false. This method has to be called before
+     * Returns true if the exact matching color is existing, and used in the color palette of the last written frame, otherwise, return false. This method has to be called before
      * finishing the image, because after finished the palette is destroyed and it will always return false.
      */
 	boolean isColorUsed(Color c) {
-        return findExact(c) != -1;
+        return findExact(colorTab, usedEntry, c) != -1;
     }
 
     /**
      * Returns index of palette exactly matching to color c or -1 if there is no exact matching.
      *
      */
-    protected int findExact(Color c) {
+    protected int findExact(byte[] colorTab, boolean[] usedEntry, Color c) {
         if (colorTab == null) {
             return -1;
         }
@@ -399,9 +455,9 @@ public class AnimatedGifEncoder {
     }
 
 	/**
-	 * Extracts image pixels into byte array "pixels"
+	 * Extracts image pixels into a BGR byte array
 	 */
-	protected void getImagePixels() {
+	protected byte[] getImagePixels(BufferedImage image) {
 		int w = image.getWidth();
 		int h = image.getHeight();
 		int type = image.getType();
@@ -417,7 +473,7 @@ public class AnimatedGifEncoder {
 			g.drawImage(image, 0, 0, null);
 			image = temp;
 		}
-		pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
 	}
 	
 	/**
@@ -517,15 +573,6 @@ public class AnimatedGifEncoder {
 		}
 	}
 	
-	/**
-	 * Encodes and writes pixel data
-	 */
-	protected void writePixels() throws IOException {
-		com.madgag.gif.fmsware.LZWEncoder encoder =
-			new com.madgag.gif.fmsware.LZWEncoder(width, height, indexedPixels, colorDepth);
-		encoder.encode(out);
-	}
-	
 	/**
 	 *    Write 16-bit value to output stream, LSB first
 	 */
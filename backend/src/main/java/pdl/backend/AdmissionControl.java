@@ -0,0 +1,292 @@
+package pdl.backend;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bound the memory used by the transformations running at the same time.
+ * Each transformation reserves its estimated cost from a global budget before its pixels are decoded, and gives it
+ * back once the result is encoded. The cost is the memory of its images, plus the processor time of its algorithms
+ * counted as bytes, so that the budget also spreads the processors between fewer large or expensive images.
+ * A transformation whose memory alone is over the whole budget is refused, it could never run without exhausting it.
+ */
+@Component
+public class AdmissionControl {
+
+    /**
+     * Thrown when a transformation cannot get its budget in time.
+     */
+    public static class RejectedException extends RuntimeException {
+        public RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when the memory of a transformation is over the whole budget, so that waiting would not help.
+     */
+    public static class TooLargeException extends RejectedException {
+        public TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The estimated cost of a transformation.
+     */
+    public static final class Cost {
+        private final long memory;
+        private final long work;
+
+        /**
+         * @param memory The memory of the images, in bytes
+         * @param work   The number of byte operations of the algorithms
+         */
+        public Cost(long memory, long work) {
+            this.memory = memory;
+            this.work = work;
+        }
+
+        public long getMemory() {
+            return memory;
+        }
+
+        public long getWork() {
+            return work;
+        }
+
+        /**
+         * Return the part of the budget to reserve: the memory, plus the work counted as bytes. The work at most
+         * doubles the memory, an expensive algorithm only lets fewer transformations run next to it.
+         *
+         * @return the cost in bytes
+         */
+        public long getBytes() {
+            return memory + Math.min(memory, work / OPERATIONS_PER_BYTE);
+        }
+    }
+
+    /**
+     * The budget reserved by a transformation, given back when closed.
+     */
+    public final class Ticket implements AutoCloseable {
+        private int permits = 0;
+
+        private Ticket() {
+        }
+
+        /**
+         * Make the ticket hold the bytes of cost, waiting at most wait milliseconds for other transformations
+         * to finish. Only what the ticket does not hold yet is reserved, so a transformation admitted with an estimate
+         * does not reserve it twice. A cost whose work takes it over the whole budget reserves the whole budget, the
+         * transformation then runs alone.
+         *
+         * @param cost The estimated cost
+         * @param wait The longest wait in milliseconds
+         * @throws TooLargeException if the memory of cost is over the whole budget
+         * @throws RejectedException if the budget is still not available after wait
+         */
+        public void reserve(Cost cost, long wait) {
+            if (cost.getMemory() > getTotalBytes()) throw new TooLargeException("Image too large to be processed");
+            long bytes = cost.getBytes();
+            int more = (int) Math.min(totalPermits, Math.max(1, bytes / UNIT + ((bytes % UNIT > 0) ? 1 : 0))) - permits;
+            if (more <= 0) return;
+            try {
+                if (!semaphore.tryAcquire(more, wait, TimeUnit.MILLISECONDS)) {
+                    throw new RejectedException("Too many images being processed");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedException("Interrupted while waiting");
+            }
+            permits += more;
+        }
+
+        /**
+         * Make the ticket hold cost bytes of memory, see reserve.
+         *
+         * @param cost The estimated memory in bytes
+         * @param wait The longest wait in milliseconds
+         */
+        public void reserve(long cost, long wait) {
+            reserve(new Cost(cost, 0), wait);
+        }
+
+        @Override
+        public void close() {
+            if (permits > 0) semaphore.release(permits);
+            permits = 0;
+        }
+    }
+
+    // The permits are KiB, so that the budget fits in an int
+    private static final int UNIT = 1024;
+    // Byte operations counted as one byte of the budget
+    private static final long OPERATIONS_PER_BYTE = 8;
+
+    private final Semaphore semaphore;
+    private final int totalPermits;
+    private final long requestWait;
+
+    public AdmissionControl(@Value("${images.admission.max-bytes:0}") long maxBytes,
+                            @Value("${images.admission.wait-ms:2000}") long requestWait) {
+        if (maxBytes <= 0) maxBytes = Runtime.getRuntime().maxMemory() / 2;
+        this.totalPermits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / UNIT));
+        this.semaphore = new Semaphore(totalPermits, true);
+        this.requestWait = requestWait;
+    }
+
+    /**
+     * Return a ticket with nothing reserved yet, for a transformation that knows its cost once it has started.
+     *
+     * @return the ticket to close once the transformation is over
+     */
+    public Ticket newTicket() {
+        return new Ticket();
+    }
+
+    /**
+     * Reserve the bytes of cost from the budget, see Ticket.reserve.
+     *
+     * @param cost The estimated cost
+     * @param wait The longest wait in milliseconds
+     * @return the ticket to close once the transformation is over
+     * @throws TooLargeException if the memory of cost is over the whole budget
+     * @throws RejectedException if the budget is still not available after wait
+     */
+    public Ticket admit(Cost cost, long wait) {
+        Ticket ticket = new Ticket();
+        ticket.reserve(cost, wait);
+        return ticket;
+    }
+
+    /**
+     * Reserve cost bytes of memory from the budget, see Ticket.reserve.
+     *
+     * @param cost The estimated memory in bytes
+     * @param wait The longest wait in milliseconds
+     * @return the ticket to close once the transformation is over
+     */
+    public Ticket admit(long cost, long wait) {
+        return admit(new Cost(cost, 0), wait);
+    }
+
+    /**
+     * Return the longest wait of the transformations, whether they answer a request, run as a job or generate
+     * renditions.
+     *
+     * @return the wait in milliseconds
+     */
+    public long getRequestWait() {
+        return requestWait;
+    }
+
+    public long getTotalBytes() {
+        return (long) totalPermits * UNIT;
+    }
+
+    public long getAvailableBytes() {
+        return (long) semaphore.availablePermits() * UNIT;
+    }
+
+    /**
+     * Estimate the cost of transforming an image. Its memory is the decoded image, the two planar images the
+     * algorithms alternate between, the image converted back and the encoding buffer, for every frame. Its work is
+     * the operations of each algorithm on every byte of the planar images it goes through.
+     *
+     * @param width        The width of the decoded image
+     * @param height       The height of the decoded image
+     * @param decodedBands The bytes per pixel of the decoded image
+     * @param numBands     The number of bands of the planar images
+     * @param frames       The number of frames, all of them being held at the same time
+     * @param steps        The parameters of each algorithm
+     * @return the estimated cost
+     */
+    public static Cost estimate(int width, int height, int decodedBands, int numBands, int frames, List<Map<String, String>> steps) {
+        long pixels = (long) width * height;
+        long largest = pixels;
+        long work = 0;
+        for (Map<String, String> params : steps) {
+            String algorithm = (params == null) ? null : params.get("algorithm");
+            long before = pixels;
+            if ("scale".equals(algorithm)) {
+                try {
+                    pixels = Math.max(1, (long) Integer.parseInt(params.get("width")) * Integer.parseInt(params.get("height")));
+                } catch (NumberFormatException e) {
+                    // Rejected by the algorithm
+                }
+            } else if ("rotate".equals(algorithm) && Boolean.parseBoolean(params.get("expand"))) {
+                // The bounding box of a rotated image is at most twice as large
+                pixels *= 2;
+            }
+            largest = Math.max(largest, pixels);
+            work = saturatedAdd(work, saturatedMultiply(Math.max(before, pixels) * numBands, operations(params)));
+        }
+        long perFrame = (long) width * height * decodedBands + largest * (3L * numBands + 1);
+        int count = Math.max(1, frames);
+        return new Cost(saturatedMultiply(count, perFrame), saturatedMultiply(count, work));
+    }
+
+    // Operations of the algorithm of params on each byte of its images, relative to a color operation
+    static long operations(Map<String, String> params) {
+        String algorithm = (params == null) ? null : params.get("algorithm");
+        if (algorithm == null) return 1;
+        try {
+            switch (algorithm) {
+                case "blur":
+                    // The mean filter keeps running sums, the gaussian one is separable
+                    if ("M".equals(params.get("type"))) return 4;
+                    return 2 * (2L * Math.max(0, Integer.parseInt(params.get("size"))) + 1);
+                case "gradientImageSobel":
+                    return 12;
+                case "equalize":
+                    return 3;
+                case "scale":
+                    return interpolationOperations(params.get("filter"));
+                case "rotate":
+                    return interpolationOperations(params.get("interpolation"));
+                case "twist":
+                case "wave":
+                case "sphere":
+                    // Trigonometry for each pixel
+                    return 8;
+                case "halftoning":
+                    return 4;
+                default:
+                    return 1;
+            }
+        } catch (NumberFormatException e) {
+            // Rejected by the algorithm
+            return 1;
+        }
+    }
+
+    // Operations of a resampling filter or an interpolation on each byte of its output, nearest when name is null
+    private static long interpolationOperations(String name) {
+        if (name == null) return 1;
+        switch (name.toLowerCase()) {
+            case "nearest":
+                return 1;
+            case "bicubic":
+                return 16;
+            case "lanczos3":
+                return 36;
+            default:
+                return 4;
+        }
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        return (sum < 0) ? Long.MAX_VALUE : sum;
+    }
+
+    private static long saturatedMultiply(long a, long b) {
+        return (a != 0 && b > Long.MAX_VALUE / a) ? Long.MAX_VALUE : a * b;
+    }
+}
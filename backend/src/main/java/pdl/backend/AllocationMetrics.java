@@ -0,0 +1,84 @@
+package pdl.backend;
+
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Heap allocation counters, read from the per-thread allocation counters of HotSpot when the JVM provides them.
+ * Every value is -1 (or 0 for the transformation total) on JVMs without them.
+ */
+@Component
+public class AllocationMetrics {
+
+    private final com.sun.management.ThreadMXBean threads;
+
+    private final AtomicLong requestBytes = new AtomicLong();
+
+    // Last value read from each thread, and the allocations of the threads since the first read
+    private final Map<Long, Long> lastAllocated = new HashMap<>();
+    private long totalBytes = 0;
+
+    public AllocationMetrics() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threads = (com.sun.management.ThreadMXBean) bean;
+            threads.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            threads = null;
+        }
+    }
+
+    /**
+     * Return the number of bytes allocated so far by the calling thread.
+     *
+     * @return the number of bytes, or -1 if it is not available
+     */
+    public long currentThreadAllocatedBytes() {
+        return (threads == null) ? -1 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Record the bytes allocated by the thread of a transformation while it ran, whether it answers a request, runs
+     * as a job or generates a rendition.
+     *
+     * @param start The value of currentThreadAllocatedBytes when the transformation started
+     */
+    public void recordRequest(long start) {
+        if (start < 0) return;
+        requestBytes.addAndGet(currentThreadAllocatedBytes() - start);
+    }
+
+    /**
+     * Return the number of bytes allocated by the threads of the JVM, the allocation rate is its derivative. Unlike the
+     * sum of the live threads, it never goes down when a thread ends, only what a thread allocated after the last call
+     * before it ended is missed.
+     *
+     * @return the number of bytes, or -1 if it is not available
+     */
+    public synchronized long getTotalAllocatedBytes() {
+        if (threads == null) return -1;
+        long[] ids = threads.getAllThreadIds();
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> live = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            // -1 for a thread that ended in the meantime
+            if (allocated[i] < 0) continue;
+            long last = lastAllocated.getOrDefault(ids[i], 0L);
+            totalBytes += Math.max(0, allocated[i] - last);
+            live.put(ids[i], allocated[i]);
+        }
+        lastAllocated.clear();
+        lastAllocated.putAll(live);
+        return totalBytes;
+    }
+
+    // Bytes allocated by the threads running the transformations themselves, the filters and the GIF frames also
+    // allocate on the tiling pool, which only getTotalAllocatedBytes counts
+    public long getRequestBytes() {
+        return requestBytes.get();
+    }
+}
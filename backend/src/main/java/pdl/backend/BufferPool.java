@@ -0,0 +1,209 @@
+package pdl.backend;
+
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Reusable buffers for request processing, so that the images and encoding buffers of a request are recycled
+ * by the next ones instead of being garbage collected.
+ * Planar images and byte buffers are pooled by size class: their capacity is a power of two, so a buffer serves
+ * every request up to twice smaller. BufferedImages cannot be resized and are pooled by exact size and type.
+ * The content of an acquired buffer is undefined. A released buffer must not be used anymore.
+ */
+@Component
+public class BufferPool {
+
+    // Smaller buffers are cheap to allocate and not worth keeping
+    private static final int MIN_SIZE_CLASS = 12;
+
+    /**
+     * ByteArrayOutputStream writing into a pooled array.
+     */
+    private static final class PooledOutputStream extends ByteArrayOutputStream {
+        private PooledOutputStream(byte[] buffer) {
+            super(0);
+            buf = buffer;
+        }
+
+        private byte[] buffer() {
+            return buf;
+        }
+    }
+
+    private final long maxBytes;
+    private long retainedBytes = 0;
+    private final Map<List<Integer>, Deque<Planar<GrayU8>>> planars = new HashMap<>();
+    private final Map<List<Integer>, Deque<BufferedImage>> images = new HashMap<>();
+    private final Map<Integer, Deque<byte[]>> arrays = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public BufferPool(@Value("${images.pool.max-bytes:134217728}") long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Smallest class whose capacity holds size
+    private static int sizeClass(long size) {
+        return Math.max(MIN_SIZE_CLASS, 64 - Long.numberOfLeadingZeros(size - 1));
+    }
+
+    // Largest class whose capacity fits in capacity
+    private static int capacityClass(long capacity) {
+        return 63 - Long.numberOfLeadingZeros(capacity);
+    }
+
+    private synchronized <K, T> T poll(Map<K, Deque<T>> pool, K key, ToLongFunction<T> bytes) {
+        Deque<T> buffers = pool.get(key);
+        T buffer = (buffers == null) ? null : buffers.poll();
+        if (buffer != null) retainedBytes -= bytes.applyAsLong(buffer);
+        return buffer;
+    }
+
+    private <T> T count(T buffer) {
+        if (buffer == null) misses.incrementAndGet();
+        else hits.incrementAndGet();
+        return buffer;
+    }
+
+    private synchronized <K, T> void offer(Map<K, Deque<T>> pool, K key, T buffer, ToLongFunction<T> bytes) {
+        if (retainedBytes + bytes.applyAsLong(buffer) > maxBytes) return;
+        pool.computeIfAbsent(key, k -> new ArrayDeque<>()).push(buffer);
+        retainedBytes += bytes.applyAsLong(buffer);
+    }
+
+    /**
+     * Return a Planar image of the given shape, its pixels are not cleared.
+     *
+     * @param width    Width of the image
+     * @param height   Height of the image
+     * @param numBands Number of bands of the image
+     * @return the image
+     */
+    public Planar<GrayU8> acquirePlanar(int width, int height, int numBands) {
+        int sizeClass = sizeClass(Math.max(1L, (long) width * height));
+        Planar<GrayU8> planar = count(poll(planars, List.of(sizeClass, numBands), BufferPool::planarBytes));
+        if (planar == null) {
+            planar = new Planar<>(GrayU8.class, 1, 1, numBands);
+            for (int i = 0; i < numBands; i++) {
+                planar.getBand(i).data = new byte[1 << sizeClass];
+            }
+        }
+        planar.reshape(width, height);
+        return planar;
+    }
+
+    /**
+     * Give back an image returned by acquirePlanar, or any other Planar image which is not used anymore.
+     *
+     * @param planar The image, may be null
+     */
+    public void releasePlanar(Planar<GrayU8> planar) {
+        if (planar == null) return;
+        int capacity = Integer.MAX_VALUE;
+        for (int i = 0; i < planar.getNumBands(); i++) {
+            capacity = Math.min(capacity, planar.getBand(i).data.length);
+        }
+        if (capacity < (1 << MIN_SIZE_CLASS)) return;
+        offer(planars, List.of(capacityClass(capacity), planar.getNumBands()), planar, BufferPool::planarBytes);
+    }
+
+    private static long planarBytes(Planar<GrayU8> planar) {
+        long bytes = 0;
+        for (int i = 0; i < planar.getNumBands(); i++) {
+            bytes += planar.getBand(i).data.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Return whether images of this type are pooled. Custom and indexed images are not: two images of the same
+     * type may have different color models.
+     *
+     * @param type Type of an image, one of the BufferedImage.TYPE_ constants
+     * @return true if the type is pooled
+     */
+    public static boolean isPoolable(int type) {
+        return type != BufferedImage.TYPE_CUSTOM && type != BufferedImage.TYPE_BYTE_BINARY && type != BufferedImage.TYPE_BYTE_INDEXED;
+    }
+
+    /**
+     * Return a BufferedImage of the given size and type, its pixels are not cleared.
+     *
+     * @param width  Width of the image
+     * @param height Height of the image
+     * @param type   Type of the image, one of the BufferedImage.TYPE_ constants
+     * @return the image
+     */
+    public BufferedImage acquireImage(int width, int height, int type) {
+        BufferedImage image = isPoolable(type) ? count(poll(images, List.of(width, height, type), BufferPool::imageBytes)) : null;
+        return (image != null) ? image : new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Give back an image returned by acquireImage, or any other image which is not used anymore.
+     *
+     * @param image The image, may be null
+     */
+    public void releaseImage(BufferedImage image) {
+        if (image == null || !isPoolable(image.getType())) return;
+        offer(images, List.of(image.getWidth(), image.getHeight(), image.getType()), image, BufferPool::imageBytes);
+    }
+
+    // Upper bound of the memory used by the pixels of an image of any type
+    private static long imageBytes(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    /**
+     * Return an empty output stream writing into a pooled buffer.
+     *
+     * @param expectedSize Expected number of bytes written, the stream grows past it if needed
+     * @return the stream
+     */
+    public ByteArrayOutputStream acquireStream(int expectedSize) {
+        int sizeClass = sizeClass(Math.max(1, expectedSize));
+        // The expected size is a guess, buffers which have grown past it are good candidates too
+        byte[] buffer = null;
+        for (int c = sizeClass; buffer == null && c <= sizeClass + 2; c++) {
+            buffer = poll(arrays, c, array -> array.length);
+        }
+        return new PooledOutputStream((count(buffer) != null) ? buffer : new byte[1 << sizeClass]);
+    }
+
+    /**
+     * Give back a stream returned by acquireStream, with the buffer it may have grown into.
+     *
+     * @param stream The stream, may be null
+     */
+    public void releaseStream(ByteArrayOutputStream stream) {
+        if (!(stream instanceof PooledOutputStream)) return;
+        byte[] buffer = ((PooledOutputStream) stream).buffer();
+        if (buffer.length < (1 << MIN_SIZE_CLASS)) return;
+        offer(arrays, capacityClass(buffer.length), buffer, array -> array.length);
+    }
+
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,197 @@
+package pdl.backend;
+
+/**
+ * Inner loops of the byte level filters, over a single row of pixels.
+ * This class is the scalar implementation. When the backend is built with JDK 17 or later, VectorKernels
+ * (in src/main/java17) overrides these loops with the Vector API of jdk.incubator.vector, and is selected at runtime
+ * if the JVM was started with --add-modules jdk.incubator.vector. Both implementations give exactly the same bytes.
+ */
+public class ByteKernels {
+
+    private static final ByteKernels SCALAR = new ByteKernels();
+    private static final ByteKernels VECTOR = loadVector();
+
+    // Also read from the system properties, for the code running without Spring such as the benchmarks
+    private static volatile ByteKernels current = (VECTOR != null && Boolean.parseBoolean(System.getProperty("images.simd", "true"))) ? VECTOR : SCALAR;
+
+    protected ByteKernels() {
+    }
+
+    // The vector class is missing when built with an older JDK and cannot be loaded without the incubator module
+    private static ByteKernels loadVector() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return null;
+        try {
+            return (ByteKernels) Class.forName("pdl.backend.VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the kernels used by the filters.
+     *
+     * @return the vector kernels if they are available and enabled, the scalar ones otherwise
+     */
+    public static ByteKernels get() {
+        return current;
+    }
+
+    /**
+     * Choose whether the filters use the vector kernels when they are available.
+     *
+     * @param enabled false to always use the scalar kernels
+     */
+    public static void setVectorEnabled(boolean enabled) {
+        current = (enabled && VECTOR != null) ? VECTOR : SCALAR;
+    }
+
+    public static boolean isVectorAvailable() {
+        return VECTOR != null;
+    }
+
+    static ByteKernels scalar() {
+        return SCALAR;
+    }
+
+    /**
+     * Return whether these kernels process several pixels per instruction.
+     *
+     * @return false for the scalar kernels
+     */
+    public boolean isVectorized() {
+        return false;
+    }
+
+    /**
+     * Replace each value v of data[from, to) by v + delta, or 255 - v + delta if negate is set, clamped to [0,255].
+     *
+     * @param data   The band data
+     * @param from   Index of the first value
+     * @param to     Index after the last value
+     * @param negate Whether v is replaced by 255 - v first
+     * @param delta  The value added
+     */
+    public void affine(byte[] data, int from, int to, boolean negate, int delta) {
+        for (int i = from; i < to; i++) {
+            int v = data[i] & 0xFF;
+            data[i] = (byte) Math.max(0, Math.min((negate ? 255 - v : v) + delta, 255));
+        }
+    }
+
+    /**
+     * Replace the three values of length pixels by their gray level, 0.3 * red + 0.59 * green + 0.11 * blue
+     * rounded down, with the float coefficients of ImageModifier.toGray.
+     *
+     * @param red    The red band data
+     * @param r      Index of the first red value
+     * @param green  The green band data
+     * @param g      Index of the first green value
+     * @param blue   The blue band data
+     * @param b      Index of the first blue value
+     * @param length The number of pixels
+     */
+    public void toGray(byte[] red, int r, byte[] green, int g, byte[] blue, int b, int length) {
+        for (int x = 0; x < length; x++) {
+            byte gray = (byte) gray(red[r + x] & 0xFF, green[g + x] & 0xFF, blue[b + x] & 0xFF);
+            red[r + x] = gray;
+            green[g + x] = gray;
+            blue[b + x] = gray;
+        }
+    }
+
+    // The float coefficients 0.3f, 0.59f and 0.11f are 5033165 / 2^24, 9898557 / 2^24 and 7381975 / 2^26, and every
+    // product and sum of the double computation is exact, so the gray level is this integer division. The sum is
+    // below 2^32 and read as an unsigned int; dropping the two lowest bits of the blue product keeps the quotient.
+    static int gray(int r, int g, int b) {
+        return (r * 5033165 + g * 9898557 + ((b * 7381975) >>> 2)) >>> 24;
+    }
+
+    /**
+     * Apply the sepia matrix to length pixels, results are clamped to 255.
+     *
+     * @param red    The red values in [0,255], replaced by the result
+     * @param green  The green values in [0,255], replaced by the result
+     * @param blue   The blue values in [0,255], replaced by the result
+     * @param length The number of pixels
+     */
+    public void sepia(int[] red, int[] green, int[] blue, int length) {
+        sepia(red, green, blue, 0, length);
+    }
+
+    // Scalar sepia of the pixels [from, to)
+    protected static void sepia(int[] red, int[] green, int[] blue, int from, int to) {
+        for (int x = from; x < to; x++) {
+            int r = red[x], g = green[x], b = blue[x];
+            red[x] = sepia(0.393, 0.769, 0.189, r, g, b);
+            green[x] = sepia(0.349, 0.686, 0.168, r, g, b);
+            blue[x] = sepia(0.272, 0.534, 0.131, r, g, b);
+        }
+    }
+
+    // Summed in the same order as the former per-band loop, so that the rounding is the same
+    private static int sepia(double cr, double cg, double cb, int r, int g, int b) {
+        double value = cr * r;
+        value += cg * g;
+        value += cb * b;
+        return (int) Math.min(value, 255);
+    }
+
+    /**
+     * Replace each value v of data[from, from + length) by 255 if it is greater than its threshold, 0 otherwise.
+     *
+     * @param data       The band data
+     * @param from       Index of the first value
+     * @param thresholds The threshold of each value
+     * @param length     The number of values
+     */
+    public void threshold(byte[] data, int from, int[] thresholds, int length) {
+        threshold(data, from, thresholds, 0, length);
+    }
+
+    // Scalar threshold of the values [x0, length)
+    protected static void threshold(byte[] data, int from, int[] thresholds, int x0, int length) {
+        for (int x = x0; x < length; x++) {
+            data[from + x] = (thresholds[x] < (data[from + x] & 0xFF)) ? (byte) 255 : 0;
+        }
+    }
+
+    /**
+     * Add weight * v to sums[x] for each value v of data[from + x], x in [0, length).
+     *
+     * @param sums   The sums
+     * @param data   The band data
+     * @param from   Index of the first value
+     * @param weight The weight of the values
+     * @param length The number of values
+     */
+    public void accumulate(int[] sums, byte[] data, int from, int weight, int length) {
+        accumulate(sums, data, from, weight, 0, length);
+    }
+
+    // Scalar accumulation of the values [x0, length)
+    protected static void accumulate(int[] sums, byte[] data, int from, int weight, int x0, int length) {
+        for (int x = x0; x < length; x++) {
+            sums[x] += weight * (data[from + x] & 0xFF);
+        }
+    }
+
+    /**
+     * Replace each value of data[from, from + length) by the matching sum shifted right by shift bits, clamped to [0,255].
+     *
+     * @param sums   The sums
+     * @param shift  The number of bits of the shift
+     * @param data   The band data
+     * @param from   Index of the first value
+     * @param length The number of values
+     */
+    public void shiftClamp(int[] sums, int shift, byte[] data, int from, int length) {
+        shiftClamp(sums, shift, data, from, 0, length);
+    }
+
+    // Scalar shiftClamp of the values [x0, length)
+    protected static void shiftClamp(int[] sums, int shift, byte[] data, int from, int x0, int length) {
+        for (int x = x0; x < length; x++) {
+            data[from + x] = (byte) Math.max(0, Math.min(sums[x] >> shift, 255));
+        }
+    }
+}
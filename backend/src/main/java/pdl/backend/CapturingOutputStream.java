@@ -0,0 +1,90 @@
+package pdl.backend;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.BooleanSupplier;
+
+/**
+ * OutputStream writing through to another one and keeping a copy of what is written. The copy is kept in memory as
+ * long as it is not larger than a limit, past it the copy is moved to a temporary file if it is still wanted, or
+ * dropped. The underlying stream is not closed, the temporary file is deleted on close.
+ */
+public class CapturingOutputStream extends FilterOutputStream {
+    private final long limit;
+    private final BooleanSupplier spill;
+    private ByteArrayOutputStream capture;
+    private Path spillFile;
+    private OutputStream spillOut;
+
+    /**
+     * @param out     The stream written to
+     * @param capture The stream the copy is written to
+     * @param limit   The largest copy kept in memory, in bytes
+     * @param spill   Tells, once the copy goes past the limit, whether it is kept in a temporary file
+     */
+    public CapturingOutputStream(OutputStream out, ByteArrayOutputStream capture, long limit, BooleanSupplier spill) {
+        super(out);
+        this.capture = capture;
+        this.limit = limit;
+        this.spill = spill;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        if (spillOut != null) spillOut.write(b);
+        else if (capture != null && capture.size() < limit) capture.write(b);
+        else if (capture != null && startSpill()) spillOut.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        if (spillOut != null) spillOut.write(b, off, len);
+        else if (capture != null && capture.size() + (long) len <= limit) capture.write(b, off, len);
+        else if (capture != null && startSpill()) spillOut.write(b, off, len);
+    }
+
+    // Move the copy to a temporary file if it is still wanted, drop it otherwise
+    private boolean startSpill() throws IOException {
+        if (spill.getAsBoolean()) {
+            spillFile = Files.createTempFile("capture", ".tmp");
+            spillOut = new BufferedOutputStream(Files.newOutputStream(spillFile));
+            capture.writeTo(spillOut);
+        }
+        capture = null;
+        return spillOut != null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (spillOut != null) {
+            try {
+                spillOut.close();
+            } finally {
+                Files.deleteIfExists(spillFile);
+                spillOut = null;
+            }
+        }
+    }
+
+    /**
+     * Return a copy of everything written, read back from the temporary file if it went past the limit.
+     *
+     * @return the bytes, or null if they went past the limit and were not wanted anymore
+     * @throws IOException if the temporary file could not be read
+     */
+    public byte[] getCaptured() throws IOException {
+        if (spillOut != null) {
+            spillOut.flush();
+            return Files.readAllBytes(spillFile);
+        }
+        return (capture != null) ? capture.toByteArray() : null;
+    }
+}
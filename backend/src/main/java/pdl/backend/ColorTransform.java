@@ -0,0 +1,265 @@
+package pdl.backend;
+
+import boofcv.alg.color.ColorHsv;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import pdl.backend.TileExecutor.Tiling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chain of color operations where each output pixel only depends on the same input pixel.
+ * The whole chain is applied in a single pass over the image: each row is read once into a small buffer, goes
+ * through every operation while it stays in cache, and is written once. Consecutive lookup tables are composed into one.
+ * The result is the same as applying the operations one after another, since the value of each pixel is brought back
+ * to a byte between two operations exactly as if it had been stored in the image.
+ */
+public final class ColorTransform {
+
+    /**
+     * A single operation on the color of a pixel.
+     */
+    private interface Stage {
+        /**
+         * Apply the operation to the first length pixels of a row.
+         *
+         * @param red    The red values in [0,255], replaced by the result
+         * @param green  The green values in [0,255], replaced by the result
+         * @param blue   The blue values in [0,255], replaced by the result
+         * @param length The number of pixels
+         */
+        void apply(int[] red, int[] green, int[] blue, int length);
+
+        /**
+         * Return the operation done on images with less than 3 bands, where each band is treated on its own.
+         *
+         * @return the table of the operation
+         */
+        LookupTable onGray();
+    }
+
+    private static final class TableStage implements Stage {
+        private final LookupTable table;
+
+        private TableStage(LookupTable table) {
+            this.table = table;
+        }
+
+        @Override
+        public void apply(int[] red, int[] green, int[] blue, int length) {
+            for (int x = 0; x < length; x++) {
+                red[x] = table.get(red[x]);
+                green[x] = table.get(green[x]);
+                blue[x] = table.get(blue[x]);
+            }
+        }
+
+        @Override
+        public LookupTable onGray() {
+            return table;
+        }
+    }
+
+    /**
+     * Operation going through HSV, the hue is in radians.
+     */
+    private interface HsvOperation {
+        void apply(float[] hsv);
+    }
+
+    private static final class HsvStage implements Stage {
+        private final HsvOperation operation;
+        private final String grayError;
+
+        private HsvStage(HsvOperation operation, String grayError) {
+            this.operation = operation;
+            this.grayError = grayError;
+        }
+
+        @Override
+        public void apply(int[] red, int[] green, int[] blue, int length) {
+            float[] hsv = new float[3], rgb = new float[3];
+            for (int x = 0; x < length; x++) {
+                ColorHsv.rgbToHsv(red[x], green[x], blue[x], hsv);
+                operation.apply(hsv);
+                ColorHsv.hsvToRgb(hsv[0], hsv[1], hsv[2], rgb);
+                red[x] = (int) rgb[0] & 0xFF;
+                green[x] = (int) rgb[1] & 0xFF;
+                blue[x] = (int) rgb[2] & 0xFF;
+            }
+        }
+
+        @Override
+        public LookupTable onGray() {
+            throw new ImageControllerException(grayError);
+        }
+    }
+
+    private static final Stage SEPIA = new Stage() {
+        @Override
+        public void apply(int[] red, int[] green, int[] blue, int length) {
+            ByteKernels.get().sepia(red, green, blue, length);
+        }
+
+        @Override
+        public LookupTable onGray() {
+            // Sepia leaves images without colors untouched
+            return LookupTable.identity();
+        }
+    };
+
+    private final List<Stage> stages;
+
+    private ColorTransform(List<Stage> stages) {
+        this.stages = stages;
+    }
+
+    private static ColorTransform of(Stage stage) {
+        return new ColorTransform(Collections.singletonList(stage));
+    }
+
+    public static ColorTransform of(LookupTable table) {
+        return of(new TableStage(table));
+    }
+
+    public static ColorTransform sepia() {
+        return of(SEPIA);
+    }
+
+    public static ColorTransform hueFilter(int hue) {
+        if (hue < 0 || 360 < hue) {
+            throw new ImageControllerException("min or max value out of bound of 0 360");
+        }
+        float radHue = (float) Math.toRadians(hue);
+        return of(new HsvStage(hsv -> hsv[0] = radHue, "The input picture must have at least 3 bands"));
+    }
+
+    public static ColorTransform hueSelector(int min, int max) {
+        if (min < 0 || 360 < min || max < 0 || 360 < max) {
+            throw new ImageControllerException("min or max value out of bound of 0 360");
+        }
+        return of(new HsvStage(hsv -> {
+            double hue = Math.toDegrees(hsv[0]);
+            if (min > max) {
+                if (min >= hue && hue >= max) hsv[1] = 0;
+            } else {
+                if (!(max >= hue && hue >= min)) hsv[1] = 0;
+            }
+        }, "The input picture must have at least 3 bands"));
+    }
+
+    public static ColorTransform reverseHue() {
+        return of(new HsvStage(hsv -> {
+            // Same value as (hsv[0] + PI) % (2 * PI) for a hue in [0, 2 * PI), without the slow floating point remainder
+            double hue = hsv[0] + Math.PI;
+            if (hue >= 2 * Math.PI) hue -= 2 * Math.PI;
+            hsv[0] = (float) hue;
+        }, "The picture must have at least 3 bands"));
+    }
+
+    /**
+     * Return the transform of the algorithm described by params if it is a per-pixel color operation.
+     *
+     * @param params The map containing parameters
+     * @return the transform, or null if the algorithm is not a per-pixel color operation
+     */
+    public static ColorTransform forParams(Map<String, String> params) {
+        LookupTable table = LookupTable.forParams(params);
+        if (table != null) return of(table);
+        String algorithm = params.get("algorithm");
+        if (algorithm == null) return null;
+        switch (algorithm) {
+            case "sepia":
+                return sepia();
+            case "hueFilter":
+                if (!params.containsKey("hue"))
+                    throw new ImageControllerException("Wrong arguments");
+                return hueFilter(Integer.parseInt(params.get("hue")));
+            case "hueSelector":
+                if (!params.containsKey("min") || !params.containsKey("max"))
+                    throw new ImageControllerException("Wrong arguments");
+                return hueSelector(Integer.parseInt(params.get("min")), Integer.parseInt(params.get("max")));
+            case "reverseHue":
+                return reverseHue();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Chain this transform with next, the result applies this transform then next.
+     *
+     * @param next The transform applied after this one
+     * @return the chained transform
+     */
+    public ColorTransform andThen(ColorTransform next) {
+        List<Stage> chained = new ArrayList<>(stages.size() + next.stages.size());
+        chained.addAll(stages);
+        for (Stage stage : next.stages) {
+            int last = chained.size() - 1;
+            if (stage instanceof TableStage && chained.get(last) instanceof TableStage) {
+                chained.set(last, new TableStage(((TableStage) chained.get(last)).table.andThen(((TableStage) stage).table)));
+            } else {
+                chained.add(stage);
+            }
+        }
+        return new ColorTransform(chained);
+    }
+
+    /**
+     * Apply the transform to the color bands of the input image, the alpha band is left untouched.
+     * Images with less than 3 bands only support the operations that don't need colors.
+     *
+     * @param input The input image, modified in place
+     */
+    public void apply(Planar<GrayU8> input) {
+        if (input.getNumBands() < 3) {
+            LookupTable table = stages.get(0).onGray();
+            for (int i = 1; i < stages.size(); i++) {
+                table = table.andThen(stages.get(i).onGray());
+            }
+            table.apply(input);
+            return;
+        }
+        if (stages.size() == 1 && stages.get(0) instanceof TableStage) {
+            ((TableStage) stages.get(0)).table.apply(input);
+            return;
+        }
+        Stage[] chain = stages.toArray(new Stage[0]);
+        GrayU8 redBand = input.getBand(0), greenBand = input.getBand(1), blueBand = input.getBand(2);
+        int width = input.width;
+        TileExecutor.forEachBand(width, input.height, Tiling.ROW_LOCAL, (y0, y1) -> {
+            int[] red = new int[width], green = new int[width], blue = new int[width];
+            for (int y = y0; y < y1; y++) {
+                read(redBand, y, red);
+                read(greenBand, y, green);
+                read(blueBand, y, blue);
+                for (Stage stage : chain) {
+                    stage.apply(red, green, blue, width);
+                }
+                write(red, redBand, y);
+                write(green, greenBand, y);
+                write(blue, blueBand, y);
+            }
+        });
+    }
+
+    private static void read(GrayU8 band, int y, int[] row) {
+        byte[] data = band.data;
+        int index = band.startIndex + y * band.stride;
+        for (int x = 0; x < row.length; x++) {
+            row[x] = data[index + x] & 0xFF;
+        }
+    }
+
+    private static void write(int[] row, GrayU8 band, int y) {
+        byte[] data = band.data;
+        int index = band.startIndex + y * band.stride;
+        for (int x = 0; x < row.length; x++) {
+            data[index + x] = (byte) row[x];
+        }
+    }
+}
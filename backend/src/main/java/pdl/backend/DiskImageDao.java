@@ -0,0 +1,269 @@
+package pdl.backend;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Persistent store keeping the images in an append-only data file, described by an append-only index file.
+ * Images are served from memory-mapped regions of the data file, so the heap does not grow with the catalog
+ * and a restart only has to replay the index.
+ * The data file is mapped in segments shared by the images they hold, an image is never split between two
+ * segments unless it is larger than a segment, in which case it gets a mapping of its own.
+ * A new store is filled with the images found in the "images" folder, a store whose images were all deleted
+ * stays empty. These images are only linked, not copied into the data file: the index keeps their path and they
+ * are read on first access like the ones of the memory store, so the first start does not depend on the size of
+ * the folder. They must stay in the folder for as long as the store references them.
+ */
+@Repository
+@ConditionalOnProperty(name = "images.store", havingValue = "disk")
+public class DiskImageDao implements Dao<Image>, Closeable {
+
+    private static final String DATA_FILE_NAME = "images.dat";
+    private static final String INDEX_FILE_NAME = "images.idx";
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte LINK = 3;
+    // The data file grows by whole segments as they are mapped
+    static final long SEGMENT_SIZE = 64L << 20;
+
+    private final ConcurrentNavigableMap<Long, Image> images = new ConcurrentSkipListMap<>();
+    private volatile List<Image> snapshot;
+    private final FileChannel data;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    // End of the data referenced by the index, the file itself ends with the unused part of the last segment
+    private long end = 0;
+    private final FileOutputStream indexFile;
+    private final DataOutputStream index;
+
+    @Autowired
+    public DiskImageDao(@Value("${images.store.path:../data}") String storePath) throws IOException {
+        this(storePath, "../");
+    }
+
+    public DiskImageDao(String storePath, String imagesDirectoryPath) throws IOException {
+        Path storeDirectory = Paths.get(storePath);
+        Files.createDirectories(storeDirectory);
+        Path dataPath = storeDirectory.resolve(DATA_FILE_NAME);
+        Path indexPath = storeDirectory.resolve(INDEX_FILE_NAME);
+        boolean created = !Files.exists(dataPath) && !Files.exists(indexPath);
+        data = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (Files.exists(indexPath)) {
+            replayIndex(indexPath);
+        }
+        indexFile = new FileOutputStream(indexPath.toFile(), true);
+        index = new DataOutputStream(new BufferedOutputStream(indexFile));
+        if (created) {
+            importImagesDirectory(imagesDirectoryPath);
+        }
+    }
+
+    // Segment number i of the data file, mapping it extends the file to its end
+    private MappedByteBuffer segment(int i) throws IOException {
+        while (segments.size() <= i) {
+            segments.add(data.map(FileChannel.MapMode.READ_WRITE, segments.size() * SEGMENT_SIZE, SEGMENT_SIZE));
+        }
+        return segments.get(i);
+    }
+
+    // The bytes [offset, offset + length) of the data file
+    private ByteBuffer region(long offset, int length) throws IOException {
+        int i = (int) (offset / SEGMENT_SIZE);
+        if ((offset + length - 1) / SEGMENT_SIZE != i || length == 0) {
+            return data.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        ByteBuffer region = segment(i).duplicate();
+        region.position((int) (offset - i * SEGMENT_SIZE));
+        region.limit(region.position() + length);
+        return region.slice();
+    }
+
+    // Where an image of length bytes is appended, at the start of the next segment if it doesn't fit in the current one
+    private long nextOffset(int length) {
+        if (length > SEGMENT_SIZE || end / SEGMENT_SIZE == (end + length - 1) / SEGMENT_SIZE) return end;
+        return (end / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+    }
+
+    // Rebuild the in-memory index, an incomplete record left by a crash is cut off
+    private void replayIndex(Path indexPath) throws IOException {
+        byte[] content = Files.readAllBytes(indexPath);
+        long dataSize = data.size();
+        long valid = 0;
+        try (ByteArrayInputStream bis = new ByteArrayInputStream(content); DataInputStream in = new DataInputStream(bis)) {
+            while (bis.available() > 0) {
+                byte op = in.readByte();
+                long id = in.readLong();
+                if (op == DELETE) {
+                    // The id of a deleted image is never given again, even when it was the last one
+                    Image.reserveId(id);
+                    images.remove(id);
+                } else if (op == PUT) {
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    MediaType mediaType = MediaType.parseMediaType(in.readUTF());
+                    String name = in.readUTF();
+                    int width = in.readInt(), height = in.readInt(), numBands = in.readInt();
+                    if (offset + length > dataSize) break;
+                    end = Math.max(end, offset + length);
+                    Image img = new Image(id, name, region(offset, length), mediaType);
+                    if (width >= 0) img.setMetadata(new ImageMetadata(width, height, numBands));
+                    images.put(id, img);
+                } else if (op == LINK) {
+                    Path path = Paths.get(in.readUTF());
+                    long size = in.readLong();
+                    MediaType mediaType = MediaType.parseMediaType(in.readUTF());
+                    String name = in.readUTF();
+                    images.put(id, new Image(id, name, path, size, mediaType));
+                } else {
+                    break;
+                }
+                valid = content.length - bis.available();
+            }
+        } catch (EOFException ignored) {
+            // Truncated record
+        }
+        if (valid < content.length) {
+            try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    private void importImagesDirectory(String imagesDirectoryPath) throws IOException {
+        List<Image> found;
+        try {
+            found = new ImageDao(imagesDirectoryPath).retrieveAll();
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        // A single sync for the whole folder, the store is only used once the constructor returns
+        synchronized (this) {
+            for (Image img : found) {
+                index.writeByte(LINK);
+                index.writeLong(img.getId());
+                index.writeUTF(img.getPath().toAbsolutePath().toString());
+                index.writeLong(img.getSize());
+                index.writeUTF(img.mediaType.toString());
+                index.writeUTF(img.getName());
+                images.put(img.getId(), img);
+            }
+            syncIndex();
+        }
+        invalidateSnapshot();
+    }
+
+    @Override
+    public Optional<Image> retrieve(final long id) {
+        return Optional.ofNullable(images.get(id));
+    }
+
+    @Override
+    public List<Image> retrieveAll() {
+        List<Image> current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = List.copyOf(images.values());
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    // Must be called after every modification of images, a snapshot built concurrently is discarded
+    private synchronized void invalidateSnapshot() {
+        snapshot = null;
+    }
+
+    @Override
+    public void create(final Image img) {
+        try {
+            ImageMetadata metadata = img.getMetadata();
+            Image stored;
+            synchronized (this) {
+                // The data is on disk before the index references it
+                ByteBuffer bytes = ByteBuffer.wrap(img.getData());
+                int length = bytes.remaining();
+                long offset = nextOffset(length);
+                if (length > SEGMENT_SIZE) {
+                    while (bytes.hasRemaining()) {
+                        data.write(bytes, offset + length - bytes.remaining());
+                    }
+                    data.force(false);
+                } else if (length > 0) {
+                    MappedByteBuffer segment = segment((int) (offset / SEGMENT_SIZE));
+                    segment.duplicate().position((int) (offset % SEGMENT_SIZE)).put(bytes);
+                    segment.force();
+                }
+
+                index.writeByte(PUT);
+                index.writeLong(img.getId());
+                index.writeLong(offset);
+                index.writeInt(length);
+                index.writeUTF(img.mediaType.toString());
+                index.writeUTF(img.getName());
+                index.writeInt(metadata == null ? -1 : metadata.getWidth());
+                index.writeInt(metadata == null ? -1 : metadata.getHeight());
+                index.writeInt(metadata == null ? -1 : metadata.getNumBands());
+                syncIndex();
+                end = offset + length;
+
+                stored = new Image(img.getId(), img.getName(), region(offset, length), img.mediaType);
+                stored.setMetadata(metadata);
+            }
+            images.put(stored.getId(), stored);
+            invalidateSnapshot();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not store image", e);
+        }
+    }
+
+    // Once the record is on disk, a crash never loses it nor leaves it without its data
+    private void syncIndex() throws IOException {
+        index.flush();
+        indexFile.getFD().sync();
+    }
+
+    @Override
+    public void update(final Image img, final String[] params) {
+        // Not used
+    }
+
+    @Override
+    public void delete(final Image img) {
+        try {
+            synchronized (this) {
+                index.writeByte(DELETE);
+                index.writeLong(img.getId());
+                syncIndex();
+            }
+            images.remove(img.getId());
+            invalidateSnapshot();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not delete image", e);
+        }
+    }
+
+    @Override
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        index.close();
+        data.close();
+    }
+}
@@ -0,0 +1,46 @@
+package pdl.backend;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * ImageOutputStream writing straight through to an OutputStream, for the writers which never seek back such as
+ * the JPEG one. The streams of ImageIO keep everything written until they are flushed, in memory or in a temporary
+ * file, so a client would only get the first bytes once the whole image is encoded.
+ * The underlying stream is not closed.
+ */
+public class ForwardImageOutputStream extends ImageOutputStreamImpl {
+    private final OutputStream out;
+
+    public ForwardImageOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        streamPos++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        streamPos += len;
+    }
+
+    @Override
+    public int read() throws IOException {
+        throw new IOException("Write only stream");
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        throw new IOException("Write only stream");
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos != streamPos) throw new IOException("Cannot seek back in a forward stream");
+    }
+}
@@ -2,17 +2,76 @@ package pdl.backend;
 
 import org.springframework.http.MediaType;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class Image {
-  private static Long count = 0L;
+  private static final AtomicLong count = new AtomicLong();
   private final Long id;
   private String name;
-  private final byte[] data;
+  private volatile byte[] data;
+  // Set instead of data when the bytes live outside of the heap (memory-mapped file)
+  private final ByteBuffer buffer;
+  // Set when the bytes are read from this file on first access
+  private final Path path;
+  private final long size;
   public final MediaType mediaType;
+  private volatile ImageMetadata metadata;
+  private volatile boolean metadataRead;
 
   public Image(final String name, final byte[] data, final MediaType mediaType) {
-    id = count++;
+    id = count.getAndIncrement();
     this.name = name;
     this.data = data;
+    this.buffer = null;
+    this.path = null;
+    this.size = data.length;
+    this.mediaType = mediaType;
+  }
+
+  // Ids given afterwards are always greater than id, for the images restored or deleted by a store
+  static void reserveId(final long id) {
+    count.accumulateAndGet(id + 1, Math::max);
+  }
+
+  // Restore a stored image, ids given afterwards are always greater than this one
+  public Image(final long id, final String name, final ByteBuffer buffer, final MediaType mediaType) {
+    reserveId(id);
+    this.id = id;
+    this.name = name;
+    this.data = null;
+    this.buffer = buffer.asReadOnlyBuffer();
+    this.path = null;
+    this.size = buffer.capacity();
+    this.mediaType = mediaType;
+  }
+
+  // Register an image file without reading it, its bytes are loaded on first access
+  public Image(final String name, final Path path, final long size, final MediaType mediaType) {
+    id = count.getAndIncrement();
+    this.name = name;
+    this.data = null;
+    this.buffer = null;
+    this.path = path;
+    this.size = size;
+    this.mediaType = mediaType;
+  }
+
+  // Restore a registered image file, ids given afterwards are always greater than this one
+  public Image(final long id, final String name, final Path path, final long size, final MediaType mediaType) {
+    reserveId(id);
+    this.id = id;
+    this.name = name;
+    this.data = null;
+    this.buffer = null;
+    this.path = path;
+    this.size = size;
     this.mediaType = mediaType;
   }
 
@@ -28,7 +87,62 @@ public class Image {
     this.name = name;
   }
 
+  // Copies the bytes into the heap when the image is memory-mapped, prefer getInputStream
   public byte[] getData() {
+    byte[] bytes = data;
+    if (bytes != null) return bytes;
+    if (path != null) return load();
+    bytes = new byte[buffer.capacity()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  private synchronized byte[] load() {
+    if (data == null) {
+      try {
+        data = Files.readAllBytes(path);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not read " + path, e);
+      }
+    }
     return data;
   }
+
+  // Whether reading the bytes would not touch the disk
+  public boolean isLoaded() {
+    return path == null || data != null;
+  }
+
+  public InputStream getInputStream() {
+    if (buffer != null) return new ByteBufferInputStream(buffer.duplicate());
+    return new ByteArrayInputStream(getData());
+  }
+
+  // The file the bytes are read from, null if they are not read from a file
+  public Path getPath() {
+    return path;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  // Read from the image header the first time it is needed, null if the header can't be read
+  public ImageMetadata getMetadata() {
+    if (!metadataRead) {
+      try {
+        if (path != null && data == null) metadata = ImageMetadata.read(path);
+        else metadata = ImageMetadata.read(getInputStream());
+      } catch (IOException | UncheckedIOException e) {
+        metadata = null;
+      }
+      metadataRead = true;
+    }
+    return metadata;
+  }
+
+  public void setMetadata(final ImageMetadata metadata) {
+    this.metadata = metadata;
+    metadataRead = true;
+  }
 }
@@ -8,35 +8,95 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.madgag.gif.fmsware.AnimatedGifEncoder;
 import com.madgag.gif.fmsware.GifDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import javax.servlet.http.HttpServletResponse;
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 
 @RestController
 public class ImageController {
 
-    private final ImageDao imageDao;
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageController.class);
+
+    // Longest time a request waits for a job to finish
+    private static final long MAX_JOB_WAIT_SECONDS = 30;
+
+    private final Dao<Image> imageDao;
+    private final ResultCache resultCache;
+    private final BufferPool bufferPool;
+    private final AllocationMetrics allocationMetrics;
+    private final RenditionStore renditionStore;
+    private final JobQueue jobQueue;
+    private final AdmissionControl admissionControl;
+    private final ImageMetrics imageMetrics;
+    // Maximum number of row bands the algorithms split an image into, 0 for the number of processors
+    private final int parallelism;
     @Autowired
     private ObjectMapper mapper;
 
     @Autowired
-    public ImageController(ImageDao imageDao) {
+    public ImageController(Dao<Image> imageDao, ResultCache resultCache, BufferPool bufferPool, AllocationMetrics allocationMetrics,
+                           RenditionStore renditionStore, JobQueue jobQueue, AdmissionControl admissionControl,
+                           ImageMetrics imageMetrics,
+                           @Value("${images.tiling.parallelism:0}") int parallelism, @Value("${images.simd:true}") boolean simd) {
         this.imageDao = imageDao;
+        this.resultCache = resultCache;
+        this.bufferPool = bufferPool;
+        this.allocationMetrics = allocationMetrics;
+        this.renditionStore = renditionStore;
+        this.jobQueue = jobQueue;
+        this.admissionControl = admissionControl;
+        this.imageMetrics = imageMetrics;
+        this.parallelism = parallelism;
+        ByteKernels.setVectorEnabled(simd);
+    }
+
+    // Requests that would take the memory over the admission budget are refused until other requests finish
+    // Those over the whole budget are refused for good, before their pixels are decoded
+    @ExceptionHandler(AdmissionControl.RejectedException.class)
+    public ResponseEntity<?> handleRejected(AdmissionControl.RejectedException e) {
+        if (e instanceof AdmissionControl.TooLargeException) return new ResponseEntity<>(HttpStatus.PAYLOAD_TOO_LARGE);
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).header(HttpHeaders.RETRY_AFTER, "1").build();
     }
 
     // Returns the image with the corresponding id to the client
@@ -44,8 +104,34 @@ public class ImageController {
     public ResponseEntity<?> getImage(@PathVariable("id") long id) {
         Optional<Image> img = imageDao.retrieve(id);
         if (img.isEmpty()) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
-        byte[] bytes = img.get().getData();
-        return ResponseEntity.ok().contentType(img.get().mediaType).body(bytes);
+        // Streamed from the stored bytes, which may be memory-mapped, without copying them into the heap
+        return ResponseEntity.ok().contentType(img.get().mediaType).contentLength(img.get().getSize())
+                .body(new InputStreamResource(img.get().getInputStream()));
+    }
+
+    // Returns the image with the corresponding id reduced so that its longest side is size, one of the rendition sizes
+    @RequestMapping(value = "/images/{id}", method = RequestMethod.GET, produces = {MediaType.IMAGE_JPEG_VALUE, MediaType.IMAGE_PNG_VALUE, MediaType.IMAGE_GIF_VALUE}, params = {"size", "!algorithm"})
+    public ResponseEntity<?> getImageRendition(@PathVariable("id") long id, @RequestParam("size") int size) {
+        if (!renditionStore.isSize(size)) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        Optional<Image> img = imageDao.retrieve(id);
+        if (img.isEmpty()) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        try {
+            byte[] bytes = renditionStore.get(img.get(), size, this::renderRendition);
+            // Images already smaller than the rendition are sent as they are
+            if (bytes == null) return getImage(id);
+            return ResponseEntity.ok().contentType(img.get().mediaType).body(bytes);
+        } catch (AdmissionControl.RejectedException e) {
+            return handleRejected(e);
+        } catch (IOException | RuntimeException e) {
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    // Scale an image for renditionStore, waiting for its admission as long as a request
+    private byte[] renderRendition(InputStream is, MediaType mediaType, int width, int height) throws IOException {
+        Map<String, String> params = Map.of("algorithm", "scale", "width", Integer.toString(width),
+                "height", Integer.toString(height), "filter", "bicubic");
+        return executeProgram(is, mediaType, List.of(params));
     }
 
     // Delete the image with the corresponding id form imageDao
@@ -54,6 +140,8 @@ public class ImageController {
         Optional<Image> img = imageDao.retrieve(id);
         if (img.isEmpty()) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         imageDao.delete(img.get());
+        resultCache.invalidate(id);
+        renditionStore.invalidate(id);
         return new ResponseEntity<>(HttpStatus.OK);
     }
 
@@ -66,23 +154,26 @@ public class ImageController {
                 return new ResponseEntity<>(HttpStatus.UNSUPPORTED_MEDIA_TYPE);
             }
             if (name == null) name = file.getOriginalFilename();
-            imageDao.create(new Image(name, file.getBytes(), mediaType));
+            Image image = new Image(name, file.getBytes(), mediaType);
+            imageDao.create(image);
+            // Generated from the stored image, which may be memory-mapped rather than a copy of the upload
+            imageDao.retrieve(image.getId()).ifPresent(stored -> renditionStore.generate(stored, this::renderRendition));
         } catch (IOException e) {
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
         }
         return new ResponseEntity<>(HttpStatus.CREATED);
     }
 
-    //Apply the algorithm in params to the posted image and send it back
+    //Apply the algorithm in params to the posted image and send it back, as it is encoded
     @RequestMapping(value = "/images", method = RequestMethod.POST, produces = {MediaType.IMAGE_JPEG_VALUE, MediaType.IMAGE_PNG_VALUE}, params = {"algorithm"})
-    public ResponseEntity<?> modifyPostedImage(@RequestParam("file") MultipartFile file, @RequestParam Map<String, String> params) {
+    public ResponseEntity<?> modifyPostedImage(@RequestParam("file") MultipartFile file, @RequestParam Map<String, String> params,
+                                               HttpServletResponse response) {
         try {
             MediaType mediaType = MediaType.parseMediaType(Objects.requireNonNull(file.getContentType()));
             if (!(mediaType.equals(MediaType.IMAGE_JPEG) || mediaType.equals(MediaType.IMAGE_PNG) || mediaType.equals(MediaType.IMAGE_GIF))) {
                 return new ResponseEntity<>(HttpStatus.UNSUPPORTED_MEDIA_TYPE);
             }
-            byte[] bytes = executeProgram(file.getBytes(), mediaType, params);
-            return ResponseEntity.ok().contentType(mediaType).body(bytes);
+            return send(mediaType, response, () -> transform(file.getInputStream(), mediaType, List.of(params), admissionControl.getRequestWait()), null);
         } catch (IOException | NullPointerException e) {
             System.out.println(e);
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
@@ -92,31 +183,58 @@ public class ImageController {
     //Returns a JSON variable containing information from all the image in imageDao
     @RequestMapping(value = "/images", method = RequestMethod.GET, produces = "application/json; charset=UTF-8")
     @ResponseBody
-    public ArrayNode getImageList() throws IOException {
+    public ArrayNode getImageList() {
         ArrayNode nodes = mapper.createArrayNode();
         for (Image image : imageDao.retrieveAll()) {
             ObjectNode node = mapper.createObjectNode();
             node.put("id", image.getId());
             node.put("name", image.getName());
             node.put("type", image.mediaType.toString());
-            try (ByteArrayInputStream is = new ByteArrayInputStream(image.getData())) {
-                BufferedImage bImg = ImageIO.read(is);
-                Planar<GrayU8> planar = ConvertBufferedImage.convertFromPlanar(bImg, null, true, GrayU8.class);
-                node.put("size", String.format("%d*%d*%d", planar.width, planar.height, planar.getNumBands()));
-                nodes.add(node);
+            ImageMetadata metadata = image.getMetadata();
+            if (metadata == null) {
+                LOGGER.warn("Image {} ({}) cannot be read, left out of the list", image.getId(), image.getName());
+                continue;
             }
+            node.put("size", metadata.toString());
+            nodes.add(node);
         }
         return nodes;
     }
 
     // Returns the image with the corresponding id after it have been modified by the algorithm
+    // With preview, one of the rendition sizes, the algorithm is applied to the rendition instead of the full image
     @RequestMapping(value = {"/images/{id}"}, method = RequestMethod.GET, produces = {MediaType.IMAGE_JPEG_VALUE, MediaType.IMAGE_PNG_VALUE, MediaType.IMAGE_GIF_VALUE}, params = {"algorithm"})
-    public ResponseEntity<?> getModifiedImage(@PathVariable("id") long id, @RequestParam HashMap<String, String> params) {
+    public ResponseEntity<?> getModifiedImage(@PathVariable("id") long id, @RequestParam HashMap<String, String> params,
+                                              HttpServletResponse response) {
         Optional<Image> img = imageDao.retrieve(id);
         if (img.isEmpty()) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         try {
-            byte[] bytes = executeProgram(img.get().getData(), img.get().mediaType, params);
-            return ResponseEntity.ok().contentType(img.get().mediaType).body(bytes);
+            // The stored bytes never change, so a result computed once can be served again
+            // Identical requests arriving while it is computed share the result
+            ResultCache.Key key = new ResultCache.Key(id, params);
+            String preview = params.remove("preview");
+            return sendCached(key, img.get().mediaType, response, () -> transform(img.get(), List.of(params), preview));
+        } catch (IOException e) {
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        } catch (NumberFormatException | ImageControllerException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    // Returns the image with the corresponding id after it have been modified by every algorithm of the JSON list, in order
+    // With preview, the algorithms are applied to the rendition of that size instead, for an interactive display
+    @RequestMapping(value = "/images/{id}/pipeline", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE, produces = {MediaType.IMAGE_JPEG_VALUE, MediaType.IMAGE_PNG_VALUE, MediaType.IMAGE_GIF_VALUE})
+    public ResponseEntity<?> getPipelineImage(@PathVariable("id") long id, @RequestBody List<Map<String, String>> steps,
+                                              @RequestParam(name = "preview", required = false) String preview,
+                                              HttpServletResponse response) {
+        Optional<Image> img = imageDao.retrieve(id);
+        if (img.isEmpty()) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        if (steps.isEmpty()) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        try {
+            Map<String, String> params = pipelineParams(steps);
+            if (preview != null) params.put("preview", preview);
+            ResultCache.Key key = new ResultCache.Key(id, params);
+            return sendCached(key, img.get().mediaType, response, () -> transform(img.get(), steps, preview));
         } catch (IOException e) {
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
         } catch (NumberFormatException | ImageControllerException e) {
@@ -124,6 +242,127 @@ public class ImageController {
         }
     }
 
+    // Queue the algorithms of the JSON list for the image with the corresponding id, and return the id of the job
+    @RequestMapping(value = "/images/{id}/jobs", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE, produces = "application/json; charset=UTF-8")
+    public ResponseEntity<?> submitPipelineJob(@PathVariable("id") long id, @RequestBody List<Map<String, String>> steps) {
+        Optional<Image> img = imageDao.retrieve(id);
+        if (img.isEmpty()) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        if (steps.isEmpty()) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        try {
+            ResultCache.Key key = new ResultCache.Key(id, pipelineParams(steps));
+            Image image = img.get();
+            AdmissionControl.Ticket ticket = admit(image.getInputStream(), image.mediaType, steps);
+            return submitJob(image.mediaType, ticket, () -> resultCache.getOrCompute(key,
+                    () -> executeProgram(image.getInputStream(), image.mediaType, steps, ticket)));
+        } catch (IOException e) {
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        } catch (ImageControllerException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    // Queue the algorithm in params for the posted image, and return the id of the job
+    @RequestMapping(value = "/jobs", method = RequestMethod.POST, produces = "application/json; charset=UTF-8", params = {"algorithm"})
+    public ResponseEntity<?> submitPostedImageJob(@RequestParam("file") MultipartFile file, @RequestParam Map<String, String> params) {
+        try {
+            MediaType mediaType = MediaType.parseMediaType(Objects.requireNonNull(file.getContentType()));
+            if (!(mediaType.equals(MediaType.IMAGE_JPEG) || mediaType.equals(MediaType.IMAGE_PNG) || mediaType.equals(MediaType.IMAGE_GIF))) {
+                return new ResponseEntity<>(HttpStatus.UNSUPPORTED_MEDIA_TYPE);
+            }
+            // The uploaded file is deleted once the request is over
+            byte[] bytes = file.getBytes();
+            AdmissionControl.Ticket ticket = admit(new ByteArrayInputStream(bytes), mediaType, List.of(params));
+            return submitJob(mediaType, ticket, () -> executeProgram(new ByteArrayInputStream(bytes), mediaType, List.of(params), ticket));
+        } catch (IOException e) {
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    // Reserve the estimated cost of steps on the encoded image, read from its header, for a job
+    // Refused like a request when the budget is not available in time, rather than once the job runs
+    private AdmissionControl.Ticket admit(InputStream is, MediaType mediaType, List<Map<String, String>> steps) throws IOException {
+        try (is) {
+            return admissionControl.admit(cost(is, mediaType, steps), admissionControl.getRequestWait());
+        }
+    }
+
+    // Queue task, answering 503 when the queue is full, the budget of ticket is held until the task is over
+    private ResponseEntity<?> submitJob(MediaType mediaType, AdmissionControl.Ticket ticket, Callable<byte[]> task) {
+        JobQueue.Job job;
+        try {
+            job = jobQueue.submit(mediaType, () -> {
+                try (ticket) {
+                    return task.call();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            ticket.close();
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).location(URI.create("/jobs/" + job.getId())).body(jobNode(job));
+    }
+
+    // Returns the status of the job with the corresponding id, waiting at most wait seconds for the job to finish
+    // The request thread is released while waiting, the answer is sent by the thread finishing the job
+    @RequestMapping(value = "/jobs/{jobId}", method = RequestMethod.GET, produces = "application/json; charset=UTF-8")
+    public DeferredResult<ResponseEntity<?>> getJob(@PathVariable("jobId") long jobId, @RequestParam(name = "wait", defaultValue = "0") long wait) {
+        Optional<JobQueue.Job> job = jobQueue.retrieve(jobId);
+        long timeout = TimeUnit.SECONDS.toMillis(Math.max(0, Math.min(wait, MAX_JOB_WAIT_SECONDS)));
+        DeferredResult<ResponseEntity<?>> result = new DeferredResult<>(timeout, () -> ResponseEntity.ok(jobNode(job.get())));
+        if (job.isEmpty()) {
+            result.setResult(new ResponseEntity<>(HttpStatus.NOT_FOUND));
+        } else if (timeout == 0) {
+            result.setResult(ResponseEntity.ok(jobNode(job.get())));
+        } else {
+            job.get().whenFinished(() -> result.setResult(ResponseEntity.ok(jobNode(job.get()))));
+        }
+        return result;
+    }
+
+    // Returns the result of the job with the corresponding id, 409 if it is not finished yet
+    @RequestMapping(value = "/jobs/{jobId}/result", method = RequestMethod.GET, produces = {MediaType.IMAGE_JPEG_VALUE, MediaType.IMAGE_PNG_VALUE, MediaType.IMAGE_GIF_VALUE})
+    public ResponseEntity<?> getJobResult(@PathVariable("jobId") long jobId) {
+        Optional<JobQueue.Job> job = jobQueue.retrieve(jobId);
+        if (job.isEmpty()) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        switch (job.get().getStatus()) {
+            case DONE:
+                return ResponseEntity.ok().contentType(job.get().getMediaType()).body(job.get().getResult());
+            case FAILED:
+                return new ResponseEntity<>(jobErrorStatus(job.get().getError()));
+            default:
+                return new ResponseEntity<>(HttpStatus.CONFLICT);
+        }
+    }
+
+    // Same status as the synchronous requests would have answered
+    private static HttpStatus jobErrorStatus(Throwable error) {
+        if (error instanceof ImageControllerException || error instanceof NumberFormatException) return HttpStatus.BAD_REQUEST;
+        if (error instanceof AdmissionControl.TooLargeException) return HttpStatus.PAYLOAD_TOO_LARGE;
+        if (error instanceof AdmissionControl.RejectedException) return HttpStatus.TOO_MANY_REQUESTS;
+        return HttpStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    private ObjectNode jobNode(JobQueue.Job job) {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("id", job.getId());
+        node.put("status", job.getStatus().toString());
+        if (job.getStatus() == JobQueue.Status.FAILED)
+            node.put("error", jobErrorStatus(job.getError()).value());
+        return node;
+    }
+
+    // Flatten the parameters of a pipeline into a single map, each name being prefixed by the index of its step
+    static Map<String, String> pipelineParams(List<Map<String, String>> steps) {
+        Map<String, String> params = new HashMap<>();
+        for (int i = 0; i < steps.size(); i++) {
+            if (steps.get(i) == null) throw new ImageControllerException("Missing algorithm");
+            for (Map.Entry<String, String> param : steps.get(i).entrySet()) {
+                params.put(i + "." + param.getKey(), param.getValue());
+            }
+        }
+        return params;
+    }
+
     // DEBUG ONLY : Print the parameters to the console
     void printParams(Map<String, String> params) {
         for (String key : params.keySet()) {
@@ -131,57 +370,434 @@ public class ImageController {
         }
     }
 
+    /**
+     * An image transformed by every algorithm of a request, waiting to be encoded.
+     * Its images from bufferPool and the budget reserved from admissionControl are held until it is closed.
+     */
+    private final class Transformed implements AutoCloseable {
+        private final MediaType mediaType;
+        private final AdmissionControl.Ticket ticket;
+        private final List<BufferedImage> pooledImages = new ArrayList<>(2);
+        private final List<Planar<GrayU8>> pooledPlanars = new ArrayList<>(2);
+        // Still image
+        private BufferedImage image;
+        // GIF, whose frames are already quantized and compressed
+        private GifDecoder gif;
+        private AnimatedGifEncoder gifEncoder;
+        private AnimatedGifEncoder.Frame[] frames;
+        // Expected size of the encoded image, to size its buffer
+        private int expectedSize;
+
+        private Transformed(MediaType mediaType, AdmissionControl.Ticket ticket) {
+            this.mediaType = mediaType;
+            this.ticket = ticket;
+        }
+
+        /**
+         * Encode the image into out, the first bytes are written before the whole image is encoded.
+         *
+         * @param out The stream written to, not closed
+         * @throws IOException if out could not be written
+         */
+        void writeTo(OutputStream out) throws IOException {
+            long start = System.nanoTime();
+            if (gifEncoder != null) {
+                gifEncoder.start(out);
+                for (int i = 0; i < frames.length; i++) {
+                    gifEncoder.setDelay(gif.getDelay(i));
+                    if (!gifEncoder.addFrame(frames[i])) throw new IOException("Could not write frame " + i);
+                }
+                if (!gifEncoder.finish()) throw new IOException("Could not end the GIF");
+            } else if (mediaType.equals(MediaType.IMAGE_JPEG)) {
+                try (ImageOutputStream ios = new ForwardImageOutputStream(out)) {
+                    write(image, "jpeg", ios);
+                }
+            } else if (mediaType.equals(MediaType.IMAGE_PNG)) {
+                // The PNG writer seeks back to the length of each chunk, and flushes the chunk once it is written
+                try (ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+                    write(image, "png", ios);
+                }
+            }
+            imageMetrics.recordEncode(mediaType.getSubtype(), System.nanoTime() - start);
+        }
+
+        @Override
+        public void close() {
+            pooledPlanars.forEach(bufferPool::releasePlanar);
+            pooledImages.forEach(bufferPool::releaseImage);
+            pooledPlanars.clear();
+            pooledImages.clear();
+            ticket.close();
+        }
+    }
+
+    // Same as ImageIO.write, on a stream chosen by the caller instead of one caching the whole image
+    private static void write(BufferedImage image, String format, ImageOutputStream ios) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        try {
+            writer.setOutput(ios);
+            writer.write(image);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // Returns image after treatment by every algorithm of steps
+    // When preview is set, the steps are applied to the rendition of that size, their lengths in pixels being scaled down
+    private Transformed transform(Image image, List<Map<String, String>> steps, String preview) throws IOException, ImageControllerException {
+        long wait = admissionControl.getRequestWait();
+        if (preview == null) return transform(image.getInputStream(), image.mediaType, steps, wait);
+        int size = Integer.parseInt(preview);
+        if (!renditionStore.isSize(size)) throw new ImageControllerException("Unknown preview size");
+        byte[] rendition = renditionStore.get(image, size, this::renderRendition);
+        // The image is already no larger than a preview
+        if (rendition == null) return transform(image.getInputStream(), image.mediaType, steps, wait);
+        ImageMetadata metadata = image.getMetadata();
+        double factor = (double) size / Math.max(metadata.getWidth(), metadata.getHeight());
+        return transform(new ByteArrayInputStream(rendition), image.mediaType, Preview.scaleSteps(steps, factor), wait);
+    }
+
     // Returns a byte array of img after treatment by the algorithm
-    byte[] executeProgram(byte[] bytes, MediaType mediaType, Map<String, String> params) throws IOException, ImageControllerException {
-        InputStream is = new ByteArrayInputStream(bytes);
-        BufferedImage bImg;
-        Planar<GrayU8> input;
-        Planar<GrayU8> output;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    byte[] executeProgram(InputStream is, MediaType mediaType, Map<String, String> params) throws IOException, ImageControllerException {
+        return executeProgram(is, mediaType, List.of(params));
+    }
+
+    // Returns a byte array of img after treatment by every algorithm of steps, for the results which are kept
+    // The encoding buffer comes from bufferPool and goes back to it once the result is copied out
+    byte[] executeProgram(InputStream is, MediaType mediaType, List<Map<String, String>> steps) throws IOException, ImageControllerException {
+        return executeProgram(is, mediaType, steps, admissionControl.newTicket());
+    }
+
+    // Same as executeProgram, the cost being reserved on ticket, which may already hold an estimate of it
+    private byte[] executeProgram(InputStream is, MediaType mediaType, List<Map<String, String>> steps, AdmissionControl.Ticket ticket) throws IOException, ImageControllerException {
+        long allocatedBefore = allocationMetrics.currentThreadAllocatedBytes();
+        try (Transformed transformed = transform(is, mediaType, steps, ticket, admissionControl.getRequestWait())) {
+            ByteArrayOutputStream baos = bufferPool.acquireStream(transformed.expectedSize);
+            transformed.writeTo(baos);
+            byte[] bytes = baos.toByteArray();
+            bufferPool.releaseStream(baos);
+            return bytes;
+        } finally {
+            allocationMetrics.recordRequest(allocatedBefore);
+        }
+    }
+
+    // Send the result of transformation in the response, sharing it with the identical requests through resultCache
+    // A result already cached or computed by an identical request is sent as a whole, a new one is streamed
+    // The leader only drops a result too large to be cached when nobody waited for it before it went past the size of
+    // an entry, the requests which joined afterwards then join a new flight so that one of them computes it again
+    private ResponseEntity<?> sendCached(ResultCache.Key key, MediaType mediaType, HttpServletResponse response,
+                                         Transformation transformation) throws IOException, ImageControllerException {
+        byte[] bytes = resultCache.get(key);
+        if (bytes != null) return ResponseEntity.ok().contentType(mediaType).body(bytes);
+        ResultCache.Flight flight = resultCache.join(key);
+        while (!flight.isLeader()) {
+            bytes = flight.await();
+            if (bytes != null) return ResponseEntity.ok().contentType(mediaType).body(bytes);
+            flight = resultCache.join(key);
+        }
+        return send(mediaType, response, transformation, flight);
+    }
+
+    /**
+     * Transform an image.
+     */
+    @FunctionalInterface
+    private interface Transformation {
+        Transformed transform() throws IOException, ImageControllerException;
+    }
+
+    // Send the result of transformation in the response, encoded as it is written
+    // Its length is unknown until it is encoded, so it is sent in chunks and the encoding buffer is never whole in memory
+    // When flight is set, a copy of the result is kept for it in memory up to the size of an entry of resultCache, then
+    // in a temporary file if identical requests wait for it, so that they get the result without it being cached
+    // The status is only sent after the transformation, so that its errors are answered as usual, but an encoding
+    // error after the first bytes can only abort the response, which is done by throwing an UncheckedIOException
+    private ResponseEntity<?> send(MediaType mediaType, HttpServletResponse response, Transformation transformation,
+                                   ResultCache.Flight flight) throws IOException, ImageControllerException {
+        long allocatedBefore = allocationMetrics.currentThreadAllocatedBytes();
+        Transformed transformed;
+        try {
+            transformed = transformation.transform();
+        } catch (IOException | RuntimeException | Error e) {
+            if (flight != null) flight.fail(e);
+            allocationMetrics.recordRequest(allocatedBefore);
+            throw e;
+        }
+        ByteArrayOutputStream capture = (flight != null) ? bufferPool.acquireStream(transformed.expectedSize) : null;
+        byte[] bytes = null;
+        try (transformed) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(mediaType.toString());
+            OutputStream out = response.getOutputStream();
+            if (capture != null) {
+                try (CapturingOutputStream capturing = new CapturingOutputStream(out, capture,
+                        resultCache.getMaxEntryBytes(), flight::hasFollowers)) {
+                    transformed.writeTo(capturing);
+                    bytes = capturing.getCaptured();
+                }
+            } else {
+                transformed.writeTo(out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            if (!response.isCommitted()) {
+                response.reset();
+                throw e;
+            }
+            throw new UncheckedIOException(e);
+        } finally {
+            // The waiting requests join a new flight when the result is not kept
+            if (flight != null) flight.complete(bytes);
+            bufferPool.releaseStream(capture);
+            allocationMetrics.recordRequest(allocatedBefore);
+        }
+        // The response is already written
+        return null;
+    }
+
+    // Returns img after treatment by every algorithm of steps, the image is decoded once and waits to be encoded
+    // Its images come from bufferPool, and its estimated cost is reserved from admissionControl once the header is
+    // read, waiting at most wait milliseconds, both are given back when the result is closed
+    private Transformed transform(InputStream is, MediaType mediaType, List<Map<String, String>> steps, long wait) throws IOException, ImageControllerException {
+        return transform(is, mediaType, steps, admissionControl.newTicket(), wait);
+    }
+
+    private Transformed transform(InputStream is, MediaType mediaType, List<Map<String, String>> steps, AdmissionControl.Ticket ticket, long wait) throws IOException, ImageControllerException {
+        Transformed transformed = new Transformed(mediaType, ticket);
         try {
             if (mediaType.equals(MediaType.IMAGE_GIF)) {
+                // Read first to count the frames, the decoder buffers the whole file anyway
+                byte[] gifBytes = is.readAllBytes();
+                ticket.reserve(gifCost(gifBytes, steps), wait);
+                long start = System.nanoTime();
                 GifDecoder gif = new GifDecoder();
-                gif.read(is);
+                gif.read(new ByteArrayInputStream(gifBytes));
+                int frameCount = gif.getFrameCount();
+                long pixels = (frameCount > 0) ? (long) frameCount * gif.getFrame(0).getWidth() * gif.getFrame(0).getHeight() : 0;
+                imageMetrics.recordDecode(mediaType.getSubtype(), pixels, System.nanoTime() - start);
+                // Frames are filtered, then quantized and compressed concurrently, only the writing is sequential
+                BufferedImage[] frames = new BufferedImage[frameCount];
+                forEachFrame(frameCount, i -> {
+                    long frameStart = System.nanoTime();
+                    frames[i] = treatFrame(gif.getFrame(i), steps);
+                    imageMetrics.recordFrame("filter", System.nanoTime() - frameStart);
+                });
                 AnimatedGifEncoder giff = new AnimatedGifEncoder();
                 giff.setRepeat(0);
-                giff.start(baos);
-                for (int i = 0; i < gif.getFrameCount(); i++) {
-                    bImg = gif.getFrame(i);
-                    giff.setDelay(gif.getDelay(i));
-                    input = ConvertBufferedImage.convertFromPlanar(bImg, null, true, GrayU8.class);
-                    input.reorderBands(1, 2, 3, 0);
-                    output = input.createSameShape();
-                    if (ImageModifier.treatInput(input, output, params)) {
-                        output.reorderBands(3, 0, 1, 2);
-                        bImg = new BufferedImage(output.width, output.height, bImg.getType());
-                        ConvertBufferedImage.convertTo(output, bImg, true);
-                    } else {
-                        input.reorderBands(3, 0, 1, 2);
-                        ConvertBufferedImage.convertTo(input, bImg, true);
-                    }
-                    giff.addFrame(bImg);
+                if (frameCount > 0) {
+                    giff.setSize(frames[0].getWidth(), frames[0].getHeight());
+                    transformed.expectedSize = frames[0].getWidth() * frames[0].getHeight();
                 }
+                AnimatedGifEncoder.Frame[] encoded = new AnimatedGifEncoder.Frame[frameCount];
+                forEachFrame(frameCount, i -> {
+                    long frameStart = System.nanoTime();
+                    encoded[i] = giff.prepareFrame(frames[i]);
+                    imageMetrics.recordFrame("quantize", System.nanoTime() - frameStart);
+                    // Frames left in place belong to the decoder
+                    if (frames[i] != gif.getFrame(i)) bufferPool.releaseImage(frames[i]);
+                    frames[i] = null;
+                });
+                transformed.gif = gif;
+                transformed.gifEncoder = giff;
+                transformed.frames = encoded;
             } else {
-                bImg = ImageIO.read(is);
-                input = ConvertBufferedImage.convertFromPlanar(bImg, null, true, GrayU8.class);
-                output = input.createSameShape();
-                if (ImageModifier.treatInput(input, output, params)) {
-                    bImg = new BufferedImage(output.width, output.height, bImg.getType());
-                    ConvertBufferedImage.convertTo(output, bImg, true);
-                } else
-                    ConvertBufferedImage.convertTo(input, bImg, true);
-                if (mediaType.equals(MediaType.IMAGE_JPEG))
-                    ImageIO.write(bImg, "jpeg", baos);
-                else if (mediaType.equals(MediaType.IMAGE_PNG))
-                    ImageIO.write(bImg, "png", baos);
+                long start = System.nanoTime();
+                BufferedImage bImg = readImage(is, steps, ticket, wait);
+                if (bImg == null) throw new IOException("No reader for the image");
+                imageMetrics.recordDecode(mediaType.getSubtype(), (long) bImg.getWidth() * bImg.getHeight(), System.nanoTime() - start);
+                BufferedImage decoded = bImg;
+                Planar<GrayU8> input = ConvertBufferedImage.convertFromPlanar(bImg, acquirePlanar(bImg), true, GrayU8.class);
+                Planar<GrayU8> spare = bufferPool.acquirePlanar(input.width, input.height, input.getNumBands());
+                Planar<GrayU8> output = TileExecutor.withMaxParallelism(parallelism,
+                        () -> ImageModifier.treatPipeline(input, spare, steps, imageMetrics::recordStep));
+                if (output != input)
+                    bImg = bufferPool.acquireImage(output.width, output.height, bImg.getType());
+                ConvertBufferedImage.convertTo(output, bImg, true);
+                // Only pooled once the filters succeeded: a failing filter may leave band tasks still writing into its images
+                transformed.pooledPlanars.addAll(List.of(input, spare));
+                transformed.pooledImages.add(decoded);
+                if (bImg != decoded) transformed.pooledImages.add(bImg);
+                transformed.image = bImg;
+                transformed.expectedSize = output.width * output.height;
             }
-
-            bytes = baos.toByteArray();
-            return bytes;
+            return transformed;
         } catch (IOException e) {
+            transformed.close();
             throw new IOException("Could not convert image");
+        } catch (ImageControllerException e) {
+            transformed.close();
+            imageMetrics.recordError(e);
+            throw e;
         } catch (NumberFormatException e) {
-            throw new ImageControllerException("Illegal argument format");
+            transformed.close();
+            ImageControllerException error = new ImageControllerException("Illegal argument format");
+            imageMetrics.recordError(error);
+            throw error;
+        } catch (RuntimeException | Error e) {
+            transformed.close();
+            throw e;
+        }
+    }
+
+    // Same as ImageIO.read, but decodes into an image from bufferPool when its type allows it
+    // When steps start by reducing the image, only the rows and columns the reduction needs are decoded
+    // The cost of steps on the decoded image is reserved on ticket before the pixels are decoded
+    private BufferedImage readImage(InputStream is, List<Map<String, String>> steps, AdmissionControl.Ticket ticket, long wait) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(is)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int width = reader.getWidth(0), height = reader.getHeight(0);
+                int subsampling = decodeSubsampling(width, height, steps);
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    width = (width + subsampling - 1) / subsampling;
+                    height = (height + subsampling - 1) / subsampling;
+                }
+                // The reader would create an image of its first type
+                ImageTypeSpecifier specifier = reader.getImageTypes(0).next();
+                ticket.reserve(decodedCost(specifier, width, height, steps), wait);
+                int type = specifier.getBufferedImageType();
+                if (BufferPool.isPoolable(type))
+                    param.setDestination(bufferPool.acquireImage(width, height, type));
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Estimated cost of steps on an image decoded to width x height pixels of the type of specifier
+    private static AdmissionControl.Cost decodedCost(ImageTypeSpecifier specifier, int width, int height, List<Map<String, String>> steps) {
+        int numBands = (specifier.getColorModel() instanceof IndexColorModel) ? 3 : specifier.getNumBands();
+        return AdmissionControl.estimate(width, height, specifier.getNumBands(), numBands, 1, steps);
+    }
+
+    // Estimated cost of steps on the encoded image, the same as transform reserves, from the header only
+    private static AdmissionControl.Cost cost(InputStream is, MediaType mediaType, List<Map<String, String>> steps) throws IOException {
+        if (mediaType.equals(MediaType.IMAGE_GIF)) return gifCost(is.readAllBytes(), steps);
+        try (ImageInputStream iis = ImageIO.createImageInputStream(is)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) return new AdmissionControl.Cost(0, 0);
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int width = reader.getWidth(0), height = reader.getHeight(0);
+                int subsampling = decodeSubsampling(width, height, steps);
+                if (subsampling > 1) {
+                    width = (width + subsampling - 1) / subsampling;
+                    height = (height + subsampling - 1) / subsampling;
+                }
+                return decodedCost(reader.getImageTypes(0).next(), width, height, steps);
+            } catch (IOException | RuntimeException e) {
+                // Left for the job to reject
+                return new AdmissionControl.Cost(0, 0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Estimated cost of steps on every frame of a GIF, whose frames are decoded to the size of the logical screen
+    private static AdmissionControl.Cost gifCost(byte[] gifBytes, List<Map<String, String>> steps) throws IOException {
+        if (gifBytes.length < 10) return new AdmissionControl.Cost(0, 0);
+        int width = (gifBytes[6] & 0xFF) | (gifBytes[7] & 0xFF) << 8;
+        int height = (gifBytes[8] & 0xFF) | (gifBytes[9] & 0xFF) << 8;
+        int frames = 1;
+        try (ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(gifBytes))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    // Only skips over the compressed data of each frame
+                    reader.setInput(iis, false, true);
+                    frames = reader.getNumImages(true);
+                } catch (IOException | IllegalStateException e) {
+                    // Left for the decoder to reject
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+        return AdmissionControl.estimate(width, height, 4, 4, frames, steps);
+    }
+
+    // The subsampling of the decoded image allowed by the first scale of steps, only when it picks the same pixels
+    // Per-pixel color operations before it give the same pixels whether the image is subsampled before or after them
+    static int decodeSubsampling(int width, int height, List<Map<String, String>> steps) {
+        try {
+            for (Map<String, String> params : steps) {
+                if (params == null || params.get("algorithm") == null) return 1;
+                if (params.get("algorithm").equals("scale")) {
+                    if (!params.containsKey("width") || !params.containsKey("height")) return 1;
+                    return Resampler.sourceSubsampling(width, height, Integer.parseInt(params.get("width")),
+                            Integer.parseInt(params.get("height")), Resampler.Filter.parse(params.get("filter")));
+                }
+                if (ColorTransform.forParams(params) == null) return 1;
+            }
+        } catch (NumberFormatException | ImageControllerException e) {
+            // Left for the algorithms to reject
+        }
+        return 1;
+    }
+
+    // Returns an image from bufferPool with the number of bands BoofCV converts bImg to
+    private Planar<GrayU8> acquirePlanar(BufferedImage bImg) {
+        int numBands = (bImg.getColorModel() instanceof IndexColorModel) ? 3 : bImg.getRaster().getNumBands();
+        return bufferPool.acquirePlanar(bImg.getWidth(), bImg.getHeight(), numBands);
+    }
+
+    // Returns a frame of a GIF after treatment by every algorithm of steps
+    private BufferedImage treatFrame(BufferedImage bImg, List<Map<String, String>> steps) {
+        Planar<GrayU8> input = ConvertBufferedImage.convertFromPlanar(bImg, acquirePlanar(bImg), true, GrayU8.class);
+        input.reorderBands(1, 2, 3, 0);
+        Planar<GrayU8> spare = bufferPool.acquirePlanar(input.width, input.height, input.getNumBands());
+        // Runs on a thread of the pool, which does not have the limit of the request
+        Planar<GrayU8> output = TileExecutor.withMaxParallelism(parallelism,
+                () -> ImageModifier.treatPipeline(input, spare, steps, imageMetrics::recordStep));
+        output.reorderBands(3, 0, 1, 2);
+        if (output != input)
+            bImg = bufferPool.acquireImage(output.width, output.height, bImg.getType());
+        ConvertBufferedImage.convertTo(output, bImg, true);
+        bufferPool.releasePlanar(input);
+        bufferPool.releasePlanar(spare);
+        return bImg;
+    }
+
+    @FunctionalInterface
+    private interface FrameTask {
+        void apply(int frame) throws IOException;
+    }
+
+    // Run task on every frame on the shared pool, the first exception thrown by a frame is rethrown
+    private static void forEachFrame(int frameCount, FrameTask task) throws IOException {
+        List<RecursiveAction> tasks = new ArrayList<>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            int frame = i;
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    try {
+                        task.apply(frame);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        }
+        try {
+            TileExecutor.getPool().invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
     }
 }
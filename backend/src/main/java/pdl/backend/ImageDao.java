@@ -1,6 +1,9 @@
 package pdl.backend;
 
 import org.apache.commons.io.FilenameUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Repository;
 
@@ -8,15 +11,25 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.StreamSupport;
 
 @Repository
+@ConditionalOnProperty(name = "images.store", havingValue = "memory", matchIfMissing = true)
 public class ImageDao implements Dao<Image> {
 
-    private final Map<Long, Image> images = new HashMap<>();
+    // Sorted by id so that listings keep the order in which images were added
+    private final ConcurrentNavigableMap<Long, Image> images = new ConcurrentSkipListMap<>();
+    // Immutable copy of images.values(), rebuilt on the first read after a modification
+    private volatile List<Image> snapshot;
 
-    public ImageDao() throws IOException {
+    @Autowired
+    public ImageDao(@Value("${images.preload-threads:1}") int preloadThreads) throws IOException {
         this("../");
+        preloadMetadata(preloadThreads);
     }
 
     public ImageDao(String imagesDirectoryPath) throws IOException {
@@ -48,9 +61,8 @@ public class ImageDao implements Dao<Image> {
                 } else {
                     MediaType mediaType = getMediaTypeFromExtension(FilenameUtils.getExtension(filePath.toString()));
                     if (mediaType != null) {
-                        byte[] fileContent;
-                        fileContent = Files.readAllBytes(filePath);
-                        Image img = new Image(filePath.getFileName().toString(), fileContent, mediaType);
+                        // Only registered, the file is read the first time its bytes or its metadata are needed
+                        Image img = new Image(filePath.getFileName().toString(), filePath, Files.size(filePath), mediaType);
                         images.put(img.getId(), img);
                     }
                 }
@@ -60,6 +72,25 @@ public class ImageDao implements Dao<Image> {
         }
     }
 
+    /**
+     * Read the header of every registered image in the background, so that the first listing does not have to.
+     * The bytes themselves are still loaded on first access.
+     *
+     * @param threads Number of loader threads, 0 to disable
+     */
+    private void preloadMetadata(int threads) {
+        if (threads <= 0) return;
+        ExecutorService loader = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "image-metadata-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Image img : images.values()) {
+            loader.execute(img::getMetadata);
+        }
+        loader.shutdown();
+    }
+
     @Override
     public Optional<Image> retrieve(final long id) {
         return Optional.ofNullable(images.get(id));
@@ -67,12 +98,30 @@ public class ImageDao implements Dao<Image> {
 
     @Override
     public List<Image> retrieveAll() {
-        return new ArrayList<>(images.values());
+        List<Image> current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = List.copyOf(images.values());
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    // Must be called after every modification of images, a snapshot built concurrently is discarded
+    private synchronized void invalidateSnapshot() {
+        snapshot = null;
     }
 
     @Override
     public void create(final Image img) {
+        // Read the image header once so that listings never have to decode the image
+        img.getMetadata();
         images.put(img.getId(), img);
+        invalidateSnapshot();
     }
 
     @Override
@@ -83,5 +132,6 @@ public class ImageDao implements Dao<Image> {
     @Override
     public void delete(final Image img) {
         images.remove(img.getId());
+        invalidateSnapshot();
     }
 }
@@ -0,0 +1,91 @@
+package pdl.backend;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+public class ImageMetadata {
+    private final int width;
+    private final int height;
+    private final int numBands;
+
+    public ImageMetadata(final int width, final int height, final int numBands) {
+        this.width = width;
+        this.height = height;
+        this.numBands = numBands;
+    }
+
+    /**
+     * Read the dimensions and the band count of an image from its header only, without decoding the pixels.
+     * The band count is the one the image would have once converted to a Planar by BoofCV:
+     * indexed images (GIF, paletted PNG) are expanded to 3 bands.
+     *
+     * @param is The encoded image
+     * @return the metadata of the image, or null if no ImageReader can read its header
+     */
+    public static ImageMetadata read(InputStream is) throws IOException {
+        // Cached in memory: the header is small and ImageIO would otherwise spill the stream into a temporary file
+        try (ImageInputStream iis = new MemoryCacheImageInputStream(is)) {
+            return read(iis);
+        }
+    }
+
+    /**
+     * Same as read(InputStream) for an image file, only the header of the file is read.
+     *
+     * @param path The image file
+     * @return the metadata of the image, or null if no ImageReader can read its header
+     */
+    public static ImageMetadata read(Path path) throws IOException {
+        try (ImageInputStream iis = new FileImageInputStream(path.toFile())) {
+            return read(iis);
+        }
+    }
+
+    private static ImageMetadata read(ImageInputStream iis) {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) return null;
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(iis, true, true);
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            if (!types.hasNext()) return null;
+            ImageTypeSpecifier type = types.next();
+            int numBands = (type.getColorModel() instanceof IndexColorModel) ? 3 : type.getNumBands();
+            return new ImageMetadata(reader.getWidth(0), reader.getHeight(0), numBands);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getNumBands() {
+        return numBands;
+    }
+
+    public long getTotalPixels() {
+        return (long) width * height;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d*%d*%d", width, height, numBands);
+    }
+}
@@ -0,0 +1,104 @@
+package pdl.backend;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters of the image processing, exported with the other metrics of the application, in the Prometheus format
+ * at /actuator/prometheus. The number of pixels processed per second is the rate of images.algorithm.pixels.
+ */
+@Component
+public class ImageMetrics {
+
+    private final MeterRegistry registry;
+
+    public ImageMetrics(MeterRegistry registry, ResultCache resultCache, BufferPool bufferPool, AllocationMetrics allocationMetrics,
+                        RenditionStore renditionStore, JobQueue jobQueue, AdmissionControl admissionControl) {
+        this.registry = registry;
+        FunctionCounter.builder("images.cache.hits", resultCache, ResultCache::getHits).register(registry);
+        FunctionCounter.builder("images.cache.misses", resultCache, ResultCache::getMisses).register(registry);
+        FunctionCounter.builder("images.cache.evictions", resultCache, ResultCache::getEvictions).register(registry);
+        FunctionCounter.builder("images.cache.shared", resultCache, ResultCache::getSharedComputations)
+                .description("Requests that got the result of an identical request computed at the same time").register(registry);
+        Gauge.builder("images.cache.waiting", resultCache, ResultCache::getWaitingRequests)
+                .description("Requests waiting for the result of an identical request being computed").register(registry);
+        Gauge.builder("images.cache.size", resultCache, ResultCache::getCurrentBytes).baseUnit("bytes").register(registry);
+        FunctionCounter.builder("images.pool.hits", bufferPool, BufferPool::getHits).register(registry);
+        FunctionCounter.builder("images.pool.misses", bufferPool, BufferPool::getMisses).register(registry);
+        Gauge.builder("images.pool.retained", bufferPool, BufferPool::getRetainedBytes).baseUnit("bytes").register(registry);
+        FunctionCounter.builder("images.allocated", allocationMetrics, AllocationMetrics::getRequestBytes)
+                .description("Heap allocated by the threads processing the images").baseUnit("bytes").register(registry);
+        FunctionCounter.builder("images.allocated.all", allocationMetrics, AllocationMetrics::getTotalAllocatedBytes)
+                .description("Heap allocated by every thread of the JVM, the tiling pool included").baseUnit("bytes").register(registry);
+        Gauge.builder("images.renditions.size", renditionStore, RenditionStore::getCurrentBytes).baseUnit("bytes").register(registry);
+        Gauge.builder("images.jobs.queued", jobQueue, JobQueue::getQueuedCount).register(registry);
+        Gauge.builder("images.admission.available", admissionControl, AdmissionControl::getAvailableBytes).baseUnit("bytes").register(registry);
+    }
+
+    private Timer timer(String name, String tag, String value) {
+        return Timer.builder(name).tag(tag, value).publishPercentiles(0.5, 0.99).register(registry);
+    }
+
+    /**
+     * Record an algorithm applied to an image, to be given to ImageModifier.treatPipeline.
+     *
+     * @param algorithm The name of the algorithm
+     * @param width     The width of the image
+     * @param height    The height of the image
+     * @param nanos     The time taken, in nanoseconds
+     */
+    public void recordStep(String algorithm, int width, int height, long nanos) {
+        timer("images.algorithm", "algorithm", algorithm).record(nanos, TimeUnit.NANOSECONDS);
+        Counter.builder("images.algorithm.pixels").tag("algorithm", algorithm).baseUnit("pixels").register(registry)
+                .increment((double) width * height);
+    }
+
+    /**
+     * Record the decoding of an image.
+     *
+     * @param format The format of the image
+     * @param pixels The number of pixels decoded, of every frame
+     * @param nanos  The time taken, in nanoseconds
+     */
+    public void recordDecode(String format, long pixels, long nanos) {
+        timer("images.decode", "format", format).record(nanos, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder("images.input.pixels").tag("format", format).baseUnit("pixels")
+                .publishPercentileHistogram().register(registry).record(pixels);
+    }
+
+    /**
+     * Record the encoding of an image.
+     *
+     * @param format The format of the image
+     * @param nanos  The time taken, in nanoseconds
+     */
+    public void recordEncode(String format, long nanos) {
+        timer("images.encode", "format", format).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Record a stage of the processing of a GIF frame.
+     *
+     * @param stage "filter" for the algorithms, "quantize" for the reduction to a palette and the compression
+     * @param nanos The time taken, in nanoseconds
+     */
+    public void recordFrame(String stage, long nanos) {
+        timer("images.gif.frame", "stage", stage).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Record a request rejected because of its parameters.
+     *
+     * @param e The exception, whose message tells the cause
+     */
+    public void recordError(ImageControllerException e) {
+        Counter.builder("images.errors").tag("cause", String.valueOf(e.getMessage())).register(registry).increment();
+    }
+}
@@ -3,11 +3,16 @@ package pdl.backend;
 import boofcv.alg.color.ColorHsv;
 import boofcv.alg.enhance.EnhanceImageOps;
 import boofcv.alg.filter.blur.GBlurImageOps;
+import boofcv.alg.misc.GImageMiscOps;
 import boofcv.alg.misc.ImageStatistics;
 import boofcv.struct.image.GrayU8;
 import boofcv.struct.image.Planar;
+import pdl.backend.TileExecutor.Tiling;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 
 public abstract class ImageModifier {
 
@@ -37,15 +42,7 @@ public abstract class ImageModifier {
      * @param input The input image
      */
     public static void addLuminosity(Planar<GrayU8> input, int delta) {
-        int numBands = input.getNumBands();
-        numBands = Math.max(1, Math.min(numBands, 3));
-        for (int y = 0; y < input.height; y++) {
-            for (int x = 0; x < input.width; x++) {
-                for (int i = 0; i < numBands; i++) {
-                    input.getBand(i).set(x, y, Math.max(0, Math.min(input.getBand(i).get(x, y) + delta, 255)));
-                }
-            }
-        }
+        LookupTable.addLuminosity(delta).apply(input);
     }
 
 
@@ -70,7 +67,9 @@ public abstract class ImageModifier {
         if ((r == g) && (g == b)) {
             hsv[0] = 0;
         } else if (maxRGB_int == r) {
-            hsv[0] = (60 * (g_float - b_float) / (maxRGB_float - minRGB_float) + 360) % 360;
+            // Same value as % 360 for a hue in [300, 420], without the slow floating point remainder
+            float hue = 60 * (g_float - b_float) / (maxRGB_float - minRGB_float) + 360;
+            hsv[0] = (hue >= 360) ? hue - 360 : hue;
         } else if (maxRGB_int == g) {
             hsv[0] = 60 * (b_float - r_float) / (maxRGB_float - minRGB_float) + 120;
         } else {
@@ -137,19 +136,15 @@ public abstract class ImageModifier {
             glequalizer(input.getBand(0));
             return;
         }
-        numBands = Math.max(1, Math.min(numBands, 3));
+        GrayU8 red = input.getBand(0), green = input.getBand(1), blue = input.getBand(2);
+        int width = input.width, height = input.height;
         int[] hist = new int[256];
         float[] hsv = new float[3];
         int[] rgb = new int[3];
-        for (int i = 0; i < 256; i++) {
-            hist[i] = 0;
-        }
-        for (int y = 0; y < input.getHeight(); y++) {
-            for (int x = 0; x < input.getWidth(); x++) {
-                for (int i = 0; i < numBands; i++) {
-                    rgb[i] = input.getBand(i).get(x, y);
-                }
-                rgbToHsv(rgb[0], rgb[1], rgb[2], hsv);
+        for (int y = 0; y < height; y++) {
+            int r = red.startIndex + y * red.stride, g = green.startIndex + y * green.stride, b = blue.startIndex + y * blue.stride;
+            for (int x = 0; x < width; x++) {
+                rgbToHsv(red.data[r + x] & 0xFF, green.data[g + x] & 0xFF, blue.data[b + x] & 0xFF, hsv);
                 switch (canal) {
                     case 'V':
                         hist[Math.round(hsv[2] * 255)]++;
@@ -172,12 +167,10 @@ public abstract class ImageModifier {
             }
         }
 
-        for (int y = 0; y < input.getHeight(); y++) {
-            for (int x = 0; x < input.getWidth(); x++) {
-                for (int i = 0; i < numBands; i++) {
-                    rgb[i] = input.getBand(i).get(x, y);
-                }
-                rgbToHsv(rgb[0], rgb[1], rgb[2], hsv);
+        for (int y = 0; y < height; y++) {
+            int r = red.startIndex + y * red.stride, g = green.startIndex + y * green.stride, b = blue.startIndex + y * blue.stride;
+            for (int x = 0; x < width; x++) {
+                rgbToHsv(red.data[r + x] & 0xFF, green.data[g + x] & 0xFF, blue.data[b + x] & 0xFF, hsv);
                 switch (canal) {
                     case 'V':
                         hsv[2] = newValues[Math.round(hsv[2] * 255)];
@@ -187,9 +180,9 @@ public abstract class ImageModifier {
                         break;
                 }
                 hsvToRgb(hsv[0], hsv[1], hsv[2], rgb);
-                for (int i = 0; i < numBands; i++) {
-                    input.getBand(i).set(x, y, rgb[i]);
-                }
+                red.data[r + x] = (byte) rgb[0];
+                green.data[g + x] = (byte) rgb[1];
+                blue.data[b + x] = (byte) rgb[2];
             }
         }
     }
@@ -202,59 +195,80 @@ public abstract class ImageModifier {
      * @param hue   int value of the new hue
      */
     public static void hueFilter(Planar<GrayU8> input, int hue) {
-        int numBands = input.getNumBands();
-        if (numBands < 3) {
-            throw new ImageControllerException("The input picture must have at least 3 bands");
-        }else if (hue < 0 || 360 < hue){
-            throw new ImageControllerException("min or max value out of bound of 0 360");
-        }
-        numBands = 3;
-        float[] hsv = new float[3], rgb = new float[3];
-        double radHue = Math.toRadians(hue);
-        for (int y = 0; y < input.getHeight(); y++) {
-            for (int x = 0; x < input.getWidth(); x++) {
-                ColorHsv.rgbToHsv(input.getBand(0).get(x, y), input.getBand(1).get(x, y), input.getBand(2).get(x, y), hsv);
-                hsv[0] = (float) radHue;
-                ColorHsv.hsvToRgb(hsv[0], hsv[1], hsv[2], rgb);
-                for (int i = 0; i < numBands; i++) input.getBand(i).set(x, y, (int) rgb[i]);
-            }
-        }
+        ColorTransform.hueFilter(hue).apply(input);
     }
 
     /**
      * Apply the meanFilter on the input image and save it in the output image.
      * The NORMALIZE borderType is used.
+     * The filter is separable: each row is summed horizontally with a prefix sum, and a running sum of these
+     * rows is kept for each column, so the cost does not depend on size.
      *
      * @param input  The input image
      * @param output The output image
      * @param size   size of the filter
      */
     public static void meanFilterWithBorders(Planar<GrayU8> input, Planar<GrayU8> output, int size) {
+        if (size < 0) {
+            throw new ImageControllerException("size parameter value must be positive");
+        }
         int numBands = input.getNumBands();
         if (numBands == 4) {
-            for (int y = 0; y < input.height; y++) {
-                for (int x = 0; x < input.width; x++) {
-                    output.getBand(3).set(x, y, input.getBand(3).get(x, y));
+            output.getBand(3).setTo(input.getBand(3));
+        }
+        int bands = Math.max(1, Math.min(numBands, 3));
+        int width = input.width, height = input.height;
+        // A larger window covers the whole image the same way, and x + size or y + size would overflow
+        int radius = Math.min(size, Math.max(width, height));
+        // Number of columns of the window inside the image, for each x
+        int[] columnCount = new int[width];
+        for (int x = 0; x < width; x++) {
+            columnCount[x] = Math.min(width - 1, x + radius) - Math.max(0, x - radius) + 1;
+        }
+        TileExecutor.forEachBand(width, height, Tiling.HALO, radius, (y0, y1) -> {
+            int[] prefix = new int[width + 1];
+            int[] rowSum = new int[width];
+            // Up to 255 times the number of pixels of the image
+            long[] columnSum = new long[width];
+            for (int i = 0; i < bands; i++) {
+                GrayU8 bandIn = input.getBand(i);
+                GrayU8 bandOut = output.getBand(i);
+                Arrays.fill(columnSum, 0L);
+                for (int r = Math.max(0, y0 - radius); r <= Math.min(height - 1, y0 + radius); r++) {
+                    windowRowSum(bandIn, r, radius, prefix, rowSum);
+                    for (int x = 0; x < width; x++) columnSum[x] += rowSum[x];
                 }
-            }
-        }
-        numBands = Math.max(1, Math.min(numBands, 3));
-        for (int y = 0; y < input.height; y++) {
-            for (int x = 0; x < input.width; x++) {
-                for (int i = 0; i < numBands; i++) {
-                    int total = 0;
-                    int n = 0;
-                    for (int u = -size; u <= size; u++) {
-                        for (int v = -size; v <= size; v++) {
-                            if (input.isInBounds(x + u, y + v)) {
-                                n++;
-                                total += input.getBand(i).get(x + u, y + v);
-                            }
+                for (int y = y0; y < y1; y++) {
+                    if (y > y0) {
+                        int entering = y + radius, leaving = y - radius - 1;
+                        if (entering < height) {
+                            windowRowSum(bandIn, entering, radius, prefix, rowSum);
+                            for (int x = 0; x < width; x++) columnSum[x] += rowSum[x];
+                        }
+                        if (leaving >= 0) {
+                            windowRowSum(bandIn, leaving, radius, prefix, rowSum);
+                            for (int x = 0; x < width; x++) columnSum[x] -= rowSum[x];
                         }
                     }
-                    output.getBand(i).set(x, y, total / n);
+                    int rowCount = Math.min(height - 1, y + radius) - Math.max(0, y - radius) + 1;
+                    int outIndex = bandOut.startIndex + y * bandOut.stride;
+                    for (int x = 0; x < width; x++) {
+                        bandOut.data[outIndex + x] = (byte) (columnSum[x] / ((long) columnCount[x] * rowCount));
+                    }
                 }
             }
+        });
+    }
+
+    // Sum of the row r of band over the horizontal window of each column, clipped to the image
+    private static void windowRowSum(GrayU8 band, int r, int size, int[] prefix, int[] rowSum) {
+        int width = band.width;
+        int index = band.startIndex + r * band.stride;
+        for (int x = 0; x < width; x++) {
+            prefix[x + 1] = prefix[x] + (band.data[index + x] & 0xFF);
+        }
+        for (int x = 0; x < width; x++) {
+            rowSum[x] = prefix[Math.min(width, x + size + 1)] - prefix[Math.max(0, x - size)];
         }
     }
 
@@ -286,21 +300,17 @@ public abstract class ImageModifier {
      * @param input The input image
      */
     public static void toGray(Planar<GrayU8> input) {
-        double[] rgbToGray = {0.3f, 0.59f, 0.11f};
         if (input.getNumBands() < 3) {
             throw new ImageControllerException("The input picture must have at least 3 bands");
         }
-        for (int y = 0; y < input.height; y++) {
-            for (int x = 0; x < input.width; x++) {
-                double value = 0;
-                for (int i = 0; i < 3; i++) {
-                    value += input.getBand(i).get(x, y) * rgbToGray[i];
-                }
-                for (int i = 0; i < 3; i++) {
-                    input.getBand(i).set(x, y, (int) value);
-                }
+        GrayU8 red = input.getBand(0), green = input.getBand(1), blue = input.getBand(2);
+        TileExecutor.forEachBand(input.width, input.height, Tiling.ROW_LOCAL, (y0, y1) -> {
+            ByteKernels kernels = ByteKernels.get();
+            for (int y = y0; y < y1; y++) {
+                kernels.toGray(red.data, red.startIndex + y * red.stride, green.data, green.startIndex + y * green.stride,
+                        blue.data, blue.startIndex + y * blue.stride, input.width);
             }
-        }
+        });
     }
 
     /**
@@ -314,41 +324,32 @@ public abstract class ImageModifier {
         toGray(input);
         int numBands = input.getNumBands();
         if (numBands == 4) {
-            for (int y = 0; y < input.height; y++) {
-                for (int x = 0; x < input.width; x++) {
-                    output.getBand(3).set(x, y, input.getBand(3).get(x, y));
-                }
-            }
+            output.getBand(3).setTo(input.getBand(3));
             numBands = 3;
         }
         for (int i = 0; i < numBands; i++) {
             GrayU8 bandIn = input.getBand(i);
             GrayU8 bandOut = output.getBand(i);
-
-            int[][] h1 = {
-                    {-1, 0, 1},
-                    {-2, 0, 2},
-                    {-1, 0, 1}
-            };
-
-            int[][] h2 = {
-                    {-1, -2, -1},
-                    {0, 0, 0},
-                    {1, 2, 1}
-            };
-            for (int y = 1; y < input.height - 1; y++) {
-                for (int x = 1; x < input.width - 1; x++) {
-                    int Gx = 0, Gy = 0;
-                    for (int v = 0; v < 3; v++) {
-                        for (int u = 0; u < 3; u++) {
-                            Gx += bandIn.get(x + u - 1, y + v - 1) * h2[v][u];
-                            Gy += bandIn.get(x + u - 1, y + v - 1) * h1[v][u];
-                        }
+            byte[] in = bandIn.data;
+            TileExecutor.forEachBand(input.width, input.height, Tiling.HALO, 1, (y0, y1) -> {
+                for (int y = Math.max(1, y0); y < Math.min(y1, input.height - 1); y++) {
+                    // Index of the pixel above, on and below (x, y)
+                    int above = bandIn.startIndex + (y - 1) * bandIn.stride;
+                    int row = above + bandIn.stride;
+                    int below = row + bandIn.stride;
+                    int outIndex = bandOut.startIndex + y * bandOut.stride;
+                    for (int x = 1; x < input.width - 1; x++) {
+                        int topLeft = in[above + x - 1] & 0xFF, top = in[above + x] & 0xFF, topRight = in[above + x + 1] & 0xFF;
+                        int left = in[row + x - 1] & 0xFF, right = in[row + x + 1] & 0xFF;
+                        int bottomLeft = in[below + x - 1] & 0xFF, bottom = in[below + x] & 0xFF, bottomRight = in[below + x + 1] & 0xFF;
+                        // Vertical and horizontal Sobel kernels
+                        int Gx = (bottomLeft + 2 * bottom + bottomRight) - (topLeft + 2 * top + topRight);
+                        int Gy = (topRight + 2 * right + bottomRight) - (topLeft + 2 * left + bottomLeft);
+                        int newValue = Math.max(0, Math.min((int) Math.sqrt(Gx * Gx + Gy * Gy), 255));
+                        bandOut.data[outIndex + x] = (byte) newValue;
                     }
-                    int newValue = Math.max(0, Math.min((int) Math.sqrt(Gx * Gx + Gy * Gy), 255));
-                    bandOut.set(x, y, newValue);
                 }
-            }
+            });
         }
         //toGray(output);
     }
@@ -362,38 +363,45 @@ public abstract class ImageModifier {
      * @param direction 'V' for vertical strips and 'H' for horizontal one
      */
     public static void rainbow(Planar<GrayU8> input, char direction) {
-        int numBands = input.getNumBands(), hue;
+        int numBands = input.getNumBands();
         if (numBands < 3) {
             throw new ImageControllerException("The input picture must have at least 3 bands");
         }
-        numBands = 3;
+        if (direction != 'H' && direction != 'V' && direction != 'C') {
+            throw new ImageControllerException("axis parameter must be \'V\', \'H\' or \'C\'");
+        }
         int x_center = input.width / 2;
         int y_center = input.height / 2;
         double dist_max = Math.sqrt((input.width / 2) * (input.width / 2) + (input.height / 2) * (input.height / 2));
-        float[] hsv = new float[3], rgb = new float[3];
-        for (int y = 0; y < input.getHeight(); y++) {
-            for (int x = 0; x < input.getWidth(); x++) {
-                ColorHsv.rgbToHsv(input.getBand(0).get(x, y), input.getBand(1).get(x, y), input.getBand(2).get(x, y), hsv);
-                switch (direction) {
-                    case 'H':
-                        hue = Math.max(0, 330 - (y / (input.height / 12) * 30));
-                        break;
-                    case 'V':
-                        hue = Math.max(0, 330 - (x / (input.width / 12) * 30));
-                        break;
-                    case 'C':
-                        double dist_from_center = Math.sqrt((x_center - x) * (x_center - x) + (y_center - y) * (y_center - y));
-                        hue = Math.max(0, 330 - ((int) dist_from_center / ((int) dist_max / 12) * 30));
-                        break;
-                    default:
-                        throw new ImageControllerException("axis parameter must be \'V\', \'H\' or \'C\'");
+        GrayU8 red = input.getBand(0), green = input.getBand(1), blue = input.getBand(2);
+        TileExecutor.forEachBand(input.width, input.height, Tiling.ROW_LOCAL, (y0, y1) -> {
+            float[] hsv = new float[3], rgb = new float[3];
+            int hue;
+            for (int y = y0; y < y1; y++) {
+                int r = red.startIndex + y * red.stride, g = green.startIndex + y * green.stride, b = blue.startIndex + y * blue.stride;
+                for (int x = 0; x < input.getWidth(); x++) {
+                    ColorHsv.rgbToHsv(red.data[r + x] & 0xFF, green.data[g + x] & 0xFF, blue.data[b + x] & 0xFF, hsv);
+                    switch (direction) {
+                        case 'H':
+                            hue = Math.max(0, 330 - (y / (input.height / 12) * 30));
+                            break;
+                        case 'V':
+                            hue = Math.max(0, 330 - (x / (input.width / 12) * 30));
+                            break;
+                        default:
+                            double dist_from_center = Math.sqrt((x_center - x) * (x_center - x) + (y_center - y) * (y_center - y));
+                            hue = Math.max(0, 330 - ((int) dist_from_center / ((int) dist_max / 12) * 30));
+                            break;
+                    }
+                    double radHue = Math.toRadians(hue);
+                    hsv[0] = (float) radHue;
+                    ColorHsv.hsvToRgb(hsv[0], hsv[1], hsv[2], rgb);
+                    red.data[r + x] = (byte) (int) rgb[0];
+                    green.data[g + x] = (byte) (int) rgb[1];
+                    blue.data[b + x] = (byte) (int) rgb[2];
                 }
-                double radHue = Math.toRadians(hue);
-                hsv[0] = (float) radHue;
-                ColorHsv.hsvToRgb(hsv[0], hsv[1], hsv[2], rgb);
-                for (int i = 0; i < numBands; i++) input.getBand(i).set(x, y, (int) rgb[i]);
             }
-        }
+        });
     }
 
     /**
@@ -406,57 +414,35 @@ public abstract class ImageModifier {
      * @param max   Max value
      */
     public static void hueSelector(Planar<GrayU8> input, int min, int max) {
-        int numBands = input.getNumBands();
-        if (numBands < 3) {
-            throw new ImageControllerException("The input picture must have at least 3 bands");
-        } else if (min < 0 || 360 < min || max < 0 || 360 < max){
-            throw new ImageControllerException("min or max value out of bound of 0 360");
-        }
-        numBands = 3;
-        float[] hsv = new float[3], rgb = new float[3];
-        for (int y = 0; y < input.getHeight(); y++) {
-            for (int x = 0; x < input.getWidth(); x++) {
-                ColorHsv.rgbToHsv(input.getBand(0).get(x, y), input.getBand(1).get(x, y), input.getBand(2).get(x, y), hsv);
-                double hue = Math.toDegrees(hsv[0]);
-                if (min > max) {
-                    if (min >= hue && hue >= max) hsv[1] = 0;
-                } else {
-                    if (!(max >= hue && hue >= min)) hsv[1] = 0;
-                }
-                ColorHsv.hsvToRgb(hsv[0], hsv[1], hsv[2], rgb);
-                for (int i = 0; i < numBands; i++) input.getBand(i).set(x, y, (int) rgb[i]);
-            }
-        }
+        ColorTransform.hueSelector(min, max).apply(input);
     }
 
     /**
-     * Change the scale of the picture with new height and width.
-     * If the new height or width egal 0 or negative, do nothing.
+     * Change the scale of the picture with new width and height.
      *
      * @param input     The input image
      * @param output    The output image
+     * @param newWidth  New width
      * @param newHeight New height
+     */
+    public static void scaling(Planar<GrayU8> input, Planar<GrayU8> output, int newWidth, int newHeight) {
+        scaling(input, output, newWidth, newHeight, Resampler.Filter.NEAREST);
+    }
+
+    /**
+     * Change the scale of the picture with new width and height, with the given resampling filter.
+     *
+     * @param input     The input image
+     * @param output    The output image
      * @param newWidth  New width
+     * @param newHeight New height
+     * @param filter    The resampling filter, NEAREST is the fastest and the others are smoother
      */
-    public static void scaling(Planar<GrayU8> input, Planar<GrayU8> output, int newHeight, int newWidth) {
+    public static void scaling(Planar<GrayU8> input, Planar<GrayU8> output, int newWidth, int newHeight, Resampler.Filter filter) {
         if (newHeight <= 0 || newWidth <= 0) {
             throw new ImageControllerException("newHeight and newWidth parameter value must be positive values");
         }
-        output.reshape(newWidth, newHeight);
-        int numBands = input.getNumBands();
-        int old_height = input.height;
-        int old_width = input.width;
-        float y_ratio = (float) old_height / newHeight;
-        float x_ratio = (float) old_width / newWidth;
-        for (int y = 0; y < newHeight; y++) {
-            for (int x = 0; x < newWidth; x++) {
-                int fetch_x = (int) Math.floor(x_ratio * x);
-                int fetch_y = (int) Math.floor(y_ratio * y);
-                for (int i = 0; i < numBands; i++) {
-                    output.getBand(i).set(x, y, input.getBand(i).get(fetch_x, fetch_y));
-                }
-            }
-        }
+        Resampler.resample(input, output, newWidth, newHeight, filter);
     }
 
     /**
@@ -465,20 +451,7 @@ public abstract class ImageModifier {
      * @param input The input image
      */
     public static void reverseHue(Planar<GrayU8> input) {
-        int numBands = input.getNumBands();
-        if (numBands < 3) {
-            throw new ImageControllerException("The picture must have at least 3 bands");
-        }
-        numBands = 3;
-        float[] hsv = new float[3], rgb = new float[3];
-        for (int y = 0; y < input.getHeight(); y++) {
-            for (int x = 0; x < input.getWidth(); x++) {
-                ColorHsv.rgbToHsv(input.getBand(0).get(x, y), input.getBand(1).get(x, y), input.getBand(2).get(x, y), hsv);
-                hsv[0] = (float) ((hsv[0] + Math.PI) % (2 * Math.PI));
-                ColorHsv.hsvToRgb(hsv[0], hsv[1], hsv[2], rgb);
-                for (int i = 0; i < numBands; i++) input.getBand(i).set(x, y, (int) rgb[i]);
-            }
-        }
+        ColorTransform.reverseHue().apply(input);
     }
 
     /**
@@ -487,15 +460,7 @@ public abstract class ImageModifier {
      * @param input The input image
      */
     public static void negative(Planar<GrayU8> input) {
-        int numBands = input.getNumBands();
-        if (numBands > 3) numBands = 3;
-        for (int i = 0; i < numBands; i++) {
-            for (int y = 0; y < input.getHeight(); y++) {
-                for (int x = 0; x < input.getWidth(); x++) {
-                    input.getBand(i).set(x, y, 255 - input.getBand(i).get(x, y));
-                }
-            }
-        }
+        LookupTable.negative().apply(input);
     }
 
     /**
@@ -518,18 +483,31 @@ public abstract class ImageModifier {
             default:
                 throw new ImageControllerException("axis parameter must be \'V\' or \'H\'");
         }
-        for (int y = 0; y < compute_height; y++) {
-            for (int x = 0; x < compute_width; x++) {
-                int fetch_x = x, fetch_y = y;
-                if (axis == 'H') fetch_y = input.height - 1 - y;
-                else fetch_x = input.width - 1 - x;
-                for (int i = 0; i < numBands; i++) {
-                    int tmp = input.getBand(i).get(x, y);
-                    input.getBand(i).set(x, y, input.getBand(i).get(fetch_x, fetch_y));
-                    input.getBand(i).set(fetch_x, fetch_y, tmp);
+        int width = compute_width;
+        // Every pixel is swapped by exactly one row of the computed area, so the rows can be split freely
+        TileExecutor.forEachBand(compute_width, compute_height, Tiling.ROW_LOCAL, (y0, y1) -> {
+            for (int i = 0; i < numBands; i++) {
+                GrayU8 band = input.getBand(i);
+                byte[] data = band.data;
+                for (int y = y0; y < y1; y++) {
+                    int index = band.startIndex + y * band.stride;
+                    if (axis == 'H') {
+                        int fetchIndex = band.startIndex + (input.height - 1 - y) * band.stride;
+                        for (int x = 0; x < width; x++) {
+                            byte tmp = data[index + x];
+                            data[index + x] = data[fetchIndex + x];
+                            data[fetchIndex + x] = tmp;
+                        }
+                    } else {
+                        for (int x = 0, fetchX = input.width - 1; x < width; x++, fetchX--) {
+                            byte tmp = data[index + x];
+                            data[index + x] = data[index + fetchX];
+                            data[index + fetchX] = tmp;
+                        }
+                    }
                 }
             }
-        }
+        });
     }
 
     /**
@@ -540,16 +518,65 @@ public abstract class ImageModifier {
      * @param angle  The angle of the rotation
      */
     public static void rotate(Planar<GrayU8> input, Planar<GrayU8> output, int angle) {
-        int numBands = input.getNumBands();
+        rotate(input, output, angle, Interpolation.NEAREST, false);
+    }
+
+    /**
+     * Rotate the picture around its center. Each output pixel is mapped back into the input by the inverse rotation
+     * and sampled there, pixels mapped outside of the input are black.
+     *
+     * @param input         The input image
+     * @param output        The output image, reshaped if expand is set
+     * @param angle         The angle of the rotation in degrees
+     * @param interpolation How the input is sampled between its pixels
+     * @param expand        Whether the output is enlarged to contain the whole rotated picture, otherwise it keeps the
+     *                      input size and the corners are cut
+     */
+    public static void rotate(Planar<GrayU8> input, Planar<GrayU8> output, int angle, Interpolation interpolation, boolean expand) {
         double radiantAngle = Math.toRadians(angle);
-        for (int y = 0; y < input.getHeight(); y++) {
-            for (int x = 0; x < input.getWidth(); x++) {
-                int xp = (int) ((x - input.width / 2) * Math.cos(radiantAngle) - (y - input.height / 2) * Math.sin(radiantAngle) + input.width / 2);
-                int yp = (int) ((x - input.width / 2) * Math.sin(radiantAngle) + (y - input.height / 2) * Math.cos(radiantAngle) + input.height / 2);
-                if (0 <= xp && xp < input.width && 0 <= yp && yp < input.height)
-                    for (int i = 0; i < numBands; i++) output.getBand(i).set(x, y, input.getBand(i).get(xp, yp));
+        double cos = Math.cos(radiantAngle), sin = Math.sin(radiantAngle);
+        int xCenter = input.width / 2, yCenter = input.height / 2;
+        double xOutCenter = xCenter, yOutCenter = yCenter;
+        if (expand) {
+            // The output is the bounding box of the corner pixels of the input once rotated around its center, the
+            // epsilon keeps the exact size on right angles where cos or sin is not quite 0
+            double xMin = 0, xMax = 0, yMin = 0, yMax = 0;
+            for (int xCorner : new int[]{-xCenter, input.width - 1 - xCenter}) {
+                for (int yCorner : new int[]{-yCenter, input.height - 1 - yCenter}) {
+                    double xRotated = xCorner * cos + yCorner * sin, yRotated = yCorner * cos - xCorner * sin;
+                    xMin = Math.min(xMin, xRotated);
+                    xMax = Math.max(xMax, xRotated);
+                    yMin = Math.min(yMin, yRotated);
+                    yMax = Math.max(yMax, yRotated);
+                }
             }
-        }
+            output.reshape((int) Math.floor(xMax - xMin + 1e-9) + 1, (int) Math.floor(yMax - yMin + 1e-9) + 1);
+            xOutCenter = -xMin;
+            yOutCenter = -yMin;
+        }
+        int width = output.width;
+        // The products of the columns are the same on every row and the ones of the rows on every column, so the
+        // mapping of a pixel is two additions, computed in the same order as (x - xCenter) * cos - (y - yCenter) * sin + xCenter
+        double[] columnCos = new double[width], columnSin = new double[width];
+        for (int x = 0; x < width; x++) {
+            columnCos[x] = (x - xOutCenter) * cos;
+            columnSin[x] = (x - xOutCenter) * sin;
+        }
+        double[] rowCos = new double[output.height], rowSin = new double[output.height];
+        for (int y = 0; y < output.height; y++) {
+            rowCos[y] = (y - yOutCenter) * cos;
+            rowSin[y] = (y - yOutCenter) * sin;
+        }
+        Sampler sampler = new Sampler(input, interpolation);
+        TileExecutor.forEachBand(width, output.height, Tiling.GATHER, (y0, y1) -> {
+            Sampler.Row row = sampler.row(width);
+            for (int y = y0; y < y1; y++) {
+                for (int x = 0; x < width; x++) {
+                    row.set(x, columnCos[x] - rowSin[y] + xCenter, columnSin[x] + rowCos[y] + yCenter);
+                }
+                row.write(output, y);
+            }
+        });
     }
 
     /**
@@ -564,10 +591,6 @@ public abstract class ImageModifier {
      * @param waveLength The length of the wave
      */
     public static void wave(Planar<GrayU8> input, Planar<GrayU8> output, char waveAxis, int waveOffset, char waveType, int amplitude, int waveLength) {
-        int numBands = input.getNumBands();
-        double border_offset;
-        int[] oldXY = new int[2];
-        int[] newXY = new int[2];
         int modified_axis;
         double half_length = ((double) waveLength / 2);
         if (waveAxis == 'V') {
@@ -576,32 +599,37 @@ public abstract class ImageModifier {
             modified_axis = 1;
         } else
             throw new ImageControllerException("waveAxis parameter must be \'V\' or \'H\'");
-        for (oldXY[1] = 0 ; oldXY[1] <  input.getHeight(); oldXY[1]++) {
-            for (oldXY[0] = 0; oldXY[0] < input.getWidth(); oldXY[0]++) {
-                newXY[0] = oldXY[0];
-                newXY[1] = oldXY[1];
-                switch (waveType) {
-                    case 'C':
-                        double radiantAngle = ((oldXY[1 - modified_axis] + waveOffset) * Math.PI / half_length);
-                        border_offset = Math.sin(radiantAngle);
-                        break;
-                    case 'R':
-                        radiantAngle = ((oldXY[1 - modified_axis] + waveOffset) * Math.PI / half_length);
-                        border_offset = Math.sin(radiantAngle);
-                        border_offset = (border_offset > 0) ? 1 : -1;
-                        break;
-                    case 'T':
-                        border_offset = -((2. / half_length * (oldXY[1 - modified_axis] + waveOffset - half_length * Math.floor(((double) (oldXY[1 - modified_axis] + waveOffset) / half_length + 1. / 2))) * Math.pow(-1, Math.floor((oldXY[1 - modified_axis] + waveOffset) / half_length - 1. / 2))));
-                        break;
-                    default:
-                        throw new ImageControllerException("waveType parameter must be \'C\', \'R\' or \'T\'");
+        // Pixels are pushed to rows that depend on the wave, so the rows cannot be split
+        TileExecutor.forEachBand(input.width, input.height, Tiling.SEQUENTIAL, (y0, y1) -> {
+            double border_offset;
+            int[] oldXY = new int[2];
+            int[] newXY = new int[2];
+            for (oldXY[1] = y0; oldXY[1] < y1; oldXY[1]++) {
+                for (oldXY[0] = 0; oldXY[0] < input.getWidth(); oldXY[0]++) {
+                    newXY[0] = oldXY[0];
+                    newXY[1] = oldXY[1];
+                    switch (waveType) {
+                        case 'C':
+                            double radiantAngle = ((oldXY[1 - modified_axis] + waveOffset) * Math.PI / half_length);
+                            border_offset = Math.sin(radiantAngle);
+                            break;
+                        case 'R':
+                            radiantAngle = ((oldXY[1 - modified_axis] + waveOffset) * Math.PI / half_length);
+                            border_offset = Math.sin(radiantAngle);
+                            border_offset = (border_offset > 0) ? 1 : -1;
+                            break;
+                        case 'T':
+                            border_offset = -((2. / half_length * (oldXY[1 - modified_axis] + waveOffset - half_length * Math.floor(((double) (oldXY[1 - modified_axis] + waveOffset) / half_length + 1. / 2))) * Math.pow(-1, Math.floor((oldXY[1 - modified_axis] + waveOffset) / half_length - 1. / 2))));
+                            break;
+                        default:
+                            throw new ImageControllerException("waveType parameter must be \'C\', \'R\' or \'T\'");
+                    }
+                    newXY[modified_axis] = (int) (oldXY[modified_axis] + border_offset * amplitude);
+                    if (0 <= newXY[0] && newXY[0] < input.width && 0 <= newXY[1] && newXY[1] < input.height)
+                        copyPixel(input, oldXY[0], oldXY[1], output, newXY[0], newXY[1]);
                 }
-                newXY[modified_axis] = (int) (oldXY[modified_axis] + border_offset * amplitude);
-                if (0 <= newXY[0] && newXY[0] < input.width && 0 <= newXY[1] && newXY[1] < input.height)
-                    for (int i = 0; i < numBands; i++)
-                        output.getBand(i).set(newXY[0], newXY[1], input.getBand(i).get(oldXY[0], oldXY[1]));
             }
-        }
+        });
     }
 
     /**
@@ -612,7 +640,6 @@ public abstract class ImageModifier {
      * @param sphereType The type of the sphere (S for Spherical, E for Elliptical)
      */
     public static void sphere(Planar<GrayU8> input, Planar<GrayU8> output, char sphereType) {
-        int numBands = input.getNumBands();
         int x_center = input.width / 2;
         int y_center = input.height / 2;
         int x_size, y_size;
@@ -628,15 +655,19 @@ public abstract class ImageModifier {
             default:
                 throw new ImageControllerException("shpereType parameter must be \'S\' or \'E\'");
         }
-        for (int y = 0; y < input.getHeight(); y++) {
-            for (int x = 0; x < input.getWidth(); x++) {
-                int xp = (int) (((double) (x - x_center) / x_center) * Math.sqrt(1 - ((double) (y - y_center) / y_center) * ((double) (y - y_center) / y_center) / 2) * x_size + x_center);
-                int yp = (int) (((double) (y - y_center) / y_center) * Math.sqrt(1 - ((double) (x - x_center) / x_center) * ((double) (x - x_center) / x_center) / 2) * y_size + y_center);
-                if (0 <= xp && xp < input.width && 0 <= yp && yp < input.height) {
-                    for (int i = 0; i < numBands; i++) output.getBand(i).set(xp, yp, input.getBand(i).get(x, y));
+        int xSize = x_size, ySize = y_size;
+        // Several source pixels can land on the same output pixel and the last one written wins, so the rows cannot be split
+        TileExecutor.forEachBand(input.width, input.height, Tiling.SEQUENTIAL, (y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                for (int x = 0; x < input.getWidth(); x++) {
+                    int xp = (int) (((double) (x - x_center) / x_center) * Math.sqrt(1 - ((double) (y - y_center) / y_center) * ((double) (y - y_center) / y_center) / 2) * xSize + x_center);
+                    int yp = (int) (((double) (y - y_center) / y_center) * Math.sqrt(1 - ((double) (x - x_center) / x_center) * ((double) (x - x_center) / x_center) / 2) * ySize + y_center);
+                    if (0 <= xp && xp < input.width && 0 <= yp && yp < input.height) {
+                        copyPixel(input, x, y, output, xp, yp);
+                    }
                 }
             }
-        }
+        });
     }
 
     /**
@@ -645,27 +676,7 @@ public abstract class ImageModifier {
      * @param input The input image
      */
     public static void sepia(Planar<GrayU8> input) {
-        int numBands = input.getNumBands();
-        if (numBands < 3) return;
-        if (numBands > 3) numBands = 3;
-        double[][] coef = {{0.393, 0.769, 0.189}, {0.349, 0.686, 0.168}, {0.272, 0.534, 0.131}};
-        int[] oldRGB = new int[3];
-        double[] newRGB = new double[3];
-        for (int y = 0; y < input.getHeight(); y++) {
-            for (int x = 0; x < input.getWidth(); x++) {
-                for (int i = 0; i < numBands; i++) {
-                    oldRGB[i] = input.getBand(i).get(x, y);
-                    newRGB[i] = 0;
-                }
-                for (int i = 0; i < numBands; i++) {
-                    for (int j = 0; j < numBands; j++) {
-                        newRGB[i] += coef[i][j] * oldRGB[j];
-                    }
-                    newRGB[i] = Math.min(newRGB[i], 255);
-                    input.getBand(i).set(x, y, (int) newRGB[i]);
-                }
-            }
-        }
+        ColorTransform.sepia().apply(input);
     }
 
     /**
@@ -676,20 +687,21 @@ public abstract class ImageModifier {
      * @param output The output picture
      */
     public static void mozaic(Planar<GrayU8> input, Planar<GrayU8> output) {
-        int newx, newy;
         //si width impaire alors +1 si height impaire alors +1
         int WidthHalf = input.getWidth() / 2 + ((input.getWidth() % 2 == 1) ? 1 : 0);
         int HeightHalf = input.getHeight() / 2 + ((input.getHeight() % 2 == 1) ? 1 : 0);
-        for (int y = 0; y < input.getHeight(); y++) {
-            for (int x = 0; x < input.getWidth(); x++) {
-                for (int i = 0; i < input.getNumBands(); i++) {
+        // Each input row is pushed to another output row
+        TileExecutor.forEachBand(input.width, input.height, Tiling.SEQUENTIAL, (y0, y1) -> {
+            int newx, newy;
+            for (int y = y0; y < y1; y++) {
+                for (int x = 0; x < input.getWidth(); x++) {
                     int num = x / 2 + WidthHalf * (y / 2);
                     newx = num % WidthHalf + ((x % 2 == 1) ? WidthHalf : 0);
                     newy = num / WidthHalf + ((y % 2 == 1) ? HeightHalf : 0);
-                    output.getBand(i).set(newx, newy, input.getBand(i).get(x, y));
+                    copyPixel(input, x, y, output, newx, newy);
                 }
             }
-        }
+        });
     }
 
 
@@ -702,24 +714,33 @@ public abstract class ImageModifier {
      * @param maxAngle the angle of the rotation at the center of the picture
      */
     public static void twist(Planar<GrayU8> input, Planar<GrayU8> output, int maxAngle) {
-        int numBands = input.getNumBands();
         int x_center = input.width / 2;
         int y_center = input.height / 2;
         double dist_max = Math.sqrt((x_center) * (x_center) + (y_center) * (y_center));
-        for (int y = 0; y < input.getHeight(); y++) {
-            for (int x = 0; x < input.getWidth(); x++) {
-                double dist_from_center = Math.sqrt((x_center - x) * (x_center - x) + (y_center - y) * (y_center - y));
-                double variation_function = -(double) maxAngle / dist_max * dist_from_center + maxAngle;
-                double radiantAngle = Math.toRadians(variation_function);
-                int xp = (int) ((x - x_center) * Math.cos(radiantAngle) - (y - y_center) * Math.sin(radiantAngle) + x_center);
-                int yp = (int) ((x - x_center) * Math.sin(radiantAngle) + (y - y_center) * Math.cos(radiantAngle) + y_center);
-                if (0 <= xp && xp < input.width && 0 <= yp && yp < input.height)
-                    for (int i = 0; i < numBands; i++) output.getBand(i).set(x, y, input.getBand(i).get(xp, yp));
+        TileExecutor.forEachBand(input.width, input.height, Tiling.GATHER, (y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                for (int x = 0; x < input.getWidth(); x++) {
+                    double dist_from_center = Math.sqrt((x_center - x) * (x_center - x) + (y_center - y) * (y_center - y));
+                    double variation_function = -(double) maxAngle / dist_max * dist_from_center + maxAngle;
+                    double radiantAngle = Math.toRadians(variation_function);
+                    int xp = (int) ((x - x_center) * Math.cos(radiantAngle) - (y - y_center) * Math.sin(radiantAngle) + x_center);
+                    int yp = (int) ((x - x_center) * Math.sin(radiantAngle) + (y - y_center) * Math.cos(radiantAngle) + y_center);
+                    if (0 <= xp && xp < input.width && 0 <= yp && yp < input.height)
+                        copyPixel(input, xp, yp, output, x, y);
+                }
             }
-        }
+        });
     }
 
 
+    // Copy the pixel (xIn, yIn) of every band of input to the pixel (xOut, yOut) of output
+    private static void copyPixel(Planar<GrayU8> input, int xIn, int yIn, Planar<GrayU8> output, int xOut, int yOut) {
+        for (int i = 0; i < input.bands.length; i++) {
+            GrayU8 bandIn = input.bands[i], bandOut = output.bands[i];
+            bandOut.data[bandOut.startIndex + yOut * bandOut.stride + xOut] = bandIn.data[bandIn.startIndex + yIn * bandIn.stride + xIn];
+        }
+    }
+
     private static int GaussFunction2D(int x, int y, int amplitude, int xCenter, int yCenter, float xSpread, float ySpread) {
         return (int) Math.round(amplitude * Math.exp(-(((x - xCenter) * (x - xCenter) / (2 * xSpread * xSpread) + ((y - yCenter) * (y - yCenter)) / (2 * ySpread * ySpread)))));
     }
@@ -734,7 +755,7 @@ public abstract class ImageModifier {
      * @param size      max size of each dots
      */
     public static void Halftoning(Planar<GrayU8> input, int amplitude, float spread, int size){
-        if(size < 0){
+        if(size <= 0){
             throw new ImageControllerException("size parameter value must be positive");
         }
         toGray(input);
@@ -743,23 +764,25 @@ public abstract class ImageModifier {
             for (int x = 0; x < size; x++)
                 gaussKernel[y][x] = GaussFunction2D(x, y, amplitude, size / 2, size / 2, spread, spread);
 
-        for (int i = 0; i < 3; i++) {
-            for (int y = 0; y < input.getHeight(); y += size) {
-                for (int x = 0; x < input.getWidth(); x += size) {
-                    for (int yShift = 0; yShift < size; yShift++) {
-                        for (int xShift = 0; xShift < size; xShift++) {
-                            if (0 <= x + xShift && x + xShift < input.width && 0 <= y + yShift && y + yShift < input.height) {
-                                if (gaussKernel[yShift][xShift] < input.getBand(i).get(x + xShift, y + yShift)) {
-                                    input.getBand(i).set(x + xShift, y + yShift, 255);
-                                } else {
-                                    input.getBand(i).set(x + xShift, y + yShift, 0);
-                                }
-                            }
-                        }
-                    }
+        // The dots are laid out from the top left corner, so each pixel is compared to the kernel value at its position modulo size
+        // The three bands are gray, so the first one is thresholded and copied to the two others
+        GrayU8 gray = input.getBand(0);
+        TileExecutor.forEachBand(input.width, input.height, Tiling.ROW_LOCAL, (y0, y1) -> {
+            ByteKernels kernels = ByteKernels.get();
+            int[] thresholds = new int[input.width];
+            for (int y = y0; y < y1; y++) {
+                int[] kernelRow = gaussKernel[y % size];
+                for (int x = 0; x < input.width; x += size) {
+                    System.arraycopy(kernelRow, 0, thresholds, x, Math.min(size, input.width - x));
+                }
+                int index = gray.startIndex + y * gray.stride;
+                kernels.threshold(gray.data, index, thresholds, input.width);
+                for (int i = 1; i < 3; i++) {
+                    GrayU8 band = input.getBand(i);
+                    System.arraycopy(gray.data, index, band.data, band.startIndex + y * band.stride, input.width);
                 }
             }
-        }
+        });
     }
 
 
@@ -809,7 +832,7 @@ public abstract class ImageModifier {
             case "scale":
                 if (!params.containsKey("width") || !params.containsKey("height"))
                     throw new ImageControllerException("Wrong arguments");
-                scaling(input, output, Integer.parseInt(params.get("width")), Integer.parseInt(params.get("height")));
+                scaling(input, output, Integer.parseInt(params.get("width")), Integer.parseInt(params.get("height")), Resampler.Filter.parse(params.get("filter")));
                 return true;
             case "reverseHue":
                 reverseHue(input);
@@ -825,7 +848,7 @@ public abstract class ImageModifier {
             case "rotate":
                 if (!params.containsKey("angle"))
                     throw new ImageControllerException("Wrong arguments");
-                rotate(input, output, Integer.parseInt(params.get("angle")));
+                rotate(input, output, Integer.parseInt(params.get("angle")), Interpolation.parse(params.get("interpolation")), Boolean.parseBoolean(params.get("expand")));
                 return true;
             case "wave":
                 if (!params.containsKey("waveAxis") && !params.containsKey("waveOffset") && !params.containsKey("waveType") && !params.containsKey("amplitude") && !params.containsKey("waveLength"))
@@ -857,4 +880,103 @@ public abstract class ImageModifier {
                 throw new ImageControllerException("Unsupported algorithm");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Apply every algorithm of steps, in order, to the input.
+     * Only two images are used whatever the number of steps: when an algorithm writes its result in the second one,
+     * the two images are swapped and the former input is reused as the output of the next step.
+     * Consecutive per-pixel color operations are fused into a single ColorTransform, applied in one pass.
+     *
+     * @param input The input image, which may be modified
+     * @param steps The parameters of each algorithm
+     * @return the image containing the result, either input or an image of the same number of bands
+     */
+    public static Planar<GrayU8> treatPipeline(Planar<GrayU8> input, List<Map<String, String>> steps) {
+        return treatPipeline(input, null, steps);
+    }
+
+    /**
+     * Same as treatPipeline(input, steps) with a given second image.
+     *
+     * @param input The input image, which may be modified
+     * @param spare The second image, of the same number of bands as input, whatever its size and content,
+     *              or null to allocate it if needed
+     * @param steps The parameters of each algorithm
+     * @return the image containing the result, either input or spare (or the allocated image if spare is null)
+     */
+    public static Planar<GrayU8> treatPipeline(Planar<GrayU8> input, Planar<GrayU8> spare, List<Map<String, String>> steps) {
+        return treatPipeline(input, spare, steps, null);
+    }
+
+    /**
+     * Told the time taken by each algorithm of a pipeline.
+     */
+    @FunctionalInterface
+    public interface StepListener {
+        /**
+         * Called after each algorithm, or group of fused color operations, has been applied.
+         *
+         * @param algorithm The name of the algorithm, or the names of several fused color operations joined with "+",
+         *                  each one once and in alphabetical order, such as "negative+sepia"
+         * @param width     The width of the image the algorithm was applied to
+         * @param height    The height of the image the algorithm was applied to
+         * @param nanos     The time taken, in nanoseconds
+         */
+        void stepDone(String algorithm, int width, int height, long nanos);
+    }
+
+    /**
+     * Same as treatPipeline(input, spare, steps), telling listener the time taken by each algorithm.
+     *
+     * @param input    The input image, which may be modified
+     * @param spare    The second image, or null to allocate it if needed
+     * @param steps    The parameters of each algorithm
+     * @param listener Told the time taken by each algorithm, may be null
+     * @return the image containing the result, either input or spare (or the allocated image if spare is null)
+     */
+    public static Planar<GrayU8> treatPipeline(Planar<GrayU8> input, Planar<GrayU8> spare, List<Map<String, String>> steps, StepListener listener) {
+        Planar<GrayU8> output = spare;
+        ColorTransform pending = null;
+        // Names of the pending color operations, sorted so that a group is always told under the same name
+        TreeSet<String> pendingNames = new TreeSet<>();
+        for (Map<String, String> params : steps) {
+            if (params == null || params.get("algorithm") == null)
+                throw new ImageControllerException("Missing algorithm");
+            ColorTransform color = ColorTransform.forParams(params);
+            if (color != null) {
+                pendingNames.add(params.get("algorithm"));
+                pending = (pending == null) ? color : pending.andThen(color);
+                continue;
+            }
+            if (pending != null) {
+                applyColor(pending, String.join("+", pendingNames), input, listener);
+                pending = null;
+                pendingNames.clear();
+            }
+            long start = System.nanoTime();
+            int width = input.width, height = input.height;
+            // Algorithms expect a blank output of the size of their input
+            if (output == null) {
+                output = input.createSameShape();
+            } else {
+                output.reshape(input.width, input.height);
+                GImageMiscOps.fill(output, 0);
+            }
+            if (treatInput(input, output, params)) {
+                Planar<GrayU8> swap = input;
+                input = output;
+                output = swap;
+            }
+            if (listener != null) listener.stepDone(params.get("algorithm"), width, height, System.nanoTime() - start);
+        }
+        if (pending != null) applyColor(pending, String.join("+", pendingNames), input, listener);
+        return input;
+    }
+
+    private static void applyColor(ColorTransform transform, String name, Planar<GrayU8> input, StepListener listener) {
+        long start = System.nanoTime();
+        transform.apply(input);
+        if (listener != null)
+            listener.stepDone(name, input.width, input.height, System.nanoTime() - start);
+    }
+}
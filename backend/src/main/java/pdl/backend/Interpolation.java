@@ -0,0 +1,33 @@
+package pdl.backend;
+
+/**
+ * How the geometric transforms sample the input between its pixels.
+ */
+public enum Interpolation {
+    /** The pixel containing the sampled point, the fastest one, with jagged edges. */
+    NEAREST,
+    /** Weighted mean of the 2x2 pixels around the sampled point. */
+    BILINEAR,
+    /** Catmull-Rom spline on the 4x4 pixels around the sampled point, sharper than bilinear. */
+    BICUBIC;
+
+    /**
+     * Read an interpolation from a request parameter.
+     *
+     * @param value "nearest", "bilinear" or "bicubic" in any case, or null
+     * @return the interpolation, NEAREST if value is null
+     */
+    public static Interpolation parse(String value) {
+        if (value == null) return NEAREST;
+        switch (value.toLowerCase()) {
+            case "nearest":
+                return NEAREST;
+            case "bilinear":
+                return BILINEAR;
+            case "bicubic":
+                return BICUBIC;
+            default:
+                throw new ImageControllerException("interpolation parameter must be 'nearest', 'bilinear' or 'bicubic'");
+        }
+    }
+}
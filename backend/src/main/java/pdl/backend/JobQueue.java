@@ -0,0 +1,223 @@
+package pdl.backend;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transformations run outside of the request threads, on a fixed number of threads with a bounded queue.
+ * The result of a job is kept for a while after it finishes, then the job is forgotten. The results kept together
+ * are limited in size, the largest ones are forgotten first, except the one which just finished.
+ */
+@Component
+public class JobQueue {
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    /**
+     * A transformation submitted to the queue.
+     */
+    public static final class Job {
+        private final long id;
+        private final MediaType mediaType;
+        private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        private volatile boolean started = false;
+        // Time in nanoseconds after which a finished job is dropped
+        private volatile long expiresAt = Long.MAX_VALUE;
+        // Size of the result, counted in the retained bytes while the job is kept
+        private long size = 0;
+
+        private Job(long id, MediaType mediaType) {
+            this.id = id;
+            this.mediaType = mediaType;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public MediaType getMediaType() {
+            return mediaType;
+        }
+
+        public Status getStatus() {
+            if (result.isCompletedExceptionally()) return Status.FAILED;
+            if (result.isDone()) return Status.DONE;
+            return started ? Status.RUNNING : Status.QUEUED;
+        }
+
+        /**
+         * Run action once the job is done or failed, right away if it already is.
+         *
+         * @param action The action, run by the thread finishing the job or by the caller
+         */
+        public void whenFinished(Runnable action) {
+            result.whenComplete((bytes, error) -> action.run());
+        }
+
+        /**
+         * Return the encoded result of a job that is done.
+         *
+         * @return the result, or null if the job is not done
+         */
+        public byte[] getResult() {
+            return (getStatus() == Status.DONE) ? result.join() : null;
+        }
+
+        /**
+         * Return the exception thrown by a failed job.
+         *
+         * @return the exception, or null if the job did not fail
+         */
+        public Throwable getError() {
+            if (!result.isCompletedExceptionally()) return null;
+            try {
+                result.get();
+                return null;
+            } catch (ExecutionException e) {
+                return e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final long ttlNanos;
+    private final long maxBytes;
+    private final ConcurrentHashMap<Long, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong count = new AtomicLong(0);
+    // Total size of the results of the jobs kept, guarded by this
+    private long retainedBytes = 0;
+
+    public JobQueue(@Value("${images.jobs.threads:2}") int threads,
+                    @Value("${images.jobs.queue:16}") int queueSize,
+                    @Value("${images.jobs.ttl-seconds:300}") long ttlSeconds,
+                    @Value("${images.jobs.max-bytes:134217728}") long maxBytes) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), runnable -> {
+            Thread thread = new Thread(runnable, "image-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.maxBytes = maxBytes;
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queue a transformation.
+     *
+     * @param mediaType The format of the result
+     * @param task      The transformation, returning the encoded result
+     * @return the job
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public Job submit(MediaType mediaType, Callable<byte[]> task) {
+        purgeExpired();
+        Job job = new Job(count.getAndIncrement(), mediaType);
+        jobs.put(job.id, job);
+        try {
+            executor.execute(() -> {
+                job.started = true;
+                byte[] result = null;
+                Throwable error = null;
+                try {
+                    result = task.call();
+                } catch (Exception | Error e) {
+                    error = e;
+                }
+                // Set first, so that a job seen finished already has its expiry
+                job.expiresAt = System.nanoTime() + ttlNanos;
+                if (result != null) retain(job, result.length);
+                if (error == null) job.result.complete(result);
+                else job.result.completeExceptionally(error);
+            });
+        } catch (RejectedExecutionException e) {
+            forget(job);
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * Return the job with the corresponding id, if it has not expired.
+     *
+     * @param id The id of the job
+     * @return the job
+     */
+    public Optional<Job> retrieve(long id) {
+        purgeExpired();
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    /**
+     * Wait until job is finished or the timeout elapses.
+     *
+     * @param job     The job
+     * @param timeout The maximum time to wait, in milliseconds
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void await(Job job, long timeout) throws InterruptedException {
+        if (timeout <= 0) return;
+        try {
+            job.result.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            // The status tells what happened
+        }
+    }
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    // Count the result of job, and forget the largest other results while the total is over the limit
+    private synchronized void retain(Job job, long size) {
+        if (!jobs.containsKey(job.id)) return;
+        job.size = size;
+        retainedBytes += size;
+        while (retainedBytes > maxBytes) {
+            Job largest = null;
+            for (Job other : jobs.values()) {
+                if (other != job && other.size > 0 && (largest == null || other.size > largest.size)) largest = other;
+            }
+            if (largest == null) break;
+            forget(largest);
+        }
+    }
+
+    private synchronized void forget(Job job) {
+        if (jobs.remove(job.id, job)) retainedBytes -= job.size;
+    }
+
+    private void purgeExpired() {
+        long now = System.nanoTime();
+        for (Job job : jobs.values()) {
+            if (job.expiresAt != Long.MAX_VALUE && job.expiresAt - now < 0) forget(job);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package pdl.backend;
+
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import pdl.backend.TileExecutor.Tiling;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * 256 entries table for point operations, where each output value only depends on the input value of the same band.
+ * Consecutive point operations are composed into a single table, which is applied in one pass over the raw band data.
+ */
+public final class LookupTable {
+    private final byte[] table;
+    // Whether the table is v + delta, or 255 - v + delta if negate is set, clamped to [0,255]: the vector kernels
+    // compute it faster than they would read the table
+    private final boolean affine;
+    private final boolean negate;
+    private final int delta;
+
+    private LookupTable(byte[] table) {
+        this(table, false, false, 0);
+    }
+
+    private LookupTable(byte[] table, boolean affine, boolean negate, int delta) {
+        this.table = table;
+        this.affine = affine;
+        this.negate = negate;
+        this.delta = delta;
+    }
+
+    private static LookupTable affine(boolean negate, int delta) {
+        return new LookupTable(of(v -> (negate ? 255 - v : v) + delta).table, true, negate, delta);
+    }
+
+    /**
+     * Build the table of a point operation, results are clamped to [0,255].
+     *
+     * @param op The operation on a value in [0,255]
+     * @return the table of op
+     */
+    public static LookupTable of(IntUnaryOperator op) {
+        byte[] table = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            table[i] = (byte) Math.max(0, Math.min(op.applyAsInt(i), 255));
+        }
+        return new LookupTable(table);
+    }
+
+    public static LookupTable identity() {
+        return affine(false, 0);
+    }
+
+    public static LookupTable addLuminosity(int delta) {
+        return affine(false, delta);
+    }
+
+    public static LookupTable negative() {
+        return affine(true, 0);
+    }
+
+    /**
+     * Return the table of the algorithm described by params if it is a point operation.
+     *
+     * @param params The map containing parameters
+     * @return the table, or null if the algorithm is not a point operation
+     */
+    public static LookupTable forParams(Map<String, String> params) {
+        String algorithm = params.get("algorithm");
+        if (algorithm == null) return null;
+        switch (algorithm) {
+            case "addLuminosityRGB":
+                if (!params.containsKey("gain"))
+                    throw new ImageControllerException("Wrong argument");
+                return addLuminosity(Integer.parseInt(params.get("gain")));
+            case "negative":
+                return negative();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Compose this table with next, the result applies this operation then next.
+     *
+     * @param next The operation applied after this one
+     * @return the composed table
+     */
+    public LookupTable andThen(LookupTable next) {
+        byte[] composed = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            composed[i] = next.table[table[i] & 0xFF];
+        }
+        if (affine && next.affine) {
+            // Without the clamping in between the composition is still affine, which holds unless a value saturated
+            int offset = (negate ? 255 : 0) + delta;
+            offset = (next.negate ? 255 - offset : offset) + next.delta;
+            boolean composedNegate = negate != next.negate;
+            LookupTable candidate = affine(composedNegate, composedNegate ? offset - 255 : offset);
+            if (Arrays.equals(candidate.table, composed)) return candidate;
+        }
+        return new LookupTable(composed);
+    }
+
+    public int get(int value) {
+        return table[value] & 0xFF;
+    }
+
+    /**
+     * Apply the table to the color bands (at most 3, the alpha band is left untouched) of the input image.
+     *
+     * @param input The input image, modified in place
+     */
+    public void apply(Planar<GrayU8> input) {
+        int numBands = Math.min(input.getNumBands(), 3);
+        TileExecutor.forEachBand(input.width, input.height, Tiling.ROW_LOCAL, (y0, y1) -> {
+            for (int i = 0; i < numBands; i++) {
+                apply(input.getBand(i), y0, y1);
+            }
+        });
+    }
+
+    private void apply(GrayU8 band, int y0, int y1) {
+        byte[] data = band.data;
+        ByteKernels kernels = ByteKernels.get();
+        if (affine && kernels.isVectorized()) {
+            for (int y = y0; y < y1; y++) {
+                int index = band.startIndex + y * band.stride;
+                kernels.affine(data, index, index + band.width, negate, delta);
+            }
+            return;
+        }
+        for (int y = y0; y < y1; y++) {
+            int index = band.startIndex + y * band.stride;
+            int end = index + band.width;
+            for (; index < end; index++) {
+                data[index] = table[data[index] & 0xFF];
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package pdl.backend;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Adapt the parameters of the algorithms to a reduced copy of the image, so that a preview looks like the result
+ * on the full image. The parameters given in pixels, such as the size of a blur or the length of a wave, are scaled
+ * by the ratio of the sizes of the copy and of the image. The others, such as angles and colors, are kept.
+ */
+final class Preview {
+
+    // The parameters of each algorithm that are lengths in pixels
+    private static final Map<String, Set<String>> PIXEL_PARAMS = Map.of(
+            "blur", Set.of("size"),
+            "scale", Set.of("width", "height"),
+            "wave", Set.of("waveOffset", "amplitude", "waveLength"),
+            "halftoning", Set.of("spread", "dotSize"));
+    // Lengths that may be zero or negative, the others are sizes kept at least 1
+    private static final Set<String> SIGNED_PARAMS = Set.of("waveOffset", "amplitude");
+
+    private Preview() {
+    }
+
+    /**
+     * Return the steps to apply to a copy of the image reduced by factor.
+     *
+     * @param steps  The parameters of each algorithm, for the full image
+     * @param factor The size of the copy divided by the size of the image, at most 1
+     * @return new parameters, the pixel lengths being multiplied by factor and rounded, and kept positive
+     */
+    static List<Map<String, String>> scaleSteps(List<Map<String, String>> steps, double factor) {
+        List<Map<String, String>> scaled = new ArrayList<>(steps.size());
+        for (Map<String, String> params : steps) {
+            Set<String> pixelParams = (params == null) ? null : PIXEL_PARAMS.get(params.get("algorithm"));
+            if (pixelParams == null) {
+                scaled.add(params);
+                continue;
+            }
+            Map<String, String> copy = new HashMap<>(params);
+            for (String name : pixelParams) {
+                String value = params.get(name);
+                if (value != null) copy.put(name, scale(name, value, factor));
+            }
+            scaled.add(copy);
+        }
+        return scaled;
+    }
+
+    // Invalid values are kept, so that the algorithm rejects them as it would on the full image
+    private static String scale(String name, String value, double factor) {
+        try {
+            if (name.equals("spread")) return Float.toString((float) (Float.parseFloat(value) * factor));
+            int length = Integer.parseInt(value);
+            if (SIGNED_PARAMS.contains(name)) return Integer.toString((int) Math.round(length * factor));
+            if (length <= 0) return value;
+            return Integer.toString(Math.max(1, (int) Math.round(length * factor)));
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package pdl.backend;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reduced copies of the images, whose longest side is one of a few fixed sizes, for the gallery and the previews.
+ * The renditions of an image are generated together in the background, from the largest to the smallest, each one
+ * being scaled down from the previous one. They are kept within a memory budget, the least recently used ones being
+ * generated again when they are requested.
+ */
+@Component
+public class RenditionStore {
+
+    /**
+     * Scale an encoded image to the given size, keeping its format.
+     */
+    @FunctionalInterface
+    public interface Renderer {
+        byte[] render(InputStream is, MediaType mediaType, int width, int height) throws IOException;
+    }
+
+    private static final class Key {
+        private final long imageId;
+        private final int size;
+
+        Key(long imageId, int size) {
+            this.imageId = imageId;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return imageId == key.imageId && size == key.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(imageId, size);
+        }
+    }
+
+    // Sorted from the largest to the smallest
+    private final int[] sizes;
+    private final long maxBytes;
+    // Null when the renditions are only generated on request, by the requesting thread
+    private final ExecutorService executor;
+
+    // Access ordered so that iteration starts from the least recently used entry
+    private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes = 0;
+    // Generation of the renditions of an image, removed once they are stored
+    private final ConcurrentHashMap<Long, CompletableFuture<Map<Integer, byte[]>>> pending = new ConcurrentHashMap<>();
+
+    public RenditionStore(@Value("${images.renditions.sizes:128,512,2048}") int[] sizes,
+                          @Value("${images.renditions.max-bytes:67108864}") long maxBytes,
+                          @Value("${images.renditions.threads:1}") int threads) {
+        this.sizes = Arrays.stream(sizes).filter(size -> size > 0).boxed()
+                .sorted((a, b) -> b - a).mapToInt(Integer::intValue).distinct().toArray();
+        this.maxBytes = maxBytes;
+        this.executor = (threads <= 0) ? null : Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "image-rendition-generator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void close() {
+        if (executor != null) executor.shutdownNow();
+    }
+
+    /**
+     * Return whether size is one of the sizes of the renditions.
+     *
+     * @param size The size of the longest side
+     * @return true if renditions of this size are generated
+     */
+    public boolean isSize(int size) {
+        for (int s : sizes) {
+            if (s == size) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Start generating the renditions of a new image in the background, if the store has threads.
+     *
+     * @param image    The image
+     * @param renderer How the image is scaled
+     */
+    public void generate(Image image, Renderer renderer) {
+        if (executor != null) generation(image, renderer);
+    }
+
+    /**
+     * Return the rendition of an image, generating the renditions of the image if needed.
+     *
+     * @param image    The image
+     * @param size     The size of the longest side of the rendition, one of the sizes of the store
+     * @param renderer How the image is scaled
+     * @return the encoded rendition, in the format of the image, or null if the image is not larger than size
+     * @throws IOException if the image cannot be decoded
+     */
+    public byte[] get(Image image, int size, Renderer renderer) throws IOException {
+        ImageMetadata metadata = image.getMetadata();
+        if (metadata == null) throw new IOException("Could not read image");
+        if (Math.max(metadata.getWidth(), metadata.getHeight()) <= size) return null;
+        synchronized (this) {
+            byte[] bytes = entries.get(new Key(image.getId(), size));
+            if (bytes != null) return bytes;
+        }
+        try {
+            return generation(image, renderer).join().get(size);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) e.getCause()).getCause();
+            // Such as the admission of the renderer being refused
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    // The generation running for image, or a new one
+    private CompletableFuture<Map<Integer, byte[]>> generation(Image image, Renderer renderer) {
+        CompletableFuture<Map<Integer, byte[]>> future = new CompletableFuture<>();
+        CompletableFuture<Map<Integer, byte[]>> running = pending.putIfAbsent(image.getId(), future);
+        if (running != null) return running;
+        Runnable task = () -> {
+            try {
+                Map<Integer, byte[]> renditions = render(image, renderer);
+                store(image.getId(), renditions, future);
+                future.complete(renditions);
+            } catch (IOException e) {
+                future.completeExceptionally(new UncheckedIOException(e));
+            } catch (RuntimeException | Error e) {
+                future.completeExceptionally(e);
+            } finally {
+                pending.remove(image.getId(), future);
+            }
+        };
+        if (executor == null) task.run();
+        else executor.execute(task);
+        return future;
+    }
+
+    private Map<Integer, byte[]> render(Image image, Renderer renderer) throws IOException {
+        Map<Integer, byte[]> renditions = new HashMap<>();
+        ImageMetadata metadata = image.getMetadata();
+        if (metadata == null) throw new IOException("Could not read image");
+        int width = metadata.getWidth(), height = metadata.getHeight();
+        byte[] source = null;
+        for (int size : sizes) {
+            if (Math.max(width, height) <= size) continue;
+            double scale = (double) size / Math.max(width, height);
+            int renditionWidth = Math.max(1, (int) Math.round(width * scale));
+            int renditionHeight = Math.max(1, (int) Math.round(height * scale));
+            // A rendition is many times smaller than the image, so the next one is scaled down from it
+            try (InputStream is = (source == null) ? image.getInputStream() : new ByteArrayInputStream(source)) {
+                source = renderer.render(is, image.mediaType, renditionWidth, renditionHeight);
+            }
+            renditions.put(size, source);
+        }
+        return renditions;
+    }
+
+    // Renditions finished after the image was deleted are not stored
+    private synchronized void store(long imageId, Map<Integer, byte[]> renditions, CompletableFuture<Map<Integer, byte[]>> future) {
+        if (pending.get(imageId) != future) return;
+        for (Map.Entry<Integer, byte[]> rendition : renditions.entrySet()) {
+            byte[] bytes = rendition.getValue();
+            if (bytes.length > maxBytes) continue;
+            byte[] previous = entries.put(new Key(imageId, rendition.getKey()), bytes);
+            if (previous != null) currentBytes -= previous.length;
+            currentBytes += bytes.length;
+        }
+        Iterator<byte[]> it = entries.values().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            currentBytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Drop the renditions of the image with the corresponding id, and those being generated.
+     *
+     * @param imageId The id of the image
+     */
+    public synchronized void invalidate(long imageId) {
+        pending.remove(imageId);
+        Iterator<Map.Entry<Key, byte[]>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, byte[]> entry = it.next();
+            if (entry.getKey().imageId == imageId) {
+                currentBytes -= entry.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
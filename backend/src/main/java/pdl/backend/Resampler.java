@@ -0,0 +1,419 @@
+package pdl.backend;
+
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import pdl.backend.TileExecutor.Tiling;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Resize Planar images with separable filters: the rows and the columns are resampled one after the other, in the
+ * order doing the less work.
+ * The weights of the filter are computed once per output column and once per output row, as fixed point numbers.
+ * Large reductions first average blocks of a power of two pixels, so that the filter reads a few pixels per output
+ * pixel whatever the ratio: the first 2x2 averaging, which reads the whole input, works on 4 pixels at once.
+ */
+public abstract class Resampler {
+
+    /**
+     * The filter weighting the input pixels around each output pixel.
+     */
+    public enum Filter {
+        /** The input pixel at the position of the output pixel, without any weighting. */
+        NEAREST(0),
+        /** Mean of the input pixels covered by the output pixel. */
+        BOX(0.5),
+        /** Linear interpolation, a triangle over two output pixels when reducing. */
+        BILINEAR(1),
+        /** Catmull-Rom cubic spline. */
+        BICUBIC(2),
+        /** Windowed sinc over three lobes, the sharpest and slowest one. */
+        LANCZOS3(3);
+
+        // Half width of the filter, in output pixels
+        private final double support;
+
+        Filter(double support) {
+            this.support = support;
+        }
+
+        private double weight(double x) {
+            x = Math.abs(x);
+            switch (this) {
+                case BOX:
+                    return (x <= 0.5) ? 1 : 0;
+                case BILINEAR:
+                    return (x < 1) ? 1 - x : 0;
+                case BICUBIC:
+                    if (x < 1) return (1.5 * x - 2.5) * x * x + 1;
+                    if (x < 2) return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+                    return 0;
+                case LANCZOS3:
+                    return (x < 3) ? sinc(x) * sinc(x / 3) : 0;
+                default:
+                    return (x == 0) ? 1 : 0;
+            }
+        }
+
+        private static double sinc(double x) {
+            if (x == 0) return 1;
+            x *= Math.PI;
+            return Math.sin(x) / x;
+        }
+
+        /**
+         * Read a filter from a request parameter.
+         *
+         * @param value "nearest", "box", "bilinear", "bicubic" or "lanczos3" in any case, or null
+         * @return the filter, NEAREST if value is null
+         */
+        public static Filter parse(String value) {
+            if (value == null) return NEAREST;
+            switch (value.toLowerCase()) {
+                case "nearest":
+                    return NEAREST;
+                case "box":
+                    return BOX;
+                case "bilinear":
+                    return BILINEAR;
+                case "bicubic":
+                    return BICUBIC;
+                case "lanczos3":
+                    return LANCZOS3;
+                default:
+                    throw new ImageControllerException("filter parameter must be 'nearest', 'box', 'bilinear', 'bicubic' or 'lanczos3'");
+            }
+        }
+    }
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    // The low byte of each 16 bits lane of a long
+    private static final long PAIRS = 0x00FF00FF00FF00FFL;
+
+    // Weights are fixed point numbers with this many fractional bits
+    private static final int BITS = 16;
+    private static final int ONE = 1 << BITS;
+
+    // Blocks are averaged as long as the filter still reduces the averaged image by this ratio at least
+    private static final int REDUCING_GAP = 2;
+
+    // The columns pass sums whole input rows, with the vector kernels when they are available, and costs about this
+    // many times less per weight than the rows pass, whose sums are over a few consecutive pixels
+    private static final int COLUMNS_SPEEDUP = 4;
+
+    /**
+     * Return by how much a decoder may subsample an image that is then resized with this filter, keeping one pixel
+     * out of the result in each direction, so that the result has the same pixels as with the whole image.
+     * Only NEAREST is subsampled, when every pixel it picks is one the decoder keeps: the other filters average
+     * the pixels a decoder would skip.
+     *
+     * @param sourceWidth  The width of the encoded image
+     * @param sourceHeight The height of the encoded image
+     * @param width        The width of the output
+     * @param height       The height of the output
+     * @param filter       The filter used
+     * @return the subsampling step, 1 to decode every pixel
+     */
+    public static int sourceSubsampling(int sourceWidth, int sourceHeight, int width, int height, Filter filter) {
+        if (filter != Filter.NEAREST || width <= 0 || height <= 0) return 1;
+        for (int step = Math.min(sourceWidth / width, sourceHeight / height); step > 1; step--) {
+            if (keepsNearestPixels(sourceWidth, width, step) && keepsNearestPixels(sourceHeight, height, step)) return step;
+        }
+        return 1;
+    }
+
+    // Whether nearest picks the same pixels out of sourceSize ones reduced to size, whether one pixel out of step is
+    // kept first or not
+    private static boolean keepsNearestPixels(int sourceSize, int size, int step) {
+        float ratio = (float) sourceSize / size;
+        float subsampledRatio = (float) ((sourceSize + step - 1) / step) / size;
+        for (int x = 0; x < size; x++) {
+            if (nearestPixel(subsampledRatio, x) * step != nearestPixel(ratio, x)) return false;
+        }
+        return true;
+    }
+
+    // The pixel nearest picks for x, ratio being the size of the input over the size of the output
+    private static int nearestPixel(float ratio, int x) {
+        return (int) Math.floor(ratio * x);
+    }
+
+    /**
+     * Resize input into output.
+     *
+     * @param input  The input image
+     * @param output The output image, reshaped to width x height
+     * @param width  The width of the output, positive
+     * @param height The height of the output, positive
+     * @param filter The filter used
+     */
+    public static void resample(Planar<GrayU8> input, Planar<GrayU8> output, int width, int height, Filter filter) {
+        output.reshape(width, height);
+        if (filter == Filter.NEAREST) {
+            nearest(input, output);
+            return;
+        }
+        int xFactor = 1, yFactor = 1;
+        while (input.width >= (long) 2 * xFactor * REDUCING_GAP * width) xFactor *= 2;
+        while (input.height >= (long) 2 * yFactor * REDUCING_GAP * height) yFactor *= 2;
+        // The averaged pixels keep the geometry of the input, only the scale of the filter changes
+        double xScale = (double) input.width / xFactor / width;
+        double yScale = (double) input.height / yFactor / height;
+        Planar<GrayU8> source = input;
+        if (xFactor > 1 && yFactor > 1) {
+            source = halve(source);
+            xFactor /= 2;
+            yFactor /= 2;
+        }
+        if (xFactor > 1 || yFactor > 1) {
+            Planar<GrayU8> reduced = new Planar<>(GrayU8.class, (source.width + xFactor - 1) / xFactor, (source.height + yFactor - 1) / yFactor, input.getNumBands());
+            reduce(source, reduced, xFactor, yFactor);
+            source = reduced;
+        }
+        Weights xWeights = (source.width != input.width || width != input.width) ? weights(source.width, width, xScale, filter) : null;
+        Weights yWeights = (source.height != input.height || height != input.height) ? weights(source.height, height, yScale, filter) : null;
+        if (xWeights == null && yWeights == null) {
+            output.setTo(source);
+        } else if (xWeights == null) {
+            resampleColumns(source, output, yWeights);
+        } else if (yWeights == null) {
+            resampleRows(source, output, xWeights);
+        } else if ((long) COLUMNS_SPEEDUP * width * source.height * xWeights.taps + (long) width * height * yWeights.taps
+                <= (long) source.width * height * yWeights.taps + (long) COLUMNS_SPEEDUP * width * height * xWeights.taps) {
+            Planar<GrayU8> buffer = new Planar<>(GrayU8.class, width, source.height, input.getNumBands());
+            resampleRows(source, buffer, xWeights);
+            resampleColumns(buffer, output, yWeights);
+        } else {
+            // Resampling the columns first does less work, typically when reducing
+            Planar<GrayU8> buffer = new Planar<>(GrayU8.class, source.width, height, input.getNumBands());
+            resampleColumns(source, buffer, yWeights);
+            resampleRows(buffer, output, xWeights);
+        }
+    }
+
+    // The column fetched is the same on every row, as the scale algorithm always did
+    private static void nearest(Planar<GrayU8> input, Planar<GrayU8> output) {
+        int newWidth = output.width, newHeight = output.height;
+        int numBands = input.getNumBands();
+        float y_ratio = (float) input.height / newHeight;
+        float x_ratio = (float) input.width / newWidth;
+        int[] fetch_x = new int[newWidth];
+        for (int x = 0; x < newWidth; x++) {
+            fetch_x[x] = nearestPixel(x_ratio, x);
+        }
+        TileExecutor.forEachBand(newWidth, newHeight, Tiling.GATHER, (y0, y1) -> {
+            for (int i = 0; i < numBands; i++) {
+                GrayU8 bandIn = input.getBand(i);
+                GrayU8 bandOut = output.getBand(i);
+                for (int y = y0; y < y1; y++) {
+                    int fetch_y = nearestPixel(y_ratio, y);
+                    int inIndex = bandIn.startIndex + fetch_y * bandIn.stride;
+                    int outIndex = bandOut.startIndex + y * bandOut.stride;
+                    for (int x = 0; x < newWidth; x++) {
+                        bandOut.data[outIndex + x] = bandIn.data[inIndex + fetch_x[x]];
+                    }
+                }
+            }
+        });
+    }
+
+    // Average the blocks of 2x2 pixels, the blocks of the last row and column may be smaller. Four pixels of a row are
+    // read as a long, in which the sums of the pairs of pixels fit in 16 bits lanes, and the four averages are written
+    // as an int.
+    private static Planar<GrayU8> halve(Planar<GrayU8> input) {
+        Planar<GrayU8> output = new Planar<>(GrayU8.class, (input.width + 1) / 2, (input.height + 1) / 2, input.getNumBands());
+        int fullWidth = input.width / 2;
+        TileExecutor.forEachBand(output.width, output.height, Tiling.GATHER, (y0, y1) -> {
+            for (int i = 0; i < input.getNumBands(); i++) {
+                GrayU8 bandIn = input.getBand(i), bandOut = output.getBand(i);
+                byte[] in = bandIn.data, out = bandOut.data;
+                for (int y = y0; y < y1; y++) {
+                    int index0 = bandIn.startIndex + 2 * y * bandIn.stride;
+                    // The last row of an odd height is averaged with itself
+                    int index1 = (2 * y + 1 < input.height) ? index0 + bandIn.stride : index0;
+                    int outIndex = bandOut.startIndex + y * bandOut.stride;
+                    int x = 0;
+                    for (; x + 4 <= fullWidth; x += 4) {
+                        long row0 = (long) LONGS.get(in, index0 + 2 * x), row1 = (long) LONGS.get(in, index1 + 2 * x);
+                        long sums = (row0 & PAIRS) + ((row0 >>> 8) & PAIRS) + (row1 & PAIRS) + ((row1 >>> 8) & PAIRS);
+                        long means = ((sums + 0x0002000200020002L) >>> 2) & PAIRS;
+                        long packed = means | (means >>> 8);
+                        INTS.set(out, outIndex + x, (int) ((packed & 0xFFFF) | ((packed >>> 16) & 0xFFFF0000L)));
+                    }
+                    for (; x < fullWidth; x++) {
+                        out[outIndex + x] = (byte) (((in[index0 + 2 * x] & 0xFF) + (in[index0 + 2 * x + 1] & 0xFF)
+                                + (in[index1 + 2 * x] & 0xFF) + (in[index1 + 2 * x + 1] & 0xFF) + 2) >> 2);
+                    }
+                    if (fullWidth < output.width) {
+                        int last = input.width - 1;
+                        out[outIndex + fullWidth] = (byte) (((in[index0 + last] & 0xFF) + (in[index1 + last] & 0xFF) + 1) >> 1);
+                    }
+                }
+            }
+        });
+        return output;
+    }
+
+    // Average the blocks of xFactor x yFactor pixels, the blocks of the last row and column may be smaller
+    private static void reduce(Planar<GrayU8> input, Planar<GrayU8> output, int xFactor, int yFactor) {
+        int shift = Integer.numberOfTrailingZeros(xFactor * yFactor);
+        // Blocks fully inside the input, their sum is divided with a shift
+        int fullWidth = input.width / xFactor;
+        TileExecutor.forEachBand(output.width, output.height, Tiling.GATHER, (y0, y1) -> {
+            int[] sums = new int[output.width];
+            for (int i = 0; i < input.getNumBands(); i++) {
+                GrayU8 bandIn = input.getBand(i), bandOut = output.getBand(i);
+                byte[] in = bandIn.data;
+                for (int y = y0; y < y1; y++) {
+                    Arrays.fill(sums, 0);
+                    int yIn0 = y * yFactor, yIn1 = Math.min(yIn0 + yFactor, input.height);
+                    for (int yIn = yIn0; yIn < yIn1; yIn++) {
+                        int index = bandIn.startIndex + yIn * bandIn.stride;
+                        if (xFactor == 1) {
+                            for (int x = 0; x < fullWidth; x++) {
+                                sums[x] += in[index + x] & 0xFF;
+                            }
+                        } else if (xFactor == 2) {
+                            for (int x = 0; x < fullWidth; x++) {
+                                sums[x] += (in[index + 2 * x] & 0xFF) + (in[index + 2 * x + 1] & 0xFF);
+                            }
+                        } else {
+                            for (int x = 0; x < fullWidth; x++) {
+                                int sum = 0;
+                                for (int k = index + x * xFactor, end = k + xFactor; k < end; k++) {
+                                    sum += in[k] & 0xFF;
+                                }
+                                sums[x] += sum;
+                            }
+                        }
+                        for (int x = fullWidth * xFactor; x < input.width; x++) {
+                            sums[fullWidth] += in[index + x] & 0xFF;
+                        }
+                    }
+                    int outIndex = bandOut.startIndex + y * bandOut.stride;
+                    int rows = yIn1 - yIn0;
+                    if (rows == yFactor) {
+                        for (int x = 0; x < fullWidth; x++) {
+                            bandOut.data[outIndex + x] = (byte) ((sums[x] + (1 << shift >> 1)) >> shift);
+                        }
+                    } else {
+                        for (int x = 0; x < fullWidth; x++) {
+                            bandOut.data[outIndex + x] = (byte) ((sums[x] + rows * xFactor / 2) / (rows * xFactor));
+                        }
+                    }
+                    if (fullWidth < output.width) {
+                        int count = rows * (input.width - fullWidth * xFactor);
+                        bandOut.data[outIndex + fullWidth] = (byte) ((sums[fullWidth] + count / 2) / count);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Weights of the input pixels read by each output pixel along one axis.
+     */
+    private static final class Weights {
+        // Number of weights per output pixel
+        final int taps;
+        // First input pixel read by each output pixel, the taps pixels from it are inside the input
+        final int[] first;
+        // The taps weights of each output pixel, they sum to ONE
+        final int[] values;
+
+        Weights(int taps, int size) {
+            this.taps = taps;
+            first = new int[size];
+            values = new int[size * taps];
+        }
+    }
+
+    private static Weights weights(int inSize, int outSize, double scale, Filter filter) {
+        // When reducing, the filter is stretched over the input pixels covered by an output pixel
+        double filterScale = Math.max(scale, 1);
+        double support = filter.support * filterScale;
+        Weights weights = new Weights(Math.min(2 * (int) Math.ceil(support) + 1, inSize), outSize);
+        double[] values = new double[weights.taps];
+        for (int i = 0; i < outSize; i++) {
+            double center = (i + 0.5) * scale;
+            int min = Math.max(0, (int) (center - support + 0.5));
+            int max = Math.min(inSize, (int) (center + support + 0.5));
+            // Read the taps pixels from min, or the last taps pixels of the input near its end
+            int first = Math.min(min, inSize - weights.taps);
+            Arrays.fill(values, 0);
+            double total = 0;
+            for (int x = min; x < max; x++) {
+                values[x - first] = filter.weight((x - center + 0.5) / filterScale);
+                total += values[x - first];
+            }
+            int base = i * weights.taps;
+            if (total == 0) {
+                // No pixel under the filter, which only happens on the edges: take the nearest one
+                weights.values[base + Math.max(0, Math.min((int) center, inSize - 1)) - first] = ONE;
+            } else {
+                int sum = 0, largest = 0;
+                for (int k = 0; k < weights.taps; k++) {
+                    weights.values[base + k] = (int) Math.round(values[k] / total * ONE);
+                    sum += weights.values[base + k];
+                    if (weights.values[base + k] > weights.values[base + largest]) largest = k;
+                }
+                // The rounding error goes to the largest weight, so that a plain area stays the same
+                weights.values[base + largest] += ONE - sum;
+            }
+            weights.first[i] = first;
+        }
+        return weights;
+    }
+
+    private static byte clamp(int sum) {
+        return (byte) Math.max(0, Math.min(sum >> BITS, 255));
+    }
+
+    private static void resampleRows(Planar<GrayU8> input, Planar<GrayU8> output, Weights weights) {
+        int taps = weights.taps;
+        TileExecutor.forEachBand(output.width, output.height, Tiling.GATHER, (y0, y1) -> {
+            for (int i = 0; i < input.getNumBands(); i++) {
+                GrayU8 bandIn = input.getBand(i), bandOut = output.getBand(i);
+                byte[] in = bandIn.data;
+                for (int y = y0; y < y1; y++) {
+                    int inIndex = bandIn.startIndex + y * bandIn.stride;
+                    int outIndex = bandOut.startIndex + y * bandOut.stride;
+                    for (int x = 0, base = 0; x < output.width; x++, base += taps) {
+                        int index = inIndex + weights.first[x];
+                        int sum = ONE / 2;
+                        for (int k = 0; k < taps; k++) {
+                            sum += weights.values[base + k] * (in[index + k] & 0xFF);
+                        }
+                        bandOut.data[outIndex + x] = clamp(sum);
+                    }
+                }
+            }
+        });
+    }
+
+    private static void resampleColumns(Planar<GrayU8> input, Planar<GrayU8> output, Weights weights) {
+        int taps = weights.taps;
+        int width = output.width;
+        TileExecutor.forEachBand(width, output.height, Tiling.GATHER, (y0, y1) -> {
+            // The weighted input rows are summed one after the other, which reads them sequentially
+            ByteKernels kernels = ByteKernels.get();
+            int[] sums = new int[width];
+            for (int i = 0; i < input.getNumBands(); i++) {
+                GrayU8 bandIn = input.getBand(i), bandOut = output.getBand(i);
+                for (int y = y0; y < y1; y++) {
+                    Arrays.fill(sums, ONE / 2);
+                    for (int k = 0; k < taps; k++) {
+                        int weight = weights.values[y * taps + k];
+                        if (weight == 0) continue;
+                        kernels.accumulate(sums, bandIn.data, bandIn.startIndex + (weights.first[y] + k) * bandIn.stride, weight, width);
+                    }
+                    kernels.shiftClamp(sums, BITS, bandOut.data, bandOut.startIndex + y * bandOut.stride, width);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,315 @@
+package pdl.backend;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Component
+public class ResultCache {
+
+    /**
+     * Identify a derived image by the id of its source and its normalized algorithm parameters.
+     */
+    public static final class Key {
+        private final long imageId;
+        private final SortedMap<String, String> params;
+
+        public Key(long imageId, Map<String, String> params) {
+            this.imageId = imageId;
+            this.params = new TreeMap<>(params);
+        }
+
+        public long getImageId() {
+            return imageId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return imageId == key.imageId && params.equals(key.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(imageId, params);
+        }
+
+        @Override
+        public String toString() {
+            return imageId + "?" + params;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    // Access ordered so that iteration starts from the least recently used entry
+    private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong sharedComputations = new AtomicLong();
+    private final AtomicInteger waitingRequests = new AtomicInteger();
+
+    // A result being computed and the number of identical requests waiting for it
+    private static final class Pending {
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        private final AtomicInteger followers = new AtomicInteger();
+    }
+
+    // Results being computed, for the identical requests arriving in the meantime
+    private final ConcurrentHashMap<Key, Pending> inFlight = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ResultCache(@Value("${images.cache.max-bytes:67108864}") long maxBytes,
+                       @Value("${images.cache.max-entry-bytes:16777216}") long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxBytes, maxEntryBytes);
+    }
+
+    public ResultCache(long maxBytes) {
+        this(maxBytes, maxBytes);
+    }
+
+    /**
+     * Return the cached result for key, or null if it is not cached.
+     *
+     * @param key The image id and parameters of the request
+     * @return the encoded result or null
+     */
+    public synchronized byte[] get(Key key) {
+        byte[] bytes = entries.get(key);
+        if (bytes == null) misses.incrementAndGet();
+        else hits.incrementAndGet();
+        return bytes;
+    }
+
+    /**
+     * Compute the result of a request.
+     */
+    @FunctionalInterface
+    public interface Computation {
+        byte[] compute() throws IOException;
+    }
+
+    /**
+     * A result being computed, shared with the identical requests arriving in the meantime.
+     * The request that started it, the leader, must end it with complete or fail.
+     */
+    public final class Flight {
+        private final Key key;
+        private final Pending pending;
+        private final boolean leader;
+
+        private Flight(Key key, Pending pending, boolean leader) {
+            this.key = key;
+            this.pending = pending;
+            this.leader = leader;
+        }
+
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Tell whether identical requests joined the flight to wait for its result.
+         *
+         * @return true if at least one request waits for the leader
+         */
+        public boolean hasFollowers() {
+            return pending.followers.get() > 0;
+        }
+
+        /**
+         * Wait for the result of the leader.
+         *
+         * @return the encoded result, or null if the leader sent it without keeping it, a new flight must then be joined
+         * @throws IOException if the computation of the result failed
+         */
+        public byte[] await() throws IOException {
+            try {
+                byte[] bytes = pending.future.join();
+                // Only avoided when the result was given, a request joining a new flight may still compute it
+                if (bytes != null) sharedComputations.incrementAndGet();
+                return bytes;
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw e;
+            } finally {
+                waitingRequests.decrementAndGet();
+            }
+        }
+
+        /**
+         * Store the result of the leader and give it to the requests waiting for it.
+         * A result larger than an entry is only given to them.
+         *
+         * @param bytes The encoded result, or null if it was not kept, the waiting requests then join a new flight
+         */
+        public void complete(byte[] bytes) {
+            // Stored before the flight is removed, so that a later request finds it in one place or the other
+            if (bytes != null) put(key, bytes);
+            pending.future.complete(bytes);
+            inFlight.remove(key, pending);
+        }
+
+        /**
+         * Give the exception of the leader to the requests waiting for the result.
+         *
+         * @param e The exception thrown by the computation
+         */
+        public void fail(Throwable e) {
+            pending.future.completeExceptionally(e);
+            inFlight.remove(key, pending);
+        }
+    }
+
+    /**
+     * Join the computation of the result for key, becoming its leader if no identical request is computing it.
+     *
+     * @param key The image id and parameters of the request
+     * @return the flight, to wait for with await if another request leads it
+     */
+    public Flight join(Key key) {
+        Pending pending = new Pending();
+        Pending running = inFlight.putIfAbsent(key, pending);
+        if (running == null) return new Flight(key, pending, true);
+        running.followers.incrementAndGet();
+        waitingRequests.incrementAndGet();
+        return new Flight(key, running, false);
+    }
+
+    /**
+     * Return the cached result for key, or compute and store it.
+     * A request for a key whose result is already being computed waits for that computation and gets the same
+     * result, or the same exception, instead of computing it again, even when the result is too large to be cached.
+     *
+     * @param key         The image id and parameters of the request
+     * @param computation Computes the encoded result
+     * @return the encoded result
+     * @throws IOException if the computation of the result failed
+     */
+    public byte[] getOrCompute(Key key, Computation computation) throws IOException {
+        byte[] bytes = get(key);
+        if (bytes != null) return bytes;
+        Flight flight = join(key);
+        // A leader streaming its result does not keep it when nobody waited for it in time, the requests that
+        // arrived afterwards join a new flight so that only one of them computes it again
+        while (!flight.isLeader()) {
+            bytes = flight.await();
+            if (bytes != null) return bytes;
+            flight = join(key);
+        }
+        try {
+            bytes = computation.compute();
+        } catch (IOException | RuntimeException | Error e) {
+            flight.fail(e);
+            throw e;
+        }
+        flight.complete(bytes);
+        return bytes;
+    }
+
+    /**
+     * Store a result, evicting the least recently used entries until the cache fits in its budget.
+     * Results larger than the size of an entry are not cached.
+     *
+     * @param key   The image id and parameters of the request
+     * @param bytes The encoded result
+     */
+    public synchronized void put(Key key, byte[] bytes) {
+        if (bytes.length > maxEntryBytes) return;
+        byte[] previous = entries.put(key, bytes);
+        if (previous != null) currentBytes -= previous.length;
+        currentBytes += bytes.length;
+        Iterator<byte[]> it = entries.values().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            currentBytes -= it.next().length;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drop every result derived from the image with the corresponding id.
+     *
+     * @param imageId The id of the source image
+     */
+    public synchronized void invalidate(long imageId) {
+        Iterator<Map.Entry<Key, byte[]>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, byte[]> entry = it.next();
+            if (entry.getKey().imageId == imageId) {
+                currentBytes -= entry.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Return the size of the largest result kept, a result being sent while computed is only copied past it for the
+     * identical requests waiting for it.
+     *
+     * @return the size in bytes
+     */
+    public long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Return the number of requests that got the result of an identical request being computed at the same time.
+     *
+     * @return the number of computations avoided
+     */
+    public long getSharedComputations() {
+        return sharedComputations.get();
+    }
+
+    /**
+     * Return the number of requests waiting for the result of an identical request being computed.
+     *
+     * @return the number of requests waiting
+     */
+    public int getWaitingRequests() {
+        return waitingRequests.get();
+    }
+}
@@ -0,0 +1,178 @@
+package pdl.backend;
+
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+
+/**
+ * Sample every band of an image at arbitrary points, for the transforms mapping each output pixel back into their
+ * input. The points of an output row are set first, then the row is written band by band, so that the weights of a
+ * point are computed once whatever the number of bands.
+ * Pixel (x, y) is at the point (x, y): a point is inside the image when its nearest pixel, (int) x and (int) y, is.
+ */
+final class Sampler {
+
+    // Weights and coordinates are fixed point numbers with this many fractional bits, a 4x4 sum of 255 * weights stays
+    // below 2^31
+    private static final int BITS = 10;
+    private static final int ONE = 1 << BITS;
+
+    // The 4 Catmull-Rom weights of each phase, they sum to ONE
+    private static final int[] CUBIC = new int[4 * ONE];
+
+    static {
+        for (int phase = 0; phase < ONE; phase++) {
+            double t = (double) phase / ONE, t2 = t * t, t3 = t2 * t;
+            int w0 = (int) Math.round((-t3 + 2 * t2 - t) / 2 * ONE);
+            int w1 = (int) Math.round((3 * t3 - 5 * t2 + 2) / 2 * ONE);
+            int w2 = (int) Math.round((-3 * t3 + 4 * t2 + t) / 2 * ONE);
+            CUBIC[4 * phase] = w0;
+            CUBIC[4 * phase + 1] = w1;
+            CUBIC[4 * phase + 2] = w2;
+            CUBIC[4 * phase + 3] = ONE - w0 - w1 - w2;
+        }
+    }
+
+    private final Planar<GrayU8> input;
+    // Number of pixels read on each axis
+    private final int taps;
+
+    Sampler(Planar<GrayU8> input, Interpolation interpolation) {
+        this.input = input;
+        switch (interpolation) {
+            case NEAREST:
+                taps = 1;
+                break;
+            case BILINEAR:
+                taps = 2;
+                break;
+            default:
+                taps = 4;
+        }
+    }
+
+    /**
+     * Create the buffers of an output row, a row must only be used by one thread.
+     *
+     * @param width The number of points of the row
+     * @return the row
+     */
+    Row row(int width) {
+        return new Row(width);
+    }
+
+    final class Row {
+        // The taps columns and rows read for each point, rows[x * taps] is -1 when the point is outside of the input
+        private final int[] columns, rows;
+        private final int[] xWeights, yWeights;
+
+        private Row(int width) {
+            columns = new int[width * taps];
+            rows = new int[width * taps];
+            xWeights = new int[width * taps];
+            yWeights = new int[width * taps];
+        }
+
+        /**
+         * Set the point of the input sampled for the pixel x of the row.
+         *
+         * @param x The pixel of the row
+         * @param u The abscissa of the point in the input
+         * @param v The ordinate of the point in the input
+         */
+        void set(int x, double u, double v) {
+            int index = x * taps;
+            // Same test as the one of the nearest pixel, which truncates the coordinates toward 0
+            if (!(u > -1 && u < input.width && v > -1 && v < input.height)) {
+                rows[index] = -1;
+                return;
+            }
+            if (taps == 1) {
+                columns[index] = (int) u;
+                rows[index] = (int) v;
+                return;
+            }
+            // Coordinates rounded to 1 / ONE of a pixel, their fractional part picks the weights of the taps
+            int uFixed = (int) ((u + 1) * ONE + 0.5) - ONE, vFixed = (int) ((v + 1) * ONE + 0.5) - ONE;
+            int u0 = uFixed >> BITS, v0 = vFixed >> BITS;
+            weights(uFixed & (ONE - 1), xWeights, index);
+            weights(vFixed & (ONE - 1), yWeights, index);
+            // The taps start one pixel before the point for bicubic, and are clamped on the edges of the input
+            int first = (taps == 4) ? -1 : 0;
+            for (int i = 0; i < taps; i++) {
+                columns[index + i] = Math.max(0, Math.min(u0 + first + i, input.width - 1));
+                rows[index + i] = Math.max(0, Math.min(v0 + first + i, input.height - 1));
+            }
+        }
+
+        // Weights of the taps for a point at phase / ONE of a pixel after the pixel before it
+        private void weights(int phase, int[] weights, int index) {
+            if (taps == 2) {
+                weights[index] = ONE - phase;
+                weights[index + 1] = phase;
+            } else {
+                System.arraycopy(CUBIC, 4 * phase, weights, index, 4);
+            }
+        }
+
+        /**
+         * Write the samples of the points set to the row y of every band of output.
+         *
+         * @param output The output image, of the same number of bands as the input and at least as wide as the row
+         * @param y      The row of the output
+         */
+        void write(Planar<GrayU8> output, int y) {
+            int width = rows.length / taps;
+            for (int i = 0; i < input.getNumBands(); i++) {
+                GrayU8 bandIn = input.getBand(i), bandOut = output.getBand(i);
+                byte[] in = bandIn.data, out = bandOut.data;
+                int outIndex = bandOut.startIndex + y * bandOut.stride;
+                if (taps == 1) {
+                    for (int x = 0; x < width; x++) {
+                        int row = rows[x];
+                        out[outIndex + x] = (row < 0) ? 0 : in[bandIn.startIndex + row * bandIn.stride + columns[x]];
+                    }
+                    continue;
+                }
+                if (taps == 2) {
+                    writeBilinear(in, bandIn.startIndex, bandIn.stride, out, outIndex, width);
+                } else {
+                    writeBicubic(in, bandIn.startIndex, bandIn.stride, out, outIndex, width);
+                }
+            }
+        }
+
+        private void writeBilinear(byte[] in, int start, int stride, byte[] out, int outIndex, int width) {
+            for (int x = 0, index = 0; x < width; x++, index += 2) {
+                if (rows[index] < 0) {
+                    out[outIndex + x] = 0;
+                    continue;
+                }
+                int row0 = start + rows[index] * stride, row1 = start + rows[index + 1] * stride;
+                int column0 = columns[index], column1 = columns[index + 1];
+                int w0 = xWeights[index], w1 = xWeights[index + 1];
+                int sum = yWeights[index] * (w0 * (in[row0 + column0] & 0xFF) + w1 * (in[row0 + column1] & 0xFF))
+                        + yWeights[index + 1] * (w0 * (in[row1 + column0] & 0xFF) + w1 * (in[row1 + column1] & 0xFF));
+                out[outIndex + x] = (byte) ((sum + (ONE * ONE / 2)) >> (2 * BITS));
+            }
+        }
+
+        private void writeBicubic(byte[] in, int start, int stride, byte[] out, int outIndex, int width) {
+            for (int x = 0, index = 0; x < width; x++, index += 4) {
+                if (rows[index] < 0) {
+                    out[outIndex + x] = 0;
+                    continue;
+                }
+                int column0 = columns[index], column1 = columns[index + 1], column2 = columns[index + 2], column3 = columns[index + 3];
+                int w0 = xWeights[index], w1 = xWeights[index + 1], w2 = xWeights[index + 2], w3 = xWeights[index + 3];
+                int sum = 0;
+                for (int j = 0; j < 4; j++) {
+                    int row = start + rows[index + j] * stride;
+                    sum += yWeights[index + j] * (w0 * (in[row + column0] & 0xFF) + w1 * (in[row + column1] & 0xFF)
+                            + w2 * (in[row + column2] & 0xFF) + w3 * (in[row + column3] & 0xFF));
+                }
+                // Bicubic overshoots around sharp edges
+                out[outIndex + x] = (byte) Math.max(0, Math.min((sum + (ONE * ONE / 2)) >> (2 * BITS), 255));
+            }
+        }
+    }
+}
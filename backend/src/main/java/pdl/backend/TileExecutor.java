@@ -0,0 +1,151 @@
+package pdl.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Split the rows of an image into bands and process them on a shared ForkJoin pool.
+ * The number of bands of an image is limited by the calling thread, see withMaxParallelism.
+ */
+public final class TileExecutor {
+
+    /**
+     * How a filter can be split into row bands.
+     */
+    public enum Tiling {
+        /** Each output row only depends on the same input row, the filter may work in place. */
+        ROW_LOCAL,
+        /** Each output row reads a bounded number of neighbouring input rows (the halo), input and output must differ. */
+        HALO,
+        /** Each output row may read any input row, input and output must differ. */
+        GATHER,
+        /** The filter writes outside of the rows it reads, it must run on a single thread. */
+        SEQUENTIAL
+    }
+
+    /**
+     * Work run with a limit on the number of bands.
+     */
+    @FunctionalInterface
+    public interface Work<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /**
+     * Work done on the rows [y0, y1) of an image.
+     */
+    @FunctionalInterface
+    public interface RowBand {
+        void apply(int y0, int y1);
+    }
+
+    // Bands smaller than this are not worth a task
+    private static final int MIN_BAND_PIXELS = 64 * 1024;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    // Limit set by the work running on each thread, 0 for the number of available processors
+    private static final ThreadLocal<Integer> MAX_PARALLELISM = ThreadLocal.withInitial(() -> 0);
+
+    private TileExecutor() {
+    }
+
+    /**
+     * Run work on the calling thread, splitting each image it processes into at most parallelism bands.
+     * The limit only applies to this thread, and the previous one is restored afterwards.
+     *
+     * @param parallelism The limit, values lower than 1 for the number of available processors
+     * @param work        The work to run
+     * @return the result of work
+     * @throws E the exception thrown by work
+     */
+    public static <T, E extends Exception> T withMaxParallelism(int parallelism, Work<T, E> work) throws E {
+        Integer previous = MAX_PARALLELISM.get();
+        MAX_PARALLELISM.set(Math.max(0, parallelism));
+        try {
+            return work.run();
+        } finally {
+            MAX_PARALLELISM.set(previous);
+        }
+    }
+
+    /**
+     * Same as withMaxParallelism for work without a result.
+     */
+    public static void withMaxParallelism(int parallelism, Runnable work) {
+        withMaxParallelism(parallelism, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    /**
+     * Return the maximum number of bands an image is split into on the calling thread.
+     *
+     * @return the limit
+     */
+    public static int getMaxParallelism() {
+        int parallelism = MAX_PARALLELISM.get();
+        return (parallelism > 0) ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    public static ForkJoinPool getPool() {
+        return POOL;
+    }
+
+    /**
+     * Run band on every row of an image of the given size, splitting the rows according to tiling.
+     *
+     * @param width  Width of the image
+     * @param height Height of the image
+     * @param tiling How the filter may be split
+     * @param halo   Number of rows read above and below each output row (only used with HALO)
+     * @param band   The work to do on a range of rows
+     */
+    public static void forEachBand(int width, int height, Tiling tiling, int halo, RowBand band) {
+        int count = bandCount(width, height, tiling, halo);
+        if (count <= 1) {
+            band.apply(0, height);
+            return;
+        }
+        List<RecursiveAction> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int y0 = (int) ((long) height * i / count);
+            int y1 = (int) ((long) height * (i + 1) / count);
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    band.apply(y0, y1);
+                }
+            });
+        }
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            POOL.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+    }
+
+    /**
+     * Same as forEachBand for filters that don't read neighbouring rows.
+     */
+    public static void forEachBand(int width, int height, Tiling tiling, RowBand band) {
+        forEachBand(width, height, tiling, 0, band);
+    }
+
+    private static int bandCount(int width, int height, Tiling tiling, int halo) {
+        if (tiling == Tiling.SEQUENTIAL || width <= 0 || height <= 1) return 1;
+        int minRows = Math.max(1, MIN_BAND_PIXELS / width);
+        // A band must be tall enough for its own rows to outweigh the halo it reads
+        if (tiling == Tiling.HALO) minRows = Math.max(minRows, 2 * halo);
+        return Math.max(1, Math.min(getMaxParallelism(), height / minRows));
+    }
+}
@@ -0,0 +1,107 @@
+package pdl.backend;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * ByteKernels on the Vector API, with the widest vectors of the processor (AVX2 or AVX-512 on x86).
+ * Each loop processes whole vectors and leaves the last pixels to the scalar loop.
+ * Bytes are widened to ints with as many lanes, so the arithmetic is the same as the scalar one.
+ * Sepia keeps the scalar loop: converting ints to double vectors and back measured slower than the scalar code.
+ */
+final class VectorKernels extends ByteKernels {
+
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    // Bytes widened to INTS
+    private static final VectorSpecies<Byte> INT_BYTES = VectorSpecies.of(byte.class, VectorShape.forBitSize(INTS.length() * Byte.SIZE));
+
+    VectorKernels() {
+        // Without real vector registers the Vector API is emulated and much slower than the scalar loops
+        if (BYTES.vectorBitSize() < 128) {
+            throw new UnsupportedOperationException("No vector unit");
+        }
+    }
+
+    @Override
+    public boolean isVectorized() {
+        return true;
+    }
+
+    private static IntVector widen(byte[] data, int index) {
+        return ((IntVector) ByteVector.fromArray(INT_BYTES, data, index).convertShape(VectorOperators.B2I, INTS, 0)).and(0xFF);
+    }
+
+    private static void narrow(IntVector values, byte[] data, int index) {
+        ((ByteVector) values.convertShape(VectorOperators.I2B, INT_BYTES, 0)).intoArray(data, index);
+    }
+
+    @Override
+    public void affine(byte[] data, int from, int to, boolean negate, int delta) {
+        // 255 - v is ~v on a byte, the sum is then clamped on one side only, detected with an unsigned comparison
+        if (delta >= 255 || delta <= -255) {
+            super.affine(data, from, to, negate, delta);
+            return;
+        }
+        byte saturated = (byte) ((delta >= 0) ? 255 : 0);
+        byte bound = (byte) ((delta >= 0) ? 255 - delta : -delta);
+        VectorOperators.Comparison overflow = (delta >= 0) ? VectorOperators.UNSIGNED_GT : VectorOperators.UNSIGNED_LT;
+        int i = from;
+        for (int end = to - BYTES.length(); i <= end; i += BYTES.length()) {
+            ByteVector values = ByteVector.fromArray(BYTES, data, i);
+            if (negate) values = values.not();
+            VectorMask<Byte> clamped = values.compare(overflow, bound);
+            values.add((byte) delta).blend(saturated, clamped).intoArray(data, i);
+        }
+        super.affine(data, i, to, negate, delta);
+    }
+
+    @Override
+    public void toGray(byte[] red, int r, byte[] green, int g, byte[] blue, int b, int length) {
+        int x = 0;
+        for (int end = length - INTS.length(); x <= end; x += INTS.length()) {
+            IntVector sum = widen(red, r + x).mul(5033165)
+                    .add(widen(green, g + x).mul(9898557))
+                    .add(widen(blue, b + x).mul(7381975).lanewise(VectorOperators.LSHR, 2));
+            IntVector gray = sum.lanewise(VectorOperators.LSHR, 24);
+            narrow(gray, red, r + x);
+            narrow(gray, green, g + x);
+            narrow(gray, blue, b + x);
+        }
+        super.toGray(red, r + x, green, g + x, blue, b + x, length - x);
+    }
+
+    @Override
+    public void threshold(byte[] data, int from, int[] thresholds, int length) {
+        IntVector black = IntVector.zero(INTS);
+        int x = 0;
+        for (int end = length - INTS.length(); x <= end; x += INTS.length()) {
+            VectorMask<Integer> white = IntVector.fromArray(INTS, thresholds, x).compare(VectorOperators.LT, widen(data, from + x));
+            narrow(black.blend(255, white), data, from + x);
+        }
+        threshold(data, from, thresholds, x, length);
+    }
+
+    @Override
+    public void accumulate(int[] sums, byte[] data, int from, int weight, int length) {
+        int x = 0;
+        for (int end = length - INTS.length(); x <= end; x += INTS.length()) {
+            IntVector.fromArray(INTS, sums, x).add(widen(data, from + x).mul(weight)).intoArray(sums, x);
+        }
+        accumulate(sums, data, from, weight, x, length);
+    }
+
+    @Override
+    public void shiftClamp(int[] sums, int shift, byte[] data, int from, int length) {
+        int x = 0;
+        for (int end = length - INTS.length(); x <= end; x += INTS.length()) {
+            IntVector values = IntVector.fromArray(INTS, sums, x).lanewise(VectorOperators.ASHR, shift);
+            narrow(values.max(0).min(255), data, from + x);
+        }
+        shiftClamp(sums, shift, data, from, x, length);
+    }
+}
@@ -0,0 +1,89 @@
+package pdl.backend;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+public class AdmissionControlTests {
+
+    @Test
+    public void budgetShouldBeGivenBackWhenTicketsClose() {
+        AdmissionControl admission = new AdmissionControl(1 << 20, 0);
+        AdmissionControl.Ticket first = admission.admit(600 << 10, 0);
+        Assertions.assertThrows(AdmissionControl.RejectedException.class, () -> admission.admit(600 << 10, 10));
+        AdmissionControl.Ticket second = admission.admit(400 << 10, 0);
+        Assertions.assertEquals(24 << 10, admission.getAvailableBytes());
+        first.close();
+        second.close();
+        second.close();
+        Assertions.assertEquals(1 << 20, admission.getAvailableBytes());
+    }
+
+    @Test
+    public void memoryOverTheBudgetShouldBeRefusedWithoutWaiting() {
+        AdmissionControl admission = new AdmissionControl(1 << 20, 60000);
+        Assertions.assertThrows(AdmissionControl.TooLargeException.class, () -> admission.admit((1 << 20) + 1, 60000));
+        try (AdmissionControl.Ticket ticket = admission.admit(1 << 20, 0)) {
+            Assertions.assertThrows(AdmissionControl.TooLargeException.class, () -> ticket.reserve(Long.MAX_VALUE, 60000));
+        }
+        Assertions.assertEquals(1 << 20, admission.getAvailableBytes());
+    }
+
+    @Test
+    public void workOverTheBudgetShouldRunAlone() {
+        AdmissionControl admission = new AdmissionControl(1 << 20, 0);
+        try (AdmissionControl.Ticket ticket = admission.admit(new AdmissionControl.Cost(600 << 10, Long.MAX_VALUE), 0)) {
+            Assertions.assertEquals(0, admission.getAvailableBytes());
+            // Reserving more on the same ticket never goes over the whole budget
+            ticket.reserve(1 << 20, 0);
+        }
+        Assertions.assertEquals(1 << 20, admission.getAvailableBytes());
+    }
+
+    @Test
+    public void reserveShouldOnlyTakeWhatTheTicketIsMissing() {
+        AdmissionControl admission = new AdmissionControl(1 << 20, 0);
+        try (AdmissionControl.Ticket ticket = admission.admit(300 << 10, 0)) {
+            // A job admitted with its estimate doesn't reserve it again when it runs
+            ticket.reserve(300 << 10, 0);
+            ticket.reserve(100 << 10, 0);
+            Assertions.assertEquals(724 << 10, admission.getAvailableBytes());
+            ticket.reserve(500 << 10, 0);
+            Assertions.assertEquals(524 << 10, admission.getAvailableBytes());
+        }
+        Assertions.assertEquals(1 << 20, admission.getAvailableBytes());
+    }
+
+    @Test
+    public void estimateShouldFollowTheLargestImageOfThePipeline() {
+        long plain = AdmissionControl.estimate(100, 100, 3, 3, 1, List.of(Map.of("algorithm", "negative"))).getMemory();
+        Assertions.assertEquals(100 * 100 * 3 + 100 * 100 * 10, plain);
+        long enlarged = AdmissionControl.estimate(100, 100, 3, 3, 1, List.of(Map.of("algorithm", "scale", "width", "200", "height", "200"))).getMemory();
+        Assertions.assertEquals(100 * 100 * 3 + 200 * 200 * 10, enlarged);
+        long reduced = AdmissionControl.estimate(100, 100, 3, 3, 1, List.of(Map.of("algorithm", "scale", "width", "10", "height", "10"))).getMemory();
+        Assertions.assertEquals(plain, reduced);
+        Assertions.assertEquals(5 * AdmissionControl.estimate(100, 100, 4, 4, 1, List.of()).getMemory(), AdmissionControl.estimate(100, 100, 4, 4, 5, List.of()).getMemory());
+        // Saturates instead of overflowing
+        AdmissionControl.Cost huge = AdmissionControl.estimate(100, 100, 3, 3, 1000, List.of(Map.of("algorithm", "scale", "width", "2000000000", "height", "2000000000")));
+        Assertions.assertEquals(Long.MAX_VALUE, huge.getMemory());
+    }
+
+    @Test
+    public void workShouldDependOnTheAlgorithm() {
+        AdmissionControl.Cost negative = AdmissionControl.estimate(100, 100, 3, 3, 1, List.of(Map.of("algorithm", "negative")));
+        Assertions.assertEquals(100 * 100 * 3, negative.getWork());
+        AdmissionControl.Cost blur = AdmissionControl.estimate(100, 100, 3, 3, 1, List.of(Map.of("algorithm", "blur", "type", "G", "size", "5")));
+        Assertions.assertEquals(100 * 100 * 3 * 22, blur.getWork());
+        Assertions.assertEquals(negative.getMemory(), blur.getMemory());
+        Assertions.assertTrue(blur.getBytes() > negative.getBytes());
+        // A scale costs its largest side, with the taps of its filter
+        AdmissionControl.Cost lanczos = AdmissionControl.estimate(100, 100, 3, 3, 1, List.of(Map.of("algorithm", "scale", "width", "50", "height", "50", "filter", "lanczos3")));
+        Assertions.assertEquals(100 * 100 * 3 * 36, lanczos.getWork());
+        // The work at most doubles the memory
+        AdmissionControl.Cost chained = AdmissionControl.estimate(100, 100, 3, 3, 1, List.of(
+                Map.of("algorithm", "blur", "type", "G", "size", "50"), Map.of("algorithm", "twist", "maxAngle", "90")));
+        Assertions.assertEquals(2 * chained.getMemory(), chained.getBytes());
+    }
+}
@@ -0,0 +1,47 @@
+package pdl.backend;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+public class AllocationMetricsTests {
+
+    @Test
+    public void totalShouldCountOtherThreadsAndNeverGoDown() throws Exception {
+        AllocationMetrics metrics = new AllocationMetrics();
+        long before = metrics.getTotalAllocatedBytes();
+        Assumptions.assumeTrue(before >= 0);
+        CountDownLatch allocated = new CountDownLatch(1);
+        CountDownLatch read = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            byte[][] blocks = new byte[16][];
+            for (int i = 0; i < blocks.length; i++) blocks[i] = new byte[1 << 20];
+            allocated.countDown();
+            try {
+                read.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        allocated.await();
+        long during = metrics.getTotalAllocatedBytes();
+        Assertions.assertTrue(during - before >= 16 << 20);
+        read.countDown();
+        thread.join();
+        // The allocations of the thread that ended are still counted
+        Assertions.assertTrue(metrics.getTotalAllocatedBytes() >= during);
+    }
+
+    @Test
+    public void transformationShouldBeRecordedOnItsThread() {
+        AllocationMetrics metrics = new AllocationMetrics();
+        long start = metrics.currentThreadAllocatedBytes();
+        Assumptions.assumeTrue(start >= 0);
+        byte[] block = new byte[1 << 20];
+        metrics.recordRequest(start);
+        Assertions.assertTrue(metrics.getRequestBytes() >= block.length);
+    }
+}
@@ -1,18 +1,33 @@
 package pdl.backend;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.core.annotation.Order;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
-@SpringBootTest
+@SpringBootTest(properties = "images.store=memory")
 class BackendApplicationTests {
 
 	@Test
@@ -54,4 +69,136 @@ class BackendApplicationTests {
 	public void testOrderedFindImage(){
 
 	}
+
+	@Test
+	@Order(5)
+	public void concurrentCreateShouldKeepEveryImageWithUniqueIds() throws Exception {
+		ImageDao imageDao = new ImageDao("./src/test/java/pdl/backend/testImages");
+		int initialSize = imageDao.retrieveAll().size();
+		int threads = 8;
+		int imagesPerThread = 500;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<List<Long>>> futures = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			futures.add(executor.submit(() -> {
+				start.await();
+				List<Long> ids = new ArrayList<>();
+				for (int i = 0; i < imagesPerThread; i++) {
+					Image image = new Image("stress.jpg", new byte[0], MediaType.IMAGE_JPEG);
+					imageDao.create(image);
+					ids.add(image.getId());
+					imageDao.retrieveAll();
+				}
+				return ids;
+			}));
+		}
+		start.countDown();
+		Set<Long> ids = new HashSet<>();
+		for (Future<List<Long>> future : futures) {
+			ids.addAll(future.get(30, TimeUnit.SECONDS));
+		}
+		executor.shutdown();
+
+		Assertions.assertEquals(threads * imagesPerThread, ids.size());
+		Assertions.assertEquals(initialSize + threads * imagesPerThread, imageDao.retrieveAll().size());
+		for (Long id : ids) {
+			assertTrue(imageDao.retrieve(id).isPresent());
+		}
+	}
+
+	@Test
+	@Order(6)
+	public void diskImageDaoShouldKeepImagesAfterRestart(@TempDir Path storeDirectory) throws Exception {
+		String imagesDirectoryPath = "./src/test/java/pdl/backend/testImages";
+		byte[] uploaded = Files.readAllBytes(Paths.get(imagesDirectoryPath, "images", "test.jpg"));
+		long uploadedId;
+		long deletedId;
+		try (DiskImageDao imageDao = new DiskImageDao(storeDirectory.toString(), imagesDirectoryPath)) {
+			Assertions.assertEquals(5, imageDao.retrieveAll().size());
+			Image image = new Image("uploaded.jpg", uploaded, MediaType.IMAGE_JPEG);
+			imageDao.create(image);
+			uploadedId = image.getId();
+			deletedId = imageDao.retrieveAll().get(0).getId();
+			imageDao.delete(imageDao.retrieve(deletedId).orElseThrow());
+		}
+		try (DiskImageDao imageDao = new DiskImageDao(storeDirectory.toString(), "./")) {
+			Assertions.assertEquals(5, imageDao.retrieveAll().size());
+			Assertions.assertTrue(imageDao.retrieve(deletedId).isEmpty());
+			Image image = imageDao.retrieve(uploadedId).orElseThrow();
+			Assertions.assertEquals("uploaded.jpg", image.getName());
+			Assertions.assertArrayEquals(uploaded, image.getData());
+			Assertions.assertEquals("338*338*3", image.getMetadata().toString());
+		}
+	}
+
+	@Test
+	public void diskImageDaoShouldKeepImagesAfterAKill(@TempDir Path storeDirectory) throws Exception {
+		String imagesDirectoryPath = "./src/test/java/pdl/backend/testImages";
+		byte[] uploaded = Files.readAllBytes(Paths.get(imagesDirectoryPath, "images", "test.jpg"));
+		// The store is left open as a killed process would, with a record torn in the middle of its write
+		DiskImageDao killed = new DiskImageDao(storeDirectory.toString(), imagesDirectoryPath);
+		Image image = new Image("uploaded.jpg", uploaded, MediaType.IMAGE_JPEG);
+		killed.create(image);
+		Files.write(storeDirectory.resolve("images.idx"), new byte[]{1, 0, 0, 0}, StandardOpenOption.APPEND);
+		try (DiskImageDao imageDao = new DiskImageDao(storeDirectory.toString(), imagesDirectoryPath)) {
+			Assertions.assertEquals(6, imageDao.retrieveAll().size());
+			for (Image stored : killed.retrieveAll()) {
+				Assertions.assertArrayEquals(stored.getData(), imageDao.retrieve(stored.getId()).orElseThrow().getData());
+			}
+			Assertions.assertArrayEquals(uploaded, imageDao.retrieve(image.getId()).orElseThrow().getData());
+			imageDao.create(new Image("uploaded2.jpg", uploaded, MediaType.IMAGE_JPEG));
+		}
+		try (DiskImageDao imageDao = new DiskImageDao(storeDirectory.toString(), imagesDirectoryPath)) {
+			Assertions.assertEquals(7, imageDao.retrieveAll().size());
+		}
+		killed.close();
+	}
+
+	@Test
+	public void diskImageDaoShouldStayEmptyOnceEveryImageIsDeleted(@TempDir Path storeDirectory) throws Exception {
+		String imagesDirectoryPath = "./src/test/java/pdl/backend/testImages";
+		try (DiskImageDao imageDao = new DiskImageDao(storeDirectory.toString(), imagesDirectoryPath)) {
+			for (Image image : imageDao.retrieveAll()) {
+				imageDao.delete(image);
+			}
+		}
+		try (DiskImageDao imageDao = new DiskImageDao(storeDirectory.toString(), imagesDirectoryPath)) {
+			Assertions.assertTrue(imageDao.retrieveAll().isEmpty());
+		}
+	}
+	@Test
+	public void diskImageDaoShouldNotGiveTheIdOfADeletedImageAgain(@TempDir Path storeDirectory) throws Exception {
+		String imagesDirectoryPath = "./src/test/java/pdl/backend/testImages";
+		long deleted;
+		try (DiskImageDao imageDao = new DiskImageDao(storeDirectory.toString(), imagesDirectoryPath)) {
+			Image last = new Image("last.jpg", Files.readAllBytes(Paths.get(imagesDirectoryPath, "images", "test.jpg")), MediaType.IMAGE_JPEG);
+			imageDao.create(last);
+			deleted = last.getId();
+			imageDao.delete(last);
+		}
+		// As after a restart of the server
+		((AtomicLong) ReflectionTestUtils.getField(Image.class, "count")).set(0L);
+		try (DiskImageDao imageDao = new DiskImageDao(storeDirectory.toString(), imagesDirectoryPath)) {
+			Assertions.assertTrue(imageDao.retrieve(deleted).isEmpty());
+			Image next = new Image("next.jpg", new byte[]{1}, MediaType.IMAGE_JPEG);
+			Assertions.assertTrue(next.getId() > deleted);
+		}
+	}
+	@Test
+	public void diskImageDaoShouldNotReadTheImagesFolderBeforeFirstAccess(@TempDir Path storeDirectory) throws Exception {
+		String imagesDirectoryPath = "./src/test/java/pdl/backend/testImages";
+		for (int restart = 0; restart < 2; restart++) {
+			try (DiskImageDao imageDao = new DiskImageDao(storeDirectory.toString(), imagesDirectoryPath)) {
+				List<Image> images = imageDao.retrieveAll();
+				Assertions.assertEquals(5, images.size());
+				for (Image image : images) {
+					Assertions.assertFalse(image.isLoaded(), image.getName());
+				}
+				Image image = images.get(0);
+				Assertions.assertArrayEquals(Files.readAllBytes(image.getPath()), image.getData());
+				Assertions.assertTrue(image.isLoaded());
+			}
+		}
+	}
 }
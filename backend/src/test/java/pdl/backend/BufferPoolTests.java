@@ -0,0 +1,71 @@
+package pdl.backend;
+
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+
+public class BufferPoolTests {
+
+    @Test
+    public void releasedPlanarShouldServeSmallerImagesOfTheSameClass() {
+        BufferPool pool = new BufferPool(1 << 24);
+        Planar<GrayU8> planar = pool.acquirePlanar(300, 200, 3);
+        Assertions.assertEquals(65536, planar.getBand(0).data.length);
+        pool.releasePlanar(planar);
+
+        Planar<GrayU8> reused = pool.acquirePlanar(256, 200, 3);
+        Assertions.assertSame(planar, reused);
+        Assertions.assertEquals(256, reused.width);
+        Assertions.assertEquals(256, reused.getBand(2).stride);
+        Assertions.assertEquals(1, pool.getHits());
+
+        // Another class or number of bands gets a new image
+        Assertions.assertNotSame(planar, pool.acquirePlanar(300, 300, 3));
+        pool.releasePlanar(reused);
+        Assertions.assertNotSame(planar, pool.acquirePlanar(300, 200, 4));
+    }
+
+    @Test
+    public void poolShouldNotRetainMoreThanItsBudget() {
+        BufferPool pool = new BufferPool(60000);
+        Planar<GrayU8> first = pool.acquirePlanar(100, 100, 3);
+        Planar<GrayU8> second = pool.acquirePlanar(100, 100, 3);
+        pool.releasePlanar(first);
+        pool.releasePlanar(second);
+        Assertions.assertEquals(3 * 16384, pool.getRetainedBytes());
+
+        BufferedImage image = pool.acquireImage(200, 200, BufferedImage.TYPE_3BYTE_BGR);
+        pool.releaseImage(image);
+        Assertions.assertNotSame(image, pool.acquireImage(200, 200, BufferedImage.TYPE_3BYTE_BGR));
+        Assertions.assertEquals(3 * 16384, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void indexedImagesShouldNotBePooled() {
+        BufferPool pool = new BufferPool(1 << 24);
+        BufferedImage image = pool.acquireImage(20, 20, BufferedImage.TYPE_BYTE_INDEXED);
+        pool.releaseImage(image);
+        Assertions.assertNotSame(image, pool.acquireImage(20, 20, BufferedImage.TYPE_BYTE_INDEXED));
+        Assertions.assertEquals(0, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void releasedStreamShouldBeReusedEmpty() {
+        BufferPool pool = new BufferPool(1 << 24);
+        ByteArrayOutputStream stream = pool.acquireStream(10000);
+        stream.write(new byte[20000], 0, 20000);
+        pool.releaseStream(stream);
+        // Kept with the capacity it has grown to
+        Assertions.assertTrue(pool.getRetainedBytes() >= 20000);
+
+        ByteArrayOutputStream reused = pool.acquireStream(10000);
+        Assertions.assertEquals(0, reused.size());
+        reused.write(42);
+        Assertions.assertArrayEquals(new byte[]{42}, reused.toByteArray());
+        Assertions.assertEquals(1, pool.getHits());
+    }
+}
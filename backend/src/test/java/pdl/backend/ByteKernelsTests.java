@@ -0,0 +1,262 @@
+package pdl.backend;
+
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class ByteKernelsTests {
+
+    // Lengths around the vector sizes, so that both the vector loops and the scalar tails run
+    private static final int[] LENGTHS = {0, 1, 7, 15, 16, 17, 31, 33, 63, 64, 65, 100, 257};
+
+    @AfterEach
+    public void resetKernels() {
+        ByteKernels.setVectorEnabled(true);
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static int[] randomInts(int length, int bound, long seed) {
+        return new Random(seed).ints(length, 0, bound).toArray();
+    }
+
+    @Test
+    public void grayFormulaShouldMatchFloatCoefficients() {
+        double[] rgbToGray = {0.3f, 0.59f, 0.11f};
+        for (int r = 0; r < 256; r++) {
+            for (int g = 0; g < 256; g++) {
+                for (int b = 0; b < 256; b++) {
+                    double value = 0;
+                    value += r * rgbToGray[0];
+                    value += g * rgbToGray[1];
+                    value += b * rgbToGray[2];
+                    if ((int) value != ByteKernels.gray(r, g, b))
+                        Assertions.fail("gray of (" + r + "," + g + "," + b + ")");
+                }
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(value, 255));
+    }
+
+    // The scalar kernels, and the vector ones when the JVM provides them
+    private static List<ByteKernels> allKernels() {
+        List<ByteKernels> kernels = new ArrayList<>(List.of(ByteKernels.scalar()));
+        if (ByteKernels.isVectorAvailable()) kernels.add(ByteKernels.get());
+        return kernels;
+    }
+
+    // The 256 values from offset 3, so that the vectors are not aligned on the array
+    private static byte[] everyValue() {
+        byte[] data = new byte[256 + 3];
+        for (int v = 0; v < 256; v++) {
+            data[v + 3] = (byte) v;
+        }
+        return data;
+    }
+
+    @Test
+    public void lookupTablesShouldMatchPerPixelFormula() {
+        int[] deltas = {-300, -255, -128, -1, 0, 1, 70, 255, 300};
+        for (int v = 0; v < 256; v++) {
+            Assertions.assertEquals(v, LookupTable.identity().get(v));
+            Assertions.assertEquals(255 - v, LookupTable.negative().get(v));
+            for (int delta : deltas) {
+                Assertions.assertEquals(clamp(v + delta), LookupTable.addLuminosity(delta).get(v), "addLuminosity " + delta);
+                // Composed tables clamp between the two operations, as consecutive filters do
+                Assertions.assertEquals(255 - clamp(v + delta), LookupTable.addLuminosity(delta).andThen(LookupTable.negative()).get(v), "addLuminosity " + delta + " then negative");
+                Assertions.assertEquals(clamp(clamp(255 - v + delta) - delta), LookupTable.negative().andThen(LookupTable.addLuminosity(delta)).andThen(LookupTable.addLuminosity(-delta)).get(v), "negative then " + delta + " then " + -delta);
+            }
+        }
+        for (ByteKernels kernels : allKernels()) {
+            ByteKernels.setVectorEnabled(kernels.isVectorized());
+            for (int delta : deltas) {
+                LookupTable table = LookupTable.negative().andThen(LookupTable.addLuminosity(delta));
+                Planar<GrayU8> image = new Planar<>(GrayU8.class, 256, 1, 4);
+                for (int i = 0; i < 4; i++) {
+                    image.getBand(i).data = everyValue();
+                    image.getBand(i).startIndex = 3;
+                }
+                table.apply(image);
+                for (int v = 0; v < 256; v++) {
+                    for (int i = 0; i < 3; i++) {
+                        Assertions.assertEquals(clamp(255 - v + delta), image.getBand(i).get(v, 0), "apply " + delta + " on " + v);
+                    }
+                    Assertions.assertEquals(v, image.getBand(3).get(v, 0), "alpha band on " + v);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void kernelsShouldMatchPerPixelFormulaOnEveryValue() {
+        for (ByteKernels kernels : allKernels()) {
+            String name = kernels.isVectorized() ? "vector " : "scalar ";
+            for (boolean negate : new boolean[]{false, true}) {
+                for (int delta : new int[]{-300, -255, -100, -1, 0, 1, 37, 255, 300}) {
+                    byte[] data = everyValue();
+                    kernels.affine(data, 3, data.length, negate, delta);
+                    for (int v = 0; v < 256; v++) {
+                        Assertions.assertEquals(clamp((negate ? 255 - v : v) + delta), data[v + 3] & 0xFF, name + "affine " + negate + " " + delta + " on " + v);
+                    }
+                }
+            }
+
+            // Each band takes every value while the two others are fixed
+            for (int fixed : new int[]{0, 77, 255}) {
+                for (int band = 0; band < 3; band++) {
+                    byte[][] rgb = new byte[3][];
+                    for (int i = 0; i < 3; i++) {
+                        rgb[i] = (i == band) ? everyValue() : new byte[259];
+                        if (i != band) Arrays.fill(rgb[i], (byte) fixed);
+                    }
+                    kernels.toGray(rgb[0], 3, rgb[1], 3, rgb[2], 3, 256);
+                    int[][] ints = new int[3][256];
+                    for (int v = 0; v < 256; v++) {
+                        for (int i = 0; i < 3; i++) ints[i][v] = (i == band) ? v : fixed;
+                    }
+                    kernels.sepia(ints[0], ints[1], ints[2], 256);
+                    for (int v = 0; v < 256; v++) {
+                        int r = (band == 0) ? v : fixed, g = (band == 1) ? v : fixed, b = (band == 2) ? v : fixed;
+                        int gray = (int) (r * (double) 0.3f + g * (double) 0.59f + b * (double) 0.11f);
+                        for (int i = 0; i < 3; i++) {
+                            Assertions.assertEquals(gray, rgb[i][v + 3] & 0xFF, name + "toGray of (" + r + "," + g + "," + b + ")");
+                        }
+                        Assertions.assertEquals((int) Math.min(0.393 * r + 0.769 * g + 0.189 * b, 255), ints[0][v], name + "sepia red of (" + r + "," + g + "," + b + ")");
+                        Assertions.assertEquals((int) Math.min(0.349 * r + 0.686 * g + 0.168 * b, 255), ints[1][v], name + "sepia green of (" + r + "," + g + "," + b + ")");
+                        Assertions.assertEquals((int) Math.min(0.272 * r + 0.534 * g + 0.131 * b, 255), ints[2][v], name + "sepia blue of (" + r + "," + g + "," + b + ")");
+                    }
+                }
+            }
+
+            for (int threshold : new int[]{-1, 0, 127, 254, 255, 299}) {
+                byte[] data = everyValue();
+                int[] thresholds = new int[256];
+                Arrays.fill(thresholds, threshold);
+                kernels.threshold(data, 3, thresholds, 256);
+                for (int v = 0; v < 256; v++) {
+                    Assertions.assertEquals(threshold < v ? 255 : 0, data[v + 3] & 0xFF, name + "threshold " + threshold + " on " + v);
+                }
+            }
+
+            for (int weight : new int[]{-4567, -1, 0, 1, 16, 4567}) {
+                int[] sums = new int[256];
+                Arrays.fill(sums, 1000);
+                byte[] data = everyValue();
+                kernels.accumulate(sums, data, 3, weight, 256);
+                for (int v = 0; v < 256; v++) {
+                    Assertions.assertEquals(1000 + weight * v, sums[v], name + "accumulate " + weight + " on " + v);
+                }
+                kernels.shiftClamp(sums, 4, data, 3, 256);
+                for (int v = 0; v < 256; v++) {
+                    Assertions.assertEquals(clamp((1000 + weight * v) >> 4), data[v + 3] & 0xFF, name + "shiftClamp " + weight + " on " + v);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void vectorKernelsShouldMatchScalarKernels() {
+        Assumptions.assumeTrue(ByteKernels.isVectorAvailable(), "The JVM doesn't provide jdk.incubator.vector");
+        ByteKernels scalar = ByteKernels.scalar();
+        ByteKernels vector = ByteKernels.get();
+        Assertions.assertTrue(vector.isVectorized());
+        for (int length : LENGTHS) {
+            // Values are written from offset 3, so that the vectors are not aligned on the arrays
+            int offset = 3;
+            for (boolean negate : new boolean[]{false, true}) {
+                for (int delta : new int[]{-300, -255, -254, -100, -1, 0, 1, 37, 254, 255, 300}) {
+                    byte[] expected = randomBytes(length + offset, length + delta);
+                    byte[] actual = expected.clone();
+                    scalar.affine(expected, offset, offset + length, negate, delta);
+                    vector.affine(actual, offset, offset + length, negate, delta);
+                    Assertions.assertArrayEquals(expected, actual, "affine " + negate + " " + delta + " on " + length);
+                }
+            }
+
+            byte[][] expected = {randomBytes(length + offset, 1), randomBytes(length + offset, 2), randomBytes(length + offset, 3)};
+            byte[][] actual = {expected[0].clone(), expected[1].clone(), expected[2].clone()};
+            scalar.toGray(expected[0], offset, expected[1], offset, expected[2], offset, length);
+            vector.toGray(actual[0], offset, actual[1], offset, actual[2], offset, length);
+            for (int i = 0; i < 3; i++) {
+                Assertions.assertArrayEquals(expected[i], actual[i], "toGray on " + length);
+            }
+
+            int[][] expectedInts = {randomInts(length, 256, 4), randomInts(length, 256, 5), randomInts(length, 256, 6)};
+            int[][] actualInts = {expectedInts[0].clone(), expectedInts[1].clone(), expectedInts[2].clone()};
+            scalar.sepia(expectedInts[0], expectedInts[1], expectedInts[2], length);
+            vector.sepia(actualInts[0], actualInts[1], actualInts[2], length);
+            for (int i = 0; i < 3; i++) {
+                Assertions.assertArrayEquals(expectedInts[i], actualInts[i], "sepia on " + length);
+            }
+
+            int[] thresholds = randomInts(length, 300, 7);
+            byte[] expectedThreshold = randomBytes(length + offset, 8);
+            byte[] actualThreshold = expectedThreshold.clone();
+            scalar.threshold(expectedThreshold, offset, thresholds, length);
+            vector.threshold(actualThreshold, offset, thresholds, length);
+            Assertions.assertArrayEquals(expectedThreshold, actualThreshold, "threshold on " + length);
+
+            int[] expectedSums = new Random(9).ints(length, -1 << 24, 1 << 24).toArray();
+            int[] actualSums = expectedSums.clone();
+            byte[] values = randomBytes(length + offset, 10);
+            scalar.accumulate(expectedSums, values, offset, 4567, length);
+            vector.accumulate(actualSums, values, offset, 4567, length);
+            Assertions.assertArrayEquals(expectedSums, actualSums, "accumulate on " + length);
+            byte[] expectedClamped = randomBytes(length + offset, 11);
+            byte[] actualClamped = expectedClamped.clone();
+            scalar.shiftClamp(expectedSums, 16, expectedClamped, offset, length);
+            vector.shiftClamp(actualSums, 16, actualClamped, offset, length);
+            Assertions.assertArrayEquals(expectedClamped, actualClamped, "shiftClamp on " + length);
+        }
+    }
+
+    @Test
+    public void filtersShouldGiveTheSameResultWithoutVectorKernels() {
+        List<Map<String, String>> queries = List.of(
+                Map.of("algorithm", "negative"),
+                Map.of("algorithm", "addLuminosityRGB", "gain", "70"),
+                Map.of("algorithm", "addLuminosityRGB", "gain", "-70"),
+                Map.of("algorithm", "sepia"),
+                Map.of("algorithm", "gradientImageSobel"),
+                Map.of("algorithm", "halftoning", "spread", "3", "dotSize", "6"),
+                Map.of("algorithm", "scale", "width", "37", "height", "150", "filter", "lanczos3"));
+        // Each algorithm alone, then chained lookup tables which may or may not stay affine
+        List<List<Map<String, String>>> pipelines = new ArrayList<>();
+        for (Map<String, String> params : queries) {
+            pipelines.add(List.of(params));
+        }
+        pipelines.add(List.of(queries.get(0), queries.get(1)));
+        pipelines.add(List.of(queries.get(1), queries.get(2), queries.get(0)));
+        pipelines.add(List.of(queries.get(2), queries.get(0), queries.get(3)));
+        Planar<GrayU8> source = new Planar<>(GrayU8.class, 203, 61, 4);
+        Random random = new Random(9);
+        for (int i = 0; i < source.getNumBands(); i++) {
+            random.nextBytes(source.getBand(i).data);
+        }
+        for (List<Map<String, String>> steps : pipelines) {
+            ByteKernels.setVectorEnabled(false);
+            Planar<GrayU8> expected = ImageModifier.treatPipeline(source.clone(), steps);
+            ByteKernels.setVectorEnabled(true);
+            Planar<GrayU8> actual = ImageModifier.treatPipeline(source.clone(), steps);
+            for (int i = 0; i < source.getNumBands(); i++) {
+                Assertions.assertArrayEquals(expected.getBand(i).data, actual.getBand(i).data, steps + " band " + i);
+            }
+        }
+    }
+}
@@ -1,35 +1,83 @@
 package pdl.backend;
 
+import boofcv.io.image.ConvertBufferedImage;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.madgag.gif.fmsware.AnimatedGifEncoder;
+import io.micrometer.core.instrument.MeterRegistry;
+import com.madgag.gif.fmsware.GifDecoder;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.MethodOrderer.OrderAnnotation;
 import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.system.CapturedOutput;
+import org.springframework.boot.test.system.OutputCaptureExtension;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
-@SpringBootTest
+@SpringBootTest(properties = "images.store=memory")
 @AutoConfigureMockMvc
+@AutoConfigureMetrics
 @TestMethodOrder(OrderAnnotation.class)
+@ExtendWith(OutputCaptureExtension.class)
 public class ImageControllerTests {
 
     @Autowired
     private MockMvc mockMvc;
 
+    @Autowired
+    private ImageController imageController;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private JobQueue jobQueue;
+
+    @Autowired
+    private RenditionStore renditionStore;
+
     @BeforeAll
     public static void reset() {
         // reset Image class static counter
-        ReflectionTestUtils.setField(Image.class, "count", 0L);
+        ((AtomicLong) ReflectionTestUtils.getField(Image.class, "count")).set(0L);
     }
 
     @Test
@@ -61,6 +109,19 @@ public class ImageControllerTests {
                 .andExpect(status().isCreated());
     }
 
+    @Test
+    @Order(5)
+    public void getImageListShouldLeaveOutUnreadableImages(CapturedOutput output) throws Exception {
+        MockMultipartFile file = new MockMultipartFile("file", "corrupt.jpeg", MediaType.IMAGE_JPEG_VALUE, "not an image".getBytes());
+        this.mockMvc.perform(MockMvcRequestBuilders.multipart("/images").file(file))
+                .andExpect(status().isCreated());
+        String list = this.mockMvc.perform(get("/images"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        Assertions.assertFalse(list.contains("corrupt.jpeg"));
+        Assertions.assertTrue(output.getOut().contains("(corrupt.jpeg) cannot be read"));
+    }
+
     @Test
     @Order(5)
     public void createImageShouldReturnUnsupportedMediaType() throws Exception {
@@ -312,6 +373,410 @@ public class ImageControllerTests {
                 .andExpect(status().isNotFound());
     }
 
+    @Test
+    @Order(32)
+    public void pipelineShouldReturnSuccess() throws Exception {
+        this.mockMvc.perform(post("/images/0/pipeline")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"algorithm\": \"negative\"}, {\"algorithm\": \"blur\", \"type\": \"M\", \"size\": \"2\"}]"))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    @Order(32)
+    public void pipelineShouldReturnNotEnoughParameterBadRequest() throws Exception {
+        this.mockMvc.perform(post("/images/0/pipeline")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"algorithm\": \"negative\"}, {\"algorithm\": \"addLuminosityRGB\"}]"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @Order(32)
+    public void pipelineShouldReturnEmptyBadRequest() throws Exception {
+        this.mockMvc.perform(post("/images/0/pipeline")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[]"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @Order(32)
+    public void pipelineShouldReturnNotFound() throws Exception {
+        this.mockMvc.perform(post("/images/-1/pipeline")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"algorithm\": \"negative\"}]"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @Order(32)
+    public void renditionShouldFitTheSize() throws Exception {
+        byte[] bytes = this.mockMvc.perform(get("/images/0")
+                        .param("size", "128"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+        BufferedImage rendition = ImageIO.read(new ByteArrayInputStream(bytes));
+        Assertions.assertTrue(Math.max(rendition.getWidth(), rendition.getHeight()) <= 128);
+    }
+
+    @Test
+    @Order(32)
+    public void renditionShouldReturnUnknownSizeBadRequest() throws Exception {
+        this.mockMvc.perform(get("/images/0")
+                        .param("size", "100"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @Order(32)
+    public void renditionShouldReturnNotFound() throws Exception {
+        this.mockMvc.perform(get("/images/-1")
+                        .param("size", "128"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @Order(32)
+    public void previewShouldRunOnTheRendition() throws Exception {
+        byte[] bytes = this.mockMvc.perform(get("/images/0")
+                        .param("algorithm", "blur")
+                        .param("type", "M")
+                        .param("size", "9")
+                        .param("preview", "128"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+        BufferedImage preview = ImageIO.read(new ByteArrayInputStream(bytes));
+        Assertions.assertTrue(Math.max(preview.getWidth(), preview.getHeight()) <= 128);
+    }
+
+    @Test
+    @Order(32)
+    public void pipelinePreviewShouldReturnSuccess() throws Exception {
+        this.mockMvc.perform(post("/images/0/pipeline")
+                        .param("preview", "512")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"algorithm\": \"negative\"}, {\"algorithm\": \"addLuminosityRGB\", \"gain\": \"20\"}]"))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    @Order(32)
+    public void previewShouldReturnUnknownSizeBadRequest() throws Exception {
+        this.mockMvc.perform(get("/images/0")
+                        .param("algorithm", "negative")
+                        .param("preview", "300"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void previewShouldScaleOnlyPixelLengths() {
+        List<Map<String, String>> steps = List.of(
+                Map.of("algorithm", "blur", "type", "G", "size", "9"),
+                Map.of("algorithm", "wave", "waveAxis", "V", "waveOffset", "-32", "waveType", "C", "amplitude", "20", "waveLength", "2"),
+                Map.of("algorithm", "hueFilter", "hue", "120"),
+                Map.of("algorithm", "halftoning", "spread", "4", "dotSize", "abc"));
+        List<Map<String, String>> scaled = Preview.scaleSteps(steps, 0.25);
+        Assertions.assertEquals("2", scaled.get(0).get("size"));
+        Assertions.assertEquals("-8", scaled.get(1).get("waveOffset"));
+        Assertions.assertEquals("5", scaled.get(1).get("amplitude"));
+        // Sizes are kept positive, and invalid values are left for the algorithm to reject
+        Assertions.assertEquals("1", scaled.get(1).get("waveLength"));
+        Assertions.assertSame(steps.get(2), scaled.get(2));
+        Assertions.assertEquals("1.0", scaled.get(3).get("spread"));
+        Assertions.assertEquals("abc", scaled.get(3).get("dotSize"));
+    }
+
+    @Test
+    public void decodeShouldBeSubsampledOnlyBeforeAReduction() {
+        Map<String, String> bicubic = Map.of("algorithm", "scale", "width", "100", "height", "75", "filter", "bicubic");
+        Map<String, String> nearest = Map.of("algorithm", "scale", "width", "100", "height", "75");
+        Map<String, String> gain = Map.of("algorithm", "addLuminosityRGB", "gain", "20");
+        Map<String, String> blur = Map.of("algorithm", "blur", "type", "M", "size", "3");
+        Assertions.assertEquals(8, ImageController.decodeSubsampling(800, 600, List.of(nearest)));
+        Assertions.assertEquals(8, ImageController.decodeSubsampling(800, 600, List.of(gain, nearest)));
+        Assertions.assertEquals(1, ImageController.decodeSubsampling(800, 600, List.of(blur, nearest)));
+        // The smoothing filters average the pixels a subsampled decode would skip
+        Assertions.assertEquals(1, ImageController.decodeSubsampling(800, 600, List.of(bicubic)));
+        // 8 columns to 3 pick the columns 0, 2 and 5, which one column out of 2 does not keep
+        Assertions.assertEquals(1, ImageController.decodeSubsampling(8, 8, List.of(Map.of("algorithm", "scale", "width", "3", "height", "4"))));
+        Assertions.assertEquals(2, ImageController.decodeSubsampling(8, 8, List.of(Map.of("algorithm", "scale", "width", "4", "height", "4"))));
+        Assertions.assertEquals(1, ImageController.decodeSubsampling(700, 500, List.of(Map.of("algorithm", "scale", "width", "abc", "height", "80"))));
+    }
+
+    @Test
+    public void subsampledDecodeShouldGiveTheFullResolutionPixels() throws Exception {
+        BufferedImage source = new BufferedImage(800, 600, BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(5);
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) source.setRGB(x, y, random.nextInt());
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(source, "png", baos);
+        String[][] queries = {{"100", "75", "nearest"}, {"200", "150", "nearest"}, {"300", "200", "nearest"}, {"100", "75", "bicubic"}, {"101", "67", "lanczos3"}};
+        for (String[] query : queries) {
+            Map<String, String> params = Map.of("algorithm", "scale", "width", query[0], "height", query[1], "filter", query[2]);
+            byte[] bytes = imageController.executeProgram(new ByteArrayInputStream(baos.toByteArray()), MediaType.IMAGE_PNG, params);
+            Planar<GrayU8> actual = ConvertBufferedImage.convertFromPlanar(ImageIO.read(new ByteArrayInputStream(bytes)), null, true, GrayU8.class);
+            Planar<GrayU8> input = ConvertBufferedImage.convertFromPlanar(source, null, true, GrayU8.class);
+            Planar<GrayU8> expected = input.createSameShape();
+            Assertions.assertTrue(ImageModifier.treatInput(input, expected, params));
+            Assertions.assertEquals(expected.width, actual.width);
+            Assertions.assertEquals(expected.height, actual.height);
+            for (int i = 0; i < expected.getNumBands(); i++) {
+                for (int y = 0; y < expected.height; y++) {
+                    for (int x = 0; x < expected.width; x++) {
+                        if (expected.getBand(i).get(x, y) != actual.getBand(i).get(x, y))
+                            Assertions.fail(String.join(" ", query) + ": band " + i + " differs at " + x + "," + y);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void subsampledScaleShouldGiveTheRequestedSize() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(900, 600, BufferedImage.TYPE_3BYTE_BGR), "jpeg", baos);
+        Map<String, String> params = Map.of("algorithm", "scale", "width", "101", "height", "67", "filter", "lanczos3");
+        byte[] bytes = imageController.executeProgram(new ByteArrayInputStream(baos.toByteArray()), MediaType.IMAGE_JPEG, params);
+        BufferedImage result = ImageIO.read(new ByteArrayInputStream(bytes));
+        Assertions.assertEquals(101, result.getWidth());
+        Assertions.assertEquals(67, result.getHeight());
+    }
+
+    @Test
+    @Order(32)
+    public void jobShouldGiveTheResultOfThePipeline() throws Exception {
+        String steps = "[{\"algorithm\": \"negative\"}, {\"algorithm\": \"flip\", \"axis\": \"H\"}]";
+        String job = this.mockMvc.perform(post("/images/0/jobs")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(steps))
+                .andExpect(status().isAccepted())
+                .andReturn().getResponse().getContentAsString();
+        long jobId = new ObjectMapper().readTree(job).get("id").asLong();
+        MvcResult polled = this.mockMvc.perform(get("/jobs/" + jobId)
+                        .param("wait", "20"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(polled))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.status").value("DONE"));
+        byte[] expected = this.mockMvc.perform(post("/images/0/pipeline")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(steps))
+                .andReturn().getResponse().getContentAsByteArray();
+        byte[] actual = this.mockMvc.perform(get("/jobs/" + jobId + "/result"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+        Assertions.assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    @Order(32)
+    public void failedJobShouldReturnBadRequest() throws Exception {
+        String job = this.mockMvc.perform(post("/images/0/jobs")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"algorithm\": \"addLuminosityRGB\"}]"))
+                .andExpect(status().isAccepted())
+                .andReturn().getResponse().getContentAsString();
+        long jobId = new ObjectMapper().readTree(job).get("id").asLong();
+        MvcResult polled = this.mockMvc.perform(get("/jobs/" + jobId)
+                        .param("wait", "20"))
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(polled))
+                .andExpect(jsonPath("$.status").value("FAILED"))
+                .andExpect(jsonPath("$.error").value(400));
+        this.mockMvc.perform(get("/jobs/" + jobId + "/result"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @Order(32)
+    public void jobShouldReturnNotFound() throws Exception {
+        this.mockMvc.perform(post("/images/-1/jobs")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"algorithm\": \"negative\"}]"))
+                .andExpect(status().isNotFound());
+        this.mockMvc.perform(asyncDispatch(this.mockMvc.perform(get("/jobs/-1")).andReturn()))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @Order(32)
+    public void jobPollShouldNotHoldTheRequestThread() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        JobQueue.Job job = jobQueue.submit(MediaType.IMAGE_PNG, () -> {
+            release.await();
+            return new byte[]{1};
+        });
+        long start = System.nanoTime();
+        MvcResult polled = this.mockMvc.perform(get("/jobs/" + job.getId())
+                        .param("wait", "20"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        // The handler returned without waiting for the job
+        Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        // Queued or running, depending on the jobs left by the other tests
+        Assertions.assertNotEquals(JobQueue.Status.DONE, job.getStatus());
+        release.countDown();
+        this.mockMvc.perform(asyncDispatch(polled))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.status").value("DONE"));
+        // Without wait, the status is answered right away
+        this.mockMvc.perform(asyncDispatch(this.mockMvc.perform(get("/jobs/" + job.getId())).andReturn()))
+                .andExpect(jsonPath("$.status").value("DONE"));
+    }
+
+    @Test
+    @Order(32)
+    public void resultShouldBeStreamedThenServedFromTheCache() throws Exception {
+        // Sent as it is encoded, so without a length
+        byte[] streamed = this.mockMvc.perform(get("/images/0")
+                        .param("algorithm", "flip")
+                        .param("axis", "V"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("Content-Length"))
+                .andReturn().getResponse().getContentAsByteArray();
+        Assertions.assertNotNull(ImageIO.read(new ByteArrayInputStream(streamed)));
+        byte[] cached = this.mockMvc.perform(get("/images/0")
+                        .param("algorithm", "flip")
+                        .param("axis", "V"))
+                .andExpect(status().isOk())
+                .andExpect(header().longValue("Content-Length", streamed.length))
+                .andReturn().getResponse().getContentAsByteArray();
+        Assertions.assertArrayEquals(streamed, cached);
+    }
+
+    @Test
+    @Order(32)
+    public void requestOverTheBudgetShouldReturnTooManyRequests() throws Exception {
+        try (AdmissionControl.Ticket ignored = admissionControl.admit(admissionControl.getTotalBytes(), 0)) {
+            this.mockMvc.perform(get("/images/0")
+                            .param("algorithm", "negative")
+                            .param("budget", "exhausted"))
+                    .andExpect(status().isTooManyRequests())
+                    .andExpect(header().exists("Retry-After"));
+        }
+    }
+
+    @Test
+    @Order(32)
+    public void requestOverTheWholeBudgetShouldBeRefusedBeforeDecoding() throws Exception {
+        long available = admissionControl.getAvailableBytes();
+        this.mockMvc.perform(get("/images/0")
+                        .param("algorithm", "scale")
+                        .param("width", "100000")
+                        .param("height", "100000"))
+                .andExpect(status().isPayloadTooLarge())
+                .andExpect(header().doesNotExist("Retry-After"));
+        this.mockMvc.perform(post("/images/0/jobs")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"algorithm\": \"scale\", \"width\": \"100000\", \"height\": \"100000\"}]"))
+                .andExpect(status().isPayloadTooLarge());
+        Assertions.assertEquals(available, admissionControl.getAvailableBytes());
+    }
+
+    @Test
+    @Order(32)
+    public void jobOverTheBudgetShouldBeRefusedWhenSubmitted() throws Exception {
+        int queued = jobQueue.getQueuedCount();
+        try (AdmissionControl.Ticket ignored = admissionControl.admit(admissionControl.getTotalBytes(), 0)) {
+            this.mockMvc.perform(post("/images/0/jobs")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content("[{\"algorithm\": \"negative\"}]"))
+                    .andExpect(status().isTooManyRequests())
+                    .andExpect(header().exists("Retry-After"));
+            byte[] jpeg = Files.readAllBytes(Paths.get("src/test/java/pdl/backend/testImages/images/test.jpg"));
+            this.mockMvc.perform(MockMvcRequestBuilders.multipart("/jobs")
+                            .file(new MockMultipartFile("file", "test.jpg", "image/jpeg", jpeg))
+                            .param("algorithm", "negative"))
+                    .andExpect(status().isTooManyRequests());
+        }
+        Assertions.assertEquals(queued, jobQueue.getQueuedCount());
+    }
+
+    @Test
+    @Order(32)
+    public void renditionOverTheBudgetShouldReturnTooManyRequests() throws Exception {
+        renditionStore.invalidate(0);
+        try (AdmissionControl.Ticket ignored = admissionControl.admit(admissionControl.getTotalBytes(), 0)) {
+            this.mockMvc.perform(get("/images/0")
+                            .param("size", "128"))
+                    .andExpect(status().isTooManyRequests())
+                    .andExpect(header().exists("Retry-After"));
+        }
+        this.mockMvc.perform(get("/images/0")
+                        .param("size", "128"))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    @Order(32)
+    public void metricsShouldBeExportedForPrometheus() throws Exception {
+        this.mockMvc.perform(get("/images/0")
+                        .param("algorithm", "gradientImageSobel"))
+                .andExpect(status().isOk());
+        this.mockMvc.perform(get("/images/0")
+                        .param("algorithm", "blur")
+                        .param("size", "3"))
+                .andExpect(status().isBadRequest());
+        Assertions.assertTrue(meterRegistry.get("images.algorithm").tag("algorithm", "gradientImageSobel").timer().count() > 0);
+        Assertions.assertTrue(meterRegistry.get("images.algorithm.pixels").tag("algorithm", "gradientImageSobel").counter().count() > 0);
+        Assertions.assertTrue(meterRegistry.get("images.errors").tag("cause", "Wrong arguments").counter().count() > 0);
+
+        String scrape = this.mockMvc.perform(get("/actuator/prometheus"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        Assertions.assertTrue(scrape.contains("images_algorithm_seconds{algorithm=\"gradientImageSobel\",quantile=\"0.99\",}"));
+        Assertions.assertTrue(scrape.contains("images_decode_seconds_count"));
+        Assertions.assertTrue(scrape.contains("images_input_pixels_bucket"));
+        Assertions.assertTrue(scrape.contains("images_cache_shared_total"));
+        Assertions.assertTrue(scrape.contains("images_allocated_all_bytes_total"));
+    }
+
+    @Test
+    @Order(32)
+    public void fusedColorOperationsShouldBeExportedUnderTheirNames() throws Exception {
+        this.mockMvc.perform(post("/images/0/pipeline")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"algorithm\": \"sepia\"}, {\"algorithm\": \"negative\"}, {\"algorithm\": \"flip\", \"axis\": \"H\"}, {\"algorithm\": \"negative\"}]"))
+                .andExpect(status().isOk());
+        // The two first steps are fused, the last one is applied alone
+        Assertions.assertEquals(1, meterRegistry.get("images.algorithm").tag("algorithm", "negative+sepia").timer().count());
+        Assertions.assertTrue(meterRegistry.get("images.algorithm.pixels").tag("algorithm", "negative+sepia").counter().count() > 0);
+        Assertions.assertTrue(meterRegistry.get("images.algorithm").tag("algorithm", "negative").timer().count() > 0);
+        Assertions.assertNull(meterRegistry.find("images.algorithm").tag("algorithm", "colorTransform").timer());
+
+        String scrape = this.mockMvc.perform(get("/actuator/prometheus"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        Assertions.assertTrue(scrape.contains("images_algorithm_seconds_count{algorithm=\"negative+sepia\",}"));
+        Assertions.assertTrue(scrape.contains("images_algorithm_pixels_total{algorithm=\"negative+sepia\",}"));
+    }
+
+    @Test
+    @Order(32)
+    public void cacheCountersShouldBeExported() throws Exception {
+        double hits = meterRegistry.get("images.cache.hits").functionCounter().count();
+        double misses = meterRegistry.get("images.cache.misses").functionCounter().count();
+        for (int i = 0; i < 2; i++) {
+            this.mockMvc.perform(get("/images/0")
+                            .param("algorithm", "flip")
+                            .param("axis", "H"))
+                    .andExpect(status().isOk());
+        }
+        Assertions.assertEquals(hits + 1, meterRegistry.get("images.cache.hits").functionCounter().count());
+        Assertions.assertEquals(misses + 1, meterRegistry.get("images.cache.misses").functionCounter().count());
+
+        String scrape = this.mockMvc.perform(get("/actuator/prometheus"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        Assertions.assertTrue(scrape.contains("images_cache_hits_total"));
+        Assertions.assertTrue(scrape.contains("images_cache_misses_total"));
+        Assertions.assertTrue(scrape.contains("images_cache_evictions_total"));
+    }
+
     @Test
     @Order(33)
     public void deleteImagesShouldReturnMethodNotAllowed() throws Exception {
@@ -332,4 +797,35 @@ public class ImageControllerTests {
         this.mockMvc.perform(delete("/images/0"))
                 .andExpect(status().isOk());
     }
-}
\ No newline at end of file
+
+    @Test
+    @Order(36)
+    public void gifFramesProcessedConcurrentlyShouldMatchSequentialEncoding() throws Exception {
+        byte[] gifBytes = Files.readAllBytes(Paths.get("../images/nyan-cat-gif-1.gif"));
+        Map<String, String> params = Map.of("algorithm", "gradientImageSobel");
+
+        // Frame by frame, as the GIF branch of executeProgram used to encode
+        GifDecoder gif = new GifDecoder();
+        gif.read(new ByteArrayInputStream(gifBytes));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        AnimatedGifEncoder encoder = new AnimatedGifEncoder();
+        encoder.setRepeat(0);
+        encoder.start(expected);
+        for (int i = 0; i < gif.getFrameCount(); i++) {
+            Planar<GrayU8> input = ConvertBufferedImage.convertFromPlanar(gif.getFrame(i), null, true, GrayU8.class);
+            input.reorderBands(1, 2, 3, 0);
+            Planar<GrayU8> output = input.createSameShape();
+            if (!ImageModifier.treatInput(input, output, params)) output = input;
+            output.reorderBands(3, 0, 1, 2);
+            BufferedImage frame = new BufferedImage(output.width, output.height, gif.getFrame(i).getType());
+            ConvertBufferedImage.convertTo(output, frame, true);
+            encoder.setDelay(gif.getDelay(i));
+            encoder.addFrame(frame);
+        }
+        // The trailer, which the GIFs used to be sent without
+        encoder.finish();
+
+        byte[] actual = imageController.executeProgram(new ByteArrayInputStream(gifBytes), MediaType.IMAGE_GIF, params);
+        Assertions.assertArrayEquals(expected.toByteArray(), actual);
+    }
+}
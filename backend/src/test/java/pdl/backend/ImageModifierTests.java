@@ -0,0 +1,336 @@
+package pdl.backend;
+
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+public class ImageModifierTests {
+
+    @AfterEach
+    public void resetKernels() {
+        ByteKernels.setVectorEnabled(true);
+    }
+
+    private static Planar<GrayU8> randomImage(int width, int height, int numBands, long seed) {
+        Planar<GrayU8> image = new Planar<>(GrayU8.class, width, height, numBands);
+        Random random = new Random(seed);
+        for (int i = 0; i < numBands; i++) {
+            random.nextBytes(image.getBand(i).data);
+        }
+        return image;
+    }
+
+    private static void assertSameImage(Planar<GrayU8> expected, Planar<GrayU8> actual) {
+        Assertions.assertEquals(expected.getNumBands(), actual.getNumBands());
+        Assertions.assertEquals(expected.width, actual.width);
+        Assertions.assertEquals(expected.height, actual.height);
+        for (int i = 0; i < expected.getNumBands(); i++) {
+            for (int y = 0; y < expected.height; y++) {
+                for (int x = 0; x < expected.width; x++) {
+                    Assertions.assertEquals(expected.getBand(i).get(x, y), actual.getBand(i).get(x, y), "band " + i + " at (" + x + "," + y + ")");
+                }
+            }
+        }
+    }
+
+    // Direct (2*size+1)^2 window mean with NORMALIZE borders, as the filter was first written
+    private static void referenceMeanFilter(Planar<GrayU8> input, Planar<GrayU8> output, int size) {
+        int numBands = input.getNumBands();
+        if (numBands == 4) output.getBand(3).setTo(input.getBand(3));
+        numBands = Math.max(1, Math.min(numBands, 3));
+        for (int y = 0; y < input.height; y++) {
+            for (int x = 0; x < input.width; x++) {
+                for (int i = 0; i < numBands; i++) {
+                    int total = 0;
+                    int n = 0;
+                    for (int u = -size; u <= size; u++) {
+                        for (int v = -size; v <= size; v++) {
+                            if (input.isInBounds(x + u, y + v)) {
+                                n++;
+                                total += input.getBand(i).get(x + u, y + v);
+                            }
+                        }
+                    }
+                    output.getBand(i).set(x, y, total / n);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void meanFilterShouldMatchDirectWindowMean() {
+        int[][] shapes = {{64, 48, 1}, {97, 31, 3}, {40, 120, 4}, {7, 5, 3}};
+        int[] sizes = {0, 1, 3, 10, 60};
+        for (int parallelism : new int[]{1, 4}) {
+            TileExecutor.withMaxParallelism(parallelism, () -> {
+                for (int[] shape : shapes) {
+                    Planar<GrayU8> input = randomImage(shape[0], shape[1], shape[2], shape[0] * 31L + shape[2]);
+                    for (int size : sizes) {
+                        Planar<GrayU8> expected = input.createSameShape();
+                        Planar<GrayU8> actual = input.createSameShape();
+                        referenceMeanFilter(input, expected, size);
+                        ImageModifier.meanFilterWithBorders(input, actual, size);
+                        assertSameImage(expected, actual);
+                    }
+                }
+            });
+        }
+    }
+
+    @Test
+    public void tiledMeanFilterShouldMatchDirectWindowMean() {
+        // Large enough to be split into several row bands
+        Planar<GrayU8> input = randomImage(700, 400, 3, 7);
+        for (int size : new int[]{2, 9}) {
+            Planar<GrayU8> expected = input.createSameShape();
+            Planar<GrayU8> actual = input.createSameShape();
+            referenceMeanFilter(input, expected, size);
+            TileExecutor.withMaxParallelism(4, () -> ImageModifier.meanFilterWithBorders(input, actual, size));
+            assertSameImage(expected, actual);
+        }
+    }
+
+    @Test
+    public void meanFilterShouldAcceptOversizedWindows() {
+        Planar<GrayU8> input = randomImage(97, 31, 3, 8);
+        Planar<GrayU8> expected = input.createSameShape();
+        referenceMeanFilter(input, expected, 97);
+        for (int size : new int[]{98, 1 << 20, Integer.MAX_VALUE - 1, Integer.MAX_VALUE}) {
+            Planar<GrayU8> actual = input.createSameShape();
+            TileExecutor.withMaxParallelism(4, () -> ImageModifier.meanFilterWithBorders(input, actual, size));
+            assertSameImage(expected, actual);
+        }
+        // The window sums of a white image of more than 2^31 / 255 pixels don't fit in an int
+        Planar<GrayU8> white = new Planar<>(GrayU8.class, 3500, 2500, 1);
+        Arrays.fill(white.getBand(0).data, (byte) 255);
+        Planar<GrayU8> actual = white.createSameShape();
+        ImageModifier.meanFilterWithBorders(white, actual, Integer.MAX_VALUE);
+        for (byte value : actual.getBand(0).data) {
+            if (value != (byte) 255) Assertions.fail("mean of a white image is " + (value & 0xFF));
+        }
+    }
+
+    @Test
+    public void meanFilterShouldRejectNegativeSize() {
+        Planar<GrayU8> input = randomImage(8, 8, 3, 0);
+        Assertions.assertThrows(ImageControllerException.class, () -> ImageModifier.meanFilterWithBorders(input, input.createSameShape(), -1));
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : query.split("&")) {
+            String[] keyValue = pair.split("=", 2);
+            params.put(keyValue[0], keyValue[1]);
+        }
+        return params;
+    }
+
+    @Test
+    public void filtersShouldMatchReferenceImplementation() {
+        String[] queries = {
+                "algorithm=addLuminosityRGB&gain=70",
+                "algorithm=addLuminosityRGB&gain=-300",
+                "algorithm=negative",
+                "algorithm=sepia",
+                "algorithm=hueFilter&hue=0",
+                "algorithm=hueFilter&hue=200",
+                "algorithm=hueSelector&min=100&max=300",
+                "algorithm=hueSelector&min=300&max=100",
+                "algorithm=reverseHue",
+                "algorithm=equalize&canal=V",
+                "algorithm=equalize&canal=S",
+                "algorithm=gradientImageSobel",
+                "algorithm=rainbow&direction=H",
+                "algorithm=rainbow&direction=V",
+                "algorithm=rainbow&direction=C",
+                "algorithm=scale&width=37&height=53",
+                "algorithm=scale&width=150&height=20",
+                "algorithm=flip&axis=H",
+                "algorithm=flip&axis=V",
+                "algorithm=rotate&angle=33",
+                "algorithm=rotate&angle=-90",
+                "algorithm=rotate&angle=180",
+                "algorithm=wave&waveAxis=V&waveOffset=0&waveType=C&amplitude=10&waveLength=40",
+                "algorithm=wave&waveAxis=H&waveOffset=7&waveType=R&amplitude=5&waveLength=13",
+                "algorithm=wave&waveAxis=V&waveOffset=3&waveType=T&amplitude=8&waveLength=21",
+                "algorithm=sphere&sphere_type=S",
+                "algorithm=sphere&sphere_type=E",
+                "algorithm=mozaic",
+                "algorithm=twist&maxAngle=90",
+                "algorithm=twist&maxAngle=-200",
+                "algorithm=halftoning&spread=3&dotSize=6",
+                "algorithm=halftoning&spread=1.5&dotSize=7",
+                "algorithm=halftoning&spread=1&dotSize=1"
+        };
+        // These need colors, and some convert the image to gray first
+        Set<String> colorOnly = Set.of("gradientImageSobel", "rainbow", "halftoning", "hueFilter", "hueSelector", "reverseHue");
+        int[][] shapes = {{64, 48, 3}, {97, 31, 4}, {45, 70, 1}, {27, 24, 3}};
+        for (int parallelism : new int[]{1, 4}) {
+            TileExecutor.withMaxParallelism(parallelism, () -> {
+                for (int[] shape : shapes) {
+                    Planar<GrayU8> source = randomImage(shape[0], shape[1], shape[2], shape[0] * 17L + shape[2]);
+                    // A sub-image, whose rows don't start at the beginning of the arrays
+                    Planar<GrayU8> border = randomImage(shape[0] + 5, shape[1] + 4, shape[2], shape[1]);
+                    Planar<GrayU8> sub = border.subimage(3, 2, 3 + shape[0], 2 + shape[1]);
+                    sub.setTo(source);
+                    for (String query : queries) {
+                        Map<String, String> params = parseQuery(query);
+                        if (shape[2] < 3 && colorOnly.contains(params.get("algorithm"))) {
+                            Assertions.assertThrows(ImageControllerException.class, () -> ImageModifier.treatInput(source.clone(), source.createSameShape(), params), query);
+                            continue;
+                        }
+                        Planar<GrayU8> expected = source.clone();
+                        Planar<GrayU8> expectedOutput = source.createSameShape();
+                        if (ReferenceImageModifier.treatInput(expected, expectedOutput, params)) expected = expectedOutput;
+                        // With the scalar kernels, then the vector ones when the JVM provides them
+                        for (boolean vector : new boolean[]{false, true}) {
+                            ByteKernels.setVectorEnabled(vector);
+                            for (Planar<GrayU8> input : List.of(source.clone(), sub.clone())) {
+                                Planar<GrayU8> output = source.createSameShape();
+                                assertSameImage(expected, ImageModifier.treatInput(input, output, params) ? output : input);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    @Test
+    public void halftoningShouldRejectEmptyDots() {
+        Planar<GrayU8> input = randomImage(8, 8, 3, 0);
+        Assertions.assertThrows(ImageControllerException.class, () -> ImageModifier.Halftoning(input, 255, 3, 0));
+    }
+
+    @Test
+    public void rotateShouldKeepTheImageWithoutAngle() {
+        Planar<GrayU8> input = randomImage(31, 20, 3, 12);
+        for (Interpolation interpolation : Interpolation.values()) {
+            for (boolean expand : new boolean[]{false, true}) {
+                Planar<GrayU8> output = input.createSameShape();
+                ImageModifier.rotate(input, output, 0, interpolation, expand);
+                assertSameImage(input, output);
+            }
+        }
+    }
+
+    @Test
+    public void expandedRotateShouldTurnRightAnglesExactly() {
+        Planar<GrayU8> input = randomImage(31, 20, 3, 13);
+        for (Interpolation interpolation : List.of(Interpolation.BILINEAR, Interpolation.BICUBIC)) {
+            for (int angle : new int[]{90, -90, 180}) {
+                Planar<GrayU8> output = input.createSameShape();
+                ImageModifier.rotate(input, output, angle, interpolation, true);
+                int width = (angle == 180) ? input.width : input.height;
+                int height = (angle == 180) ? input.height : input.width;
+                Planar<GrayU8> expected = new Planar<>(GrayU8.class, width, height, input.getNumBands());
+                for (int i = 0; i < input.getNumBands(); i++) {
+                    for (int y = 0; y < height; y++) {
+                        for (int x = 0; x < width; x++) {
+                            int xIn = (angle == 90) ? input.width - 1 - y : (angle == -90) ? y : input.width - 1 - x;
+                            int yIn = (angle == 90) ? x : (angle == -90) ? input.height - 1 - x : input.height - 1 - y;
+                            expected.getBand(i).set(x, y, input.getBand(i).get(xIn, yIn));
+                        }
+                    }
+                }
+                assertSameImage(expected, output);
+            }
+        }
+    }
+
+    @Test
+    public void tiledRotateShouldMatchSingleBand() {
+        Planar<GrayU8> input = randomImage(700, 400, 3, 14);
+        for (Interpolation interpolation : Interpolation.values()) {
+            Planar<GrayU8> expected = input.createSameShape();
+            TileExecutor.withMaxParallelism(1, () -> ImageModifier.rotate(input, expected, 33, interpolation, true));
+            Planar<GrayU8> actual = input.createSameShape();
+            TileExecutor.withMaxParallelism(4, () -> ImageModifier.rotate(input, actual, 33, interpolation, true));
+            assertSameImage(expected, actual);
+        }
+    }
+
+    @Test
+    public void rotateShouldRejectUnknownInterpolation() {
+        Planar<GrayU8> input = randomImage(8, 8, 3, 0);
+        Map<String, String> params = Map.of("algorithm", "rotate", "angle", "10", "interpolation", "sinc");
+        Assertions.assertThrows(ImageControllerException.class, () -> ImageModifier.treatInput(input, input.createSameShape(), params));
+    }
+
+    @Test
+    public void pipelineShouldMatchAlgorithmsAppliedOneByOne() {
+        List<Map<String, String>> steps = List.of(
+                Map.of("algorithm", "rotate", "angle", "33"),
+                Map.of("algorithm", "negative"),
+                Map.of("algorithm", "scale", "width", "50", "height", "70"),
+                Map.of("algorithm", "blur", "type", "M", "size", "2"),
+                Map.of("algorithm", "sepia"),
+                Map.of("algorithm", "gradientImageSobel"));
+        Planar<GrayU8> expected = randomImage(97, 61, 3, 11);
+        Planar<GrayU8> input = expected.clone();
+        for (Map<String, String> params : steps) {
+            Planar<GrayU8> output = expected.createSameShape();
+            if (ImageModifier.treatInput(expected, output, params)) expected = output;
+        }
+        assertSameImage(expected, ImageModifier.treatPipeline(input, steps));
+    }
+
+    @Test
+    public void pipelineShouldRejectStepWithoutAlgorithm() {
+        Planar<GrayU8> input = randomImage(8, 8, 3, 0);
+        List<Map<String, String>> steps = List.of(Map.of("algorithm", "negative"), Map.of("gain", "10"));
+        Assertions.assertThrows(ImageControllerException.class, () -> ImageModifier.treatPipeline(input, steps));
+    }
+
+    @Test
+    public void fusedColorOperationsShouldMatchOperationsAppliedOneByOne() {
+        List<Map<String, String>> steps = List.of(
+                Map.of("algorithm", "addLuminosityRGB", "gain", "30"),
+                Map.of("algorithm", "negative"),
+                Map.of("algorithm", "sepia"),
+                Map.of("algorithm", "hueFilter", "hue", "200"),
+                Map.of("algorithm", "addLuminosityRGB", "gain", "-50"),
+                Map.of("algorithm", "reverseHue"),
+                Map.of("algorithm", "hueSelector", "min", "300", "max", "100"),
+                Map.of("algorithm", "negative"));
+        // Each step applied by its per-pixel reference, the pipeline fuses them into a single pass
+        for (int numBands : new int[]{3, 4}) {
+            Planar<GrayU8> expected = randomImage(400, 300, numBands, numBands);
+            Planar<GrayU8> source = expected.clone();
+            for (Map<String, String> params : steps) {
+                ReferenceImageModifier.treatInput(expected, expected.createSameShape(), params);
+            }
+            for (boolean vector : new boolean[]{false, true}) {
+                ByteKernels.setVectorEnabled(vector);
+                Planar<GrayU8> input = source.clone();
+                assertSameImage(expected, TileExecutor.withMaxParallelism(4, () -> ImageModifier.treatPipeline(input, steps)));
+            }
+        }
+    }
+
+    @Test
+    public void fusedColorOperationsShouldHandleGrayImages() {
+        List<Map<String, String>> steps = List.of(
+                Map.of("algorithm", "addLuminosityRGB", "gain", "30"),
+                Map.of("algorithm", "sepia"),
+                Map.of("algorithm", "negative"));
+        Planar<GrayU8> expected = randomImage(40, 30, 1, 5);
+        Planar<GrayU8> input = expected.clone();
+        for (Map<String, String> params : steps) {
+            ReferenceImageModifier.treatInput(expected, expected.createSameShape(), params);
+        }
+        assertSameImage(expected, ImageModifier.treatPipeline(input, steps));
+
+        List<Map<String, String>> colored = List.of(Map.of("algorithm", "negative"), Map.of("algorithm", "reverseHue"));
+        Assertions.assertThrows(ImageControllerException.class, () -> ImageModifier.treatPipeline(input, colored));
+    }
+}
@@ -0,0 +1,87 @@
+package pdl.backend;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class JobQueueTests {
+
+    @Test
+    public void fullQueueShouldRefuseJobs() throws InterruptedException {
+        JobQueue queue = new JobQueue(1, 1, 300, 1 << 20);
+        CountDownLatch release = new CountDownLatch(1);
+        JobQueue.Job running = queue.submit(MediaType.IMAGE_PNG, () -> {
+            release.await();
+            return new byte[]{1};
+        });
+        JobQueue.Job queued = queue.submit(MediaType.IMAGE_PNG, () -> new byte[]{2});
+        Assertions.assertThrows(RejectedExecutionException.class, () -> queue.submit(MediaType.IMAGE_PNG, () -> new byte[0]));
+        Assertions.assertEquals(JobQueue.Status.QUEUED, queued.getStatus());
+
+        release.countDown();
+        queue.await(queued, 10000);
+        Assertions.assertEquals(JobQueue.Status.DONE, running.getStatus());
+        Assertions.assertArrayEquals(new byte[]{2}, queued.getResult());
+        queue.close();
+    }
+
+    @Test
+    public void finishedJobsShouldExpire() throws InterruptedException {
+        JobQueue queue = new JobQueue(1, 4, 0, 1 << 20);
+        JobQueue.Job job = queue.submit(MediaType.IMAGE_PNG, () -> {
+            throw new ImageControllerException("Wrong arguments");
+        });
+        queue.await(job, 10000);
+        Assertions.assertEquals(JobQueue.Status.FAILED, job.getStatus());
+        Assertions.assertTrue(job.getError() instanceof ImageControllerException);
+        // Expired as soon as it finished
+        Thread.sleep(1);
+        Assertions.assertTrue(queue.retrieve(job.getId()).isEmpty());
+        queue.close();
+    }
+
+    @Test
+    public void largestResultsShouldBeForgottenFirst() throws InterruptedException {
+        JobQueue queue = new JobQueue(1, 8, 300, 1000);
+        JobQueue.Job small = queue.submit(MediaType.IMAGE_PNG, () -> new byte[100]);
+        JobQueue.Job large = queue.submit(MediaType.IMAGE_PNG, () -> new byte[700]);
+        queue.await(large, 10000);
+        Assertions.assertEquals(800, queue.getRetainedBytes());
+        // 1100 bytes, the largest result other than the new one is forgotten
+        JobQueue.Job next = queue.submit(MediaType.IMAGE_PNG, () -> new byte[300]);
+        queue.await(next, 10000);
+        Assertions.assertTrue(queue.retrieve(large.getId()).isEmpty());
+        Assertions.assertTrue(queue.retrieve(small.getId()).isPresent());
+        Assertions.assertEquals(400, queue.getRetainedBytes());
+        // Kept on its own even though it is over the limit
+        JobQueue.Job huge = queue.submit(MediaType.IMAGE_PNG, () -> new byte[5000]);
+        queue.await(huge, 10000);
+        Assertions.assertEquals(5000, queue.retrieve(huge.getId()).orElseThrow().getResult().length);
+        Assertions.assertEquals(5000, queue.getRetainedBytes());
+        queue.close();
+    }
+
+    @Test
+    public void finishedActionShouldRunOnceTheJobIsDone() throws InterruptedException {
+        JobQueue queue = new JobQueue(1, 4, 300, 1 << 20);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        JobQueue.Job job = queue.submit(MediaType.IMAGE_PNG, () -> {
+            release.await();
+            return new byte[]{1};
+        });
+        job.whenFinished(finished::countDown);
+        Assertions.assertEquals(1, finished.getCount());
+        release.countDown();
+        Assertions.assertTrue(finished.await(10, TimeUnit.SECONDS));
+        // Run right away once the job is done
+        CountDownLatch after = new CountDownLatch(1);
+        job.whenFinished(after::countDown);
+        Assertions.assertEquals(0, after.getCount());
+        queue.close();
+    }
+}
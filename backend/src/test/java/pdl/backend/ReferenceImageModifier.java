@@ -0,0 +1,525 @@
+package pdl.backend;
+
+import boofcv.alg.color.ColorHsv;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+
+import java.util.Map;
+
+/**
+ * The filters of ImageModifier as they were written with get and set on every pixel, applied sequentially.
+ * The optimized filters must give exactly the same pixels.
+ */
+final class ReferenceImageModifier {
+
+    private ReferenceImageModifier() {
+    }
+
+    /**
+     * Apply the algorithm of params like ImageModifier.treatInput, for the algorithms having a reference here.
+     *
+     * @return true if the result is in output, false if it's in input
+     */
+    static boolean treatInput(Planar<GrayU8> input, Planar<GrayU8> output, Map<String, String> params) {
+        switch (params.get("algorithm")) {
+            case "addLuminosityRGB":
+                addLuminosity(input, Integer.parseInt(params.get("gain")));
+                return false;
+            case "equalize":
+                equalizer(input, params.get("canal").charAt(0));
+                return false;
+            case "hueFilter":
+                hueFilter(input, Integer.parseInt(params.get("hue")));
+                return false;
+            case "gradientImageSobel":
+                gradientImageSobel(input, output);
+                return true;
+            case "rainbow":
+                rainbow(input, params.get("direction").charAt(0));
+                return false;
+            case "hueSelector":
+                hueSelector(input, Integer.parseInt(params.get("min")), Integer.parseInt(params.get("max")));
+                return false;
+            case "scale":
+                scaling(input, output, Integer.parseInt(params.get("height")), Integer.parseInt(params.get("width")));
+                return true;
+            case "reverseHue":
+                reverseHue(input);
+                return false;
+            case "negative":
+                negative(input);
+                return false;
+            case "flip":
+                flip(input, params.get("axis").charAt(0));
+                return false;
+            case "rotate":
+                rotate(input, output, Integer.parseInt(params.get("angle")));
+                return true;
+            case "wave":
+                wave(input, output, params.get("waveAxis").charAt(0), Integer.parseInt(params.get("waveOffset")), params.get("waveType").charAt(0), Integer.parseInt(params.get("amplitude")), Integer.parseInt(params.get("waveLength")));
+                return true;
+            case "sphere":
+                sphere(input, output, params.get("sphere_type").charAt(0));
+                return true;
+            case "sepia":
+                sepia(input);
+                return false;
+            case "mozaic":
+                mozaic(input, output);
+                return true;
+            case "twist":
+                twist(input, output, Integer.parseInt(params.get("maxAngle")));
+                return true;
+            case "halftoning":
+                halftoning(input, 255, Float.parseFloat(params.get("spread")), Integer.parseInt(params.get("dotSize")));
+                return false;
+            default:
+                throw new IllegalArgumentException("No reference for " + params.get("algorithm"));
+        }
+    }
+
+    static void addLuminosity(Planar<GrayU8> input, int delta) {
+        int numBands = input.getNumBands();
+        numBands = Math.max(1, Math.min(numBands, 3));
+        for (int y = 0; y < input.height; y++) {
+            for (int x = 0; x < input.width; x++) {
+                for (int i = 0; i < numBands; i++) {
+                    input.getBand(i).set(x, y, Math.max(0, Math.min(input.getBand(i).get(x, y) + delta, 255)));
+                }
+            }
+        }
+    }
+
+    static void rgbToHsv(int r, int g, int b, float[] hsv) {
+        float r_float = (float) r / 255;
+        float g_float = (float) g / 255;
+        float b_float = (float) b / 255;
+        int maxRGB_int = Math.max(Math.max(r, g), b);
+        float maxRGB_float = (float) maxRGB_int / 255;
+        int minRGB_int = Math.min(Math.min(r, g), b);
+        float minRGB_float = (float) minRGB_int / 255;
+
+        if ((r == g) && (g == b)) {
+            hsv[0] = 0;
+        } else if (maxRGB_int == r) {
+            hsv[0] = (60 * (g_float - b_float) / (maxRGB_float - minRGB_float) + 360) % 360;
+        } else if (maxRGB_int == g) {
+            hsv[0] = 60 * (b_float - r_float) / (maxRGB_float - minRGB_float) + 120;
+        } else {
+            hsv[0] = 60 * (r_float - g_float) / (maxRGB_float - minRGB_float) + 240;
+        }
+
+        hsv[1] = (maxRGB_float == 0) ? 0 : 1 - (minRGB_float / maxRGB_float);
+
+        hsv[2] = maxRGB_float;
+    }
+
+    static void hsvToRgb(float h, float s, float v, int[] rgb) {
+        int t = ((int) (h / 60)) % 6;
+        float f = h / 60 - t;
+        int l = (int) ((v * (1 - s)) * 255);
+        int m = (int) ((v * (1 - f * s)) * 255);
+        int n = (int) ((v * (1 - (1 - f) * s)) * 255);
+        int v_int = (int) (v * 255);
+        int[][] resultRGB = {{v_int, n, l},
+                {m, v_int, l},
+                {l, v_int, n},
+                {l, m, v_int},
+                {n, l, v_int},
+                {v_int, l, m}
+        };
+
+        System.arraycopy(resultRGB[t], 0, rgb, 0, rgb.length);
+    }
+
+    static void equalizer(Planar<GrayU8> input, char canal) {
+        int numBands = input.getNumBands();
+        if (numBands < 3) {
+            ImageModifier.glequalizer(input.getBand(0));
+            return;
+        }
+        numBands = Math.max(1, Math.min(numBands, 3));
+        int[] hist = new int[256];
+        float[] hsv = new float[3];
+        int[] rgb = new int[3];
+        for (int y = 0; y < input.getHeight(); y++) {
+            for (int x = 0; x < input.getWidth(); x++) {
+                for (int i = 0; i < numBands; i++) {
+                    rgb[i] = input.getBand(i).get(x, y);
+                }
+                rgbToHsv(rgb[0], rgb[1], rgb[2], hsv);
+                switch (canal) {
+                    case 'V':
+                        hist[Math.round(hsv[2] * 255)]++;
+                        break;
+                    case 'S':
+                        hist[Math.round(hsv[1] * 255)]++;
+                        break;
+                }
+            }
+        }
+        int[] cHist = ImageModifier.getCumulatedHist(hist);
+        float[] newValues = new float[256];
+
+        for (int i = 0; i < 256; i++) {
+            newValues[i] = (float) cHist[i] / input.totalPixels();
+            if (newValues[i] > 1) {
+                newValues[i] = 1;
+            } else if (newValues[i] < 0) {
+                newValues[i] = 0;
+            }
+        }
+
+        for (int y = 0; y < input.getHeight(); y++) {
+            for (int x = 0; x < input.getWidth(); x++) {
+                for (int i = 0; i < numBands; i++) {
+                    rgb[i] = input.getBand(i).get(x, y);
+                }
+                rgbToHsv(rgb[0], rgb[1], rgb[2], hsv);
+                switch (canal) {
+                    case 'V':
+                        hsv[2] = newValues[Math.round(hsv[2] * 255)];
+                        break;
+                    case 'S':
+                        hsv[1] = newValues[Math.round(hsv[1] * 255)];
+                        break;
+                }
+                hsvToRgb(hsv[0], hsv[1], hsv[2], rgb);
+                for (int i = 0; i < numBands; i++) {
+                    input.getBand(i).set(x, y, rgb[i]);
+                }
+            }
+        }
+    }
+
+    static void hueFilter(Planar<GrayU8> input, int hue) {
+        if (input.getNumBands() < 3) {
+            throw new ImageControllerException("The input picture must have at least 3 bands");
+        }
+        float[] hsv = new float[3], rgb = new float[3];
+        double radHue = Math.toRadians(hue);
+        for (int y = 0; y < input.getHeight(); y++) {
+            for (int x = 0; x < input.getWidth(); x++) {
+                ColorHsv.rgbToHsv(input.getBand(0).get(x, y), input.getBand(1).get(x, y), input.getBand(2).get(x, y), hsv);
+                hsv[0] = (float) radHue;
+                ColorHsv.hsvToRgb(hsv[0], hsv[1], hsv[2], rgb);
+                for (int i = 0; i < 3; i++) input.getBand(i).set(x, y, (int) rgb[i]);
+            }
+        }
+    }
+
+    static void toGray(Planar<GrayU8> input) {
+        double[] rgbToGray = {0.3f, 0.59f, 0.11f};
+        for (int y = 0; y < input.height; y++) {
+            for (int x = 0; x < input.width; x++) {
+                double value = 0;
+                for (int i = 0; i < 3; i++) {
+                    value += input.getBand(i).get(x, y) * rgbToGray[i];
+                }
+                for (int i = 0; i < 3; i++) {
+                    input.getBand(i).set(x, y, (int) value);
+                }
+            }
+        }
+    }
+
+    static void gradientImageSobel(Planar<GrayU8> input, Planar<GrayU8> output) {
+        toGray(input);
+        int numBands = input.getNumBands();
+        if (numBands == 4) {
+            for (int y = 0; y < input.height; y++) {
+                for (int x = 0; x < input.width; x++) {
+                    output.getBand(3).set(x, y, input.getBand(3).get(x, y));
+                }
+            }
+            numBands = 3;
+        }
+        int[][] h1 = {
+                {-1, 0, 1},
+                {-2, 0, 2},
+                {-1, 0, 1}
+        };
+        int[][] h2 = {
+                {-1, -2, -1},
+                {0, 0, 0},
+                {1, 2, 1}
+        };
+        for (int i = 0; i < numBands; i++) {
+            GrayU8 bandIn = input.getBand(i);
+            GrayU8 bandOut = output.getBand(i);
+            for (int y = 1; y < input.height - 1; y++) {
+                for (int x = 1; x < input.width - 1; x++) {
+                    int Gx = 0, Gy = 0;
+                    for (int v = 0; v < 3; v++) {
+                        for (int u = 0; u < 3; u++) {
+                            Gx += bandIn.get(x + u - 1, y + v - 1) * h2[v][u];
+                            Gy += bandIn.get(x + u - 1, y + v - 1) * h1[v][u];
+                        }
+                    }
+                    int newValue = Math.max(0, Math.min((int) Math.sqrt(Gx * Gx + Gy * Gy), 255));
+                    bandOut.set(x, y, newValue);
+                }
+            }
+        }
+    }
+
+    static void rainbow(Planar<GrayU8> input, char direction) {
+        int x_center = input.width / 2;
+        int y_center = input.height / 2;
+        double dist_max = Math.sqrt((input.width / 2) * (input.width / 2) + (input.height / 2) * (input.height / 2));
+        float[] hsv = new float[3], rgb = new float[3];
+        int hue;
+        for (int y = 0; y < input.height; y++) {
+            for (int x = 0; x < input.getWidth(); x++) {
+                ColorHsv.rgbToHsv(input.getBand(0).get(x, y), input.getBand(1).get(x, y), input.getBand(2).get(x, y), hsv);
+                switch (direction) {
+                    case 'H':
+                        hue = Math.max(0, 330 - (y / (input.height / 12) * 30));
+                        break;
+                    case 'V':
+                        hue = Math.max(0, 330 - (x / (input.width / 12) * 30));
+                        break;
+                    default:
+                        double dist_from_center = Math.sqrt((x_center - x) * (x_center - x) + (y_center - y) * (y_center - y));
+                        hue = Math.max(0, 330 - ((int) dist_from_center / ((int) dist_max / 12) * 30));
+                        break;
+                }
+                double radHue = Math.toRadians(hue);
+                hsv[0] = (float) radHue;
+                ColorHsv.hsvToRgb(hsv[0], hsv[1], hsv[2], rgb);
+                for (int i = 0; i < 3; i++) input.getBand(i).set(x, y, (int) rgb[i]);
+            }
+        }
+    }
+
+    static void hueSelector(Planar<GrayU8> input, int min, int max) {
+        if (input.getNumBands() < 3) {
+            throw new ImageControllerException("The input picture must have at least 3 bands");
+        }
+        float[] hsv = new float[3], rgb = new float[3];
+        for (int y = 0; y < input.getHeight(); y++) {
+            for (int x = 0; x < input.getWidth(); x++) {
+                ColorHsv.rgbToHsv(input.getBand(0).get(x, y), input.getBand(1).get(x, y), input.getBand(2).get(x, y), hsv);
+                double hue = Math.toDegrees(hsv[0]);
+                if (min > max) {
+                    if (min >= hue && hue >= max) hsv[1] = 0;
+                } else {
+                    if (!(max >= hue && hue >= min)) hsv[1] = 0;
+                }
+                ColorHsv.hsvToRgb(hsv[0], hsv[1], hsv[2], rgb);
+                for (int i = 0; i < 3; i++) input.getBand(i).set(x, y, (int) rgb[i]);
+            }
+        }
+    }
+
+    static void scaling(Planar<GrayU8> input, Planar<GrayU8> output, int newHeight, int newWidth) {
+        output.reshape(newWidth, newHeight);
+        int numBands = input.getNumBands();
+        float y_ratio = (float) input.height / newHeight;
+        float x_ratio = (float) input.width / newWidth;
+        for (int y = 0; y < newHeight; y++) {
+            for (int x = 0; x < newWidth; x++) {
+                int fetch_x = (int) Math.floor(x_ratio * x);
+                int fetch_y = (int) Math.floor(y_ratio * y);
+                for (int i = 0; i < numBands; i++) {
+                    output.getBand(i).set(x, y, input.getBand(i).get(fetch_x, fetch_y));
+                }
+            }
+        }
+    }
+
+    static void reverseHue(Planar<GrayU8> input) {
+        if (input.getNumBands() < 3) {
+            throw new ImageControllerException("The picture must have at least 3 bands");
+        }
+        float[] hsv = new float[3], rgb = new float[3];
+        for (int y = 0; y < input.getHeight(); y++) {
+            for (int x = 0; x < input.getWidth(); x++) {
+                ColorHsv.rgbToHsv(input.getBand(0).get(x, y), input.getBand(1).get(x, y), input.getBand(2).get(x, y), hsv);
+                hsv[0] = (float) ((hsv[0] + Math.PI) % (2 * Math.PI));
+                ColorHsv.hsvToRgb(hsv[0], hsv[1], hsv[2], rgb);
+                for (int i = 0; i < 3; i++) input.getBand(i).set(x, y, (int) rgb[i]);
+            }
+        }
+    }
+
+    static void negative(Planar<GrayU8> input) {
+        int numBands = Math.min(input.getNumBands(), 3);
+        for (int i = 0; i < numBands; i++) {
+            for (int y = 0; y < input.getHeight(); y++) {
+                for (int x = 0; x < input.getWidth(); x++) {
+                    input.getBand(i).set(x, y, 255 - input.getBand(i).get(x, y));
+                }
+            }
+        }
+    }
+
+    static void flip(Planar<GrayU8> input, char axis) {
+        int numBands = input.getNumBands();
+        int compute_height = input.getHeight();
+        int compute_width = input.getWidth();
+        if (axis == 'H') compute_height = input.getHeight() / 2;
+        else compute_width = input.getWidth() / 2;
+        for (int y = 0; y < compute_height; y++) {
+            for (int x = 0; x < compute_width; x++) {
+                int fetch_x = x, fetch_y = y;
+                if (axis == 'H') fetch_y = input.height - 1 - y;
+                else fetch_x = input.width - 1 - x;
+                for (int i = 0; i < numBands; i++) {
+                    int tmp = input.getBand(i).get(x, y);
+                    input.getBand(i).set(x, y, input.getBand(i).get(fetch_x, fetch_y));
+                    input.getBand(i).set(fetch_x, fetch_y, tmp);
+                }
+            }
+        }
+    }
+
+    static void rotate(Planar<GrayU8> input, Planar<GrayU8> output, int angle) {
+        int numBands = input.getNumBands();
+        double radiantAngle = Math.toRadians(angle);
+        for (int y = 0; y < input.height; y++) {
+            for (int x = 0; x < input.getWidth(); x++) {
+                int xp = (int) ((x - input.width / 2) * Math.cos(radiantAngle) - (y - input.height / 2) * Math.sin(radiantAngle) + input.width / 2);
+                int yp = (int) ((x - input.width / 2) * Math.sin(radiantAngle) + (y - input.height / 2) * Math.cos(radiantAngle) + input.height / 2);
+                if (0 <= xp && xp < input.width && 0 <= yp && yp < input.height)
+                    for (int i = 0; i < numBands; i++) output.getBand(i).set(x, y, input.getBand(i).get(xp, yp));
+            }
+        }
+    }
+
+    static void wave(Planar<GrayU8> input, Planar<GrayU8> output, char waveAxis, int waveOffset, char waveType, int amplitude, int waveLength) {
+        int numBands = input.getNumBands();
+        int modified_axis = (waveAxis == 'V') ? 0 : 1;
+        double half_length = ((double) waveLength / 2);
+        double border_offset;
+        int[] oldXY = new int[2];
+        int[] newXY = new int[2];
+        for (oldXY[1] = 0; oldXY[1] < input.height; oldXY[1]++) {
+            for (oldXY[0] = 0; oldXY[0] < input.getWidth(); oldXY[0]++) {
+                newXY[0] = oldXY[0];
+                newXY[1] = oldXY[1];
+                switch (waveType) {
+                    case 'C':
+                        double radiantAngle = ((oldXY[1 - modified_axis] + waveOffset) * Math.PI / half_length);
+                        border_offset = Math.sin(radiantAngle);
+                        break;
+                    case 'R':
+                        radiantAngle = ((oldXY[1 - modified_axis] + waveOffset) * Math.PI / half_length);
+                        border_offset = Math.sin(radiantAngle);
+                        border_offset = (border_offset > 0) ? 1 : -1;
+                        break;
+                    default:
+                        border_offset = -((2. / half_length * (oldXY[1 - modified_axis] + waveOffset - half_length * Math.floor(((double) (oldXY[1 - modified_axis] + waveOffset) / half_length + 1. / 2))) * Math.pow(-1, Math.floor((oldXY[1 - modified_axis] + waveOffset) / half_length - 1. / 2))));
+                        break;
+                }
+                newXY[modified_axis] = (int) (oldXY[modified_axis] + border_offset * amplitude);
+                if (0 <= newXY[0] && newXY[0] < input.width && 0 <= newXY[1] && newXY[1] < input.height)
+                    for (int i = 0; i < numBands; i++)
+                        output.getBand(i).set(newXY[0], newXY[1], input.getBand(i).get(oldXY[0], oldXY[1]));
+            }
+        }
+    }
+
+    static void sphere(Planar<GrayU8> input, Planar<GrayU8> output, char sphereType) {
+        int numBands = input.getNumBands();
+        int x_center = input.width / 2;
+        int y_center = input.height / 2;
+        int x_size = (sphereType == 'S') ? Math.min(x_center, y_center) : x_center;
+        int y_size = (sphereType == 'S') ? Math.min(x_center, y_center) : y_center;
+        for (int y = 0; y < input.height; y++) {
+            for (int x = 0; x < input.getWidth(); x++) {
+                int xp = (int) (((double) (x - x_center) / x_center) * Math.sqrt(1 - ((double) (y - y_center) / y_center) * ((double) (y - y_center) / y_center) / 2) * x_size + x_center);
+                int yp = (int) (((double) (y - y_center) / y_center) * Math.sqrt(1 - ((double) (x - x_center) / x_center) * ((double) (x - x_center) / x_center) / 2) * y_size + y_center);
+                if (0 <= xp && xp < input.width && 0 <= yp && yp < input.height) {
+                    for (int i = 0; i < numBands; i++) output.getBand(i).set(xp, yp, input.getBand(i).get(x, y));
+                }
+            }
+        }
+    }
+
+    static void sepia(Planar<GrayU8> input) {
+        if (input.getNumBands() < 3) return;
+        double[][] coef = {{0.393, 0.769, 0.189}, {0.349, 0.686, 0.168}, {0.272, 0.534, 0.131}};
+        int[] oldRGB = new int[3];
+        double[] newRGB = new double[3];
+        for (int y = 0; y < input.getHeight(); y++) {
+            for (int x = 0; x < input.getWidth(); x++) {
+                for (int i = 0; i < 3; i++) {
+                    oldRGB[i] = input.getBand(i).get(x, y);
+                    newRGB[i] = 0;
+                }
+                for (int i = 0; i < 3; i++) {
+                    for (int j = 0; j < 3; j++) {
+                        newRGB[i] += coef[i][j] * oldRGB[j];
+                    }
+                    newRGB[i] = Math.min(newRGB[i], 255);
+                    input.getBand(i).set(x, y, (int) newRGB[i]);
+                }
+            }
+        }
+    }
+
+    static void mozaic(Planar<GrayU8> input, Planar<GrayU8> output) {
+        int WidthHalf = input.getWidth() / 2 + ((input.getWidth() % 2 == 1) ? 1 : 0);
+        int HeightHalf = input.getHeight() / 2 + ((input.getHeight() % 2 == 1) ? 1 : 0);
+        int newx, newy;
+        for (int y = 0; y < input.height; y++) {
+            for (int x = 0; x < input.getWidth(); x++) {
+                for (int i = 0; i < input.getNumBands(); i++) {
+                    int num = x / 2 + WidthHalf * (y / 2);
+                    newx = num % WidthHalf + ((x % 2 == 1) ? WidthHalf : 0);
+                    newy = num / WidthHalf + ((y % 2 == 1) ? HeightHalf : 0);
+                    output.getBand(i).set(newx, newy, input.getBand(i).get(x, y));
+                }
+            }
+        }
+    }
+
+    static void twist(Planar<GrayU8> input, Planar<GrayU8> output, int maxAngle) {
+        int numBands = input.getNumBands();
+        int x_center = input.width / 2;
+        int y_center = input.height / 2;
+        double dist_max = Math.sqrt((x_center) * (x_center) + (y_center) * (y_center));
+        for (int y = 0; y < input.height; y++) {
+            for (int x = 0; x < input.getWidth(); x++) {
+                double dist_from_center = Math.sqrt((x_center - x) * (x_center - x) + (y_center - y) * (y_center - y));
+                double variation_function = -(double) maxAngle / dist_max * dist_from_center + maxAngle;
+                double radiantAngle = Math.toRadians(variation_function);
+                int xp = (int) ((x - x_center) * Math.cos(radiantAngle) - (y - y_center) * Math.sin(radiantAngle) + x_center);
+                int yp = (int) ((x - x_center) * Math.sin(radiantAngle) + (y - y_center) * Math.cos(radiantAngle) + y_center);
+                if (0 <= xp && xp < input.width && 0 <= yp && yp < input.height)
+                    for (int i = 0; i < numBands; i++) output.getBand(i).set(x, y, input.getBand(i).get(xp, yp));
+            }
+        }
+    }
+
+    private static int gaussFunction2D(int x, int y, int amplitude, int xCenter, int yCenter, float xSpread, float ySpread) {
+        return (int) Math.round(amplitude * Math.exp(-(((x - xCenter) * (x - xCenter) / (2 * xSpread * xSpread) + ((y - yCenter) * (y - yCenter)) / (2 * ySpread * ySpread)))));
+    }
+
+    static void halftoning(Planar<GrayU8> input, int amplitude, float spread, int size) {
+        toGray(input);
+        int[][] gaussKernel = new int[size][size];
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++)
+                gaussKernel[y][x] = gaussFunction2D(x, y, amplitude, size / 2, size / 2, spread, spread);
+
+        for (int i = 0; i < 3; i++) {
+            for (int y = 0; y < input.getHeight(); y += size) {
+                for (int x = 0; x < input.getWidth(); x += size) {
+                    for (int yShift = 0; yShift < size; yShift++) {
+                        for (int xShift = 0; xShift < size; xShift++) {
+                            if (0 <= x + xShift && x + xShift < input.width && 0 <= y + yShift && y + yShift < input.height) {
+                                if (gaussKernel[yShift][xShift] < input.getBand(i).get(x + xShift, y + yShift)) {
+                                    input.getBand(i).set(x + xShift, y + yShift, 255);
+                                } else {
+                                    input.getBand(i).set(x + xShift, y + yShift, 0);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package pdl.backend;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RenditionStoreTests {
+
+    private static byte[] png(int width, int height) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR), "png", baos);
+        return baos.toByteArray();
+    }
+
+    // Records the size of each source and rendition, and encodes a blank image of the rendition size
+    private static RenditionStore.Renderer recorder(List<String> calls) {
+        return (is, mediaType, width, height) -> {
+            BufferedImage source = ImageIO.read(is);
+            calls.add(source.getWidth() + "x" + source.getHeight() + ">" + width + "x" + height);
+            return png(width, height);
+        };
+    }
+
+    @Test
+    public void renditionsShouldBeScaledDownFromTheNextLargerOne() throws IOException {
+        RenditionStore store = new RenditionStore(new int[]{128, 2048, 512}, 1 << 24, 0);
+        Image image = new Image("wide.png", png(1600, 900), MediaType.IMAGE_PNG);
+        List<String> calls = new ArrayList<>();
+        byte[] bytes = store.get(image, 128, recorder(calls));
+
+        // No 2048 rendition for an image already smaller, and the aspect ratio is kept
+        Assertions.assertEquals(List.of("1600x900>512x288", "512x288>128x72"), calls);
+        BufferedImage rendition = ImageIO.read(new ByteArrayInputStream(bytes));
+        Assertions.assertEquals(128, rendition.getWidth());
+        Assertions.assertEquals(72, rendition.getHeight());
+        Assertions.assertNull(store.get(image, 2048, recorder(calls)));
+
+        // Served from the store afterwards
+        Assertions.assertNotNull(store.get(image, 512, recorder(calls)));
+        Assertions.assertEquals(2, calls.size());
+        Assertions.assertEquals(2, store.size());
+    }
+
+    @Test
+    public void invalidateShouldDropTheRenditionsOfTheImage() throws IOException {
+        RenditionStore store = new RenditionStore(new int[]{128, 512}, 1 << 24, 0);
+        Image first = new Image("first.png", png(600, 600), MediaType.IMAGE_PNG);
+        Image second = new Image("second.png", png(600, 600), MediaType.IMAGE_PNG);
+        List<String> calls = new ArrayList<>();
+        store.get(first, 128, recorder(calls));
+        store.get(second, 128, recorder(calls));
+        Assertions.assertEquals(4, store.size());
+
+        store.invalidate(first.getId());
+        Assertions.assertEquals(2, store.size());
+        store.get(first, 512, recorder(calls));
+        Assertions.assertEquals(6, calls.size());
+    }
+
+    @Test
+    public void storeShouldNotRetainMoreThanItsBudget() throws IOException {
+        byte[] small = png(128, 128);
+        RenditionStore store = new RenditionStore(new int[]{128}, small.length, 0);
+        List<String> calls = new ArrayList<>();
+        Image first = new Image("first.png", png(600, 600), MediaType.IMAGE_PNG);
+        Image second = new Image("second.png", png(600, 600), MediaType.IMAGE_PNG);
+        store.get(first, 128, recorder(calls));
+        store.get(second, 128, recorder(calls));
+        Assertions.assertEquals(1, store.size());
+        Assertions.assertTrue(store.getCurrentBytes() <= small.length);
+    }
+}
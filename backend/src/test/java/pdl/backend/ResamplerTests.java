@@ -0,0 +1,142 @@
+package pdl.backend;
+
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+public class ResamplerTests {
+
+    private static final int[][] SIZES = {{1, 1}, {7, 3}, {31, 20}, {64, 48}, {100, 130}, {233, 17}};
+
+    private static Planar<GrayU8> randomImage(int width, int height, int numBands, long seed) {
+        Planar<GrayU8> image = new Planar<>(GrayU8.class, width, height, numBands);
+        Random random = new Random(seed);
+        for (int i = 0; i < numBands; i++) {
+            random.nextBytes(image.getBand(i).data);
+        }
+        return image;
+    }
+
+    private static void assertClose(Planar<GrayU8> expected, Planar<GrayU8> actual, int tolerance) {
+        Assertions.assertEquals(expected.width, actual.width);
+        Assertions.assertEquals(expected.height, actual.height);
+        for (int i = 0; i < expected.getNumBands(); i++) {
+            for (int y = 0; y < expected.height; y++) {
+                for (int x = 0; x < expected.width; x++) {
+                    int difference = expected.getBand(i).get(x, y) - actual.getBand(i).get(x, y);
+                    if (Math.abs(difference) > tolerance)
+                        Assertions.fail("band " + i + " at (" + x + "," + y + "): " + expected.getBand(i).get(x, y) + " and " + actual.getBand(i).get(x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void scaleShouldGiveTheRequestedWidthAndHeight() {
+        Planar<GrayU8> input = randomImage(64, 48, 3, 1);
+        for (String filter : new String[]{"nearest", "box", "bilinear", "bicubic", "lanczos3"}) {
+            Planar<GrayU8> output = input.createSameShape();
+            Map<String, String> params = Map.of("algorithm", "scale", "width", "150", "height", "20", "filter", filter);
+            Assertions.assertTrue(ImageModifier.treatInput(input, output, params));
+            Assertions.assertEquals(150, output.width, filter);
+            Assertions.assertEquals(20, output.height, filter);
+        }
+    }
+
+    @Test
+    public void plainImageShouldStayPlain() {
+        for (Resampler.Filter filter : Resampler.Filter.values()) {
+            for (int[] from : SIZES) {
+                Planar<GrayU8> input = new Planar<>(GrayU8.class, from[0], from[1], 2);
+                Arrays.fill(input.getBand(0).data, (byte) 200);
+                Arrays.fill(input.getBand(1).data, (byte) 3);
+                for (int[] to : SIZES) {
+                    Planar<GrayU8> output = new Planar<>(GrayU8.class, 1, 1, 2);
+                    Resampler.resample(input, output, to[0], to[1], filter);
+                    Planar<GrayU8> expected = new Planar<>(GrayU8.class, to[0], to[1], 2);
+                    Arrays.fill(expected.getBand(0).data, (byte) 200);
+                    Arrays.fill(expected.getBand(1).data, (byte) 3);
+                    assertClose(expected, output, 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sameSizeShouldKeepTheImage() {
+        Planar<GrayU8> input = randomImage(31, 20, 3, 2);
+        for (Resampler.Filter filter : Resampler.Filter.values()) {
+            Planar<GrayU8> output = input.createSameShape();
+            Resampler.resample(input, output, input.width, input.height, filter);
+            assertClose(input, output, 0);
+        }
+    }
+
+    @Test
+    public void boxShouldAverageBlocks() {
+        Planar<GrayU8> input = randomImage(96, 64, 3, 3);
+        // By 2 with the filter only, by 8 with an averaging of 4x4 blocks first
+        for (int factor : new int[]{2, 8}) {
+            Planar<GrayU8> expected = new Planar<>(GrayU8.class, input.width / factor, input.height / factor, 3);
+            for (int i = 0; i < 3; i++) {
+                for (int y = 0; y < expected.height; y++) {
+                    for (int x = 0; x < expected.width; x++) {
+                        int sum = 0;
+                        for (int v = 0; v < factor; v++)
+                            for (int u = 0; u < factor; u++)
+                                sum += input.getBand(i).get(x * factor + u, y * factor + v);
+                        expected.getBand(i).set(x, y, (int) Math.round((double) sum / (factor * factor)));
+                    }
+                }
+            }
+            Planar<GrayU8> output = input.createSameShape();
+            Resampler.resample(input, output, expected.width, expected.height, Resampler.Filter.BOX);
+            // The rows are rounded before the columns are averaged, and so are the averaged blocks
+            assertClose(expected, output, (factor == 2) ? 1 : 2);
+        }
+    }
+
+    @Test
+    public void reductionShouldStayCloseToTheFilterAlone() {
+        // A smooth image, where averaging blocks first barely changes the result
+        Planar<GrayU8> input = new Planar<>(GrayU8.class, 400, 300, 1);
+        for (int y = 0; y < input.height; y++)
+            for (int x = 0; x < input.width; x++)
+                input.getBand(0).set(x, y, (int) (127.5 + 127.5 * Math.sin(x / 40.0) * Math.cos(y / 30.0)));
+        for (Resampler.Filter filter : new Resampler.Filter[]{Resampler.Filter.BILINEAR, Resampler.Filter.BICUBIC, Resampler.Filter.LANCZOS3}) {
+            Planar<GrayU8> reduced = input.createSameShape();
+            Resampler.resample(input, reduced, 45, 35, filter);
+            Planar<GrayU8> twice = input.createSameShape();
+            Resampler.resample(input, twice, 90, 70, filter);
+            Planar<GrayU8> direct = input.createSameShape();
+            Resampler.resample(twice, direct, 45, 35, filter);
+            assertClose(direct, reduced, 3);
+        }
+    }
+
+    @Test
+    public void tiledResamplingShouldMatchSingleBand() {
+        Planar<GrayU8> input = randomImage(900, 700, 3, 4);
+        for (Resampler.Filter filter : Resampler.Filter.values()) {
+            for (int[] to : new int[][]{{100, 77}, {1200, 500}}) {
+                Planar<GrayU8> expected = input.createSameShape();
+                TileExecutor.withMaxParallelism(1, () -> Resampler.resample(input, expected, to[0], to[1], filter));
+                Planar<GrayU8> actual = input.createSameShape();
+                TileExecutor.withMaxParallelism(4, () -> Resampler.resample(input, actual, to[0], to[1], filter));
+                assertClose(expected, actual, 0);
+            }
+        }
+    }
+
+    @Test
+    public void scaleShouldRejectUnknownFilter() {
+        Planar<GrayU8> input = randomImage(8, 8, 3, 0);
+        Map<String, String> params = Map.of("algorithm", "scale", "width", "4", "height", "4", "filter", "gauss");
+        Assertions.assertThrows(ImageControllerException.class, () -> ImageModifier.treatInput(input, input.createSameShape(), params));
+    }
+}
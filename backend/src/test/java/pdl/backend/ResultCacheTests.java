@@ -0,0 +1,133 @@
+package pdl.backend;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ResultCacheTests {
+
+    private static final int REQUESTS = 8;
+
+    // Run REQUESTS identical requests, the computation only ends once all the others wait for it
+    private static List<Future<byte[]>> concurrentRequests(ResultCache cache, ResultCache.Computation computation, CountDownLatch release) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(REQUESTS);
+        List<Future<byte[]>> results = new ArrayList<>();
+        for (int i = 0; i < REQUESTS; i++) {
+            results.add(executor.submit(() -> cache.getOrCompute(new ResultCache.Key(3, Map.of("algorithm", "sepia")), computation)));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (cache.getWaitingRequests() < REQUESTS - 1 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        release.countDown();
+        executor.shutdown();
+        return results;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void countersShouldTrackHitsMissesAndEvictions() {
+        ResultCache cache = new ResultCache(8);
+        ResultCache.Key sepia = new ResultCache.Key(3, Map.of("algorithm", "sepia"));
+        ResultCache.Key negative = new ResultCache.Key(3, Map.of("algorithm", "negative"));
+        Assertions.assertNull(cache.get(sepia));
+        cache.put(sepia, new byte[6]);
+        Assertions.assertNotNull(cache.get(sepia));
+        // Does not fit next to the first one
+        cache.put(negative, new byte[4]);
+        Assertions.assertNull(cache.get(sepia));
+        Assertions.assertEquals(1, cache.getHits());
+        Assertions.assertEquals(2, cache.getMisses());
+        Assertions.assertEquals(1, cache.getEvictions());
+        Assertions.assertEquals(4, cache.getCurrentBytes());
+    }
+
+    @Test
+    public void identicalRequestsShouldShareOneComputation() throws Exception {
+        ResultCache cache = new ResultCache(1 << 20);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger computations = new AtomicInteger();
+        List<Future<byte[]>> results = concurrentRequests(cache, () -> {
+            computations.incrementAndGet();
+            awaitUninterruptibly(release);
+            return new byte[]{1, 2, 3};
+        }, release);
+        byte[] first = results.get(0).get();
+        for (Future<byte[]> result : results) Assertions.assertSame(first, result.get());
+        Assertions.assertEquals(1, computations.get());
+        Assertions.assertEquals(REQUESTS - 1, cache.getSharedComputations());
+
+        // Later requests are served from the cache
+        Assertions.assertSame(first, cache.getOrCompute(new ResultCache.Key(3, Map.of("algorithm", "sepia")), () -> new byte[0]));
+    }
+
+    @Test
+    public void resultLargerThanAnEntryShouldBeSharedWithoutBeingCached() throws Exception {
+        ResultCache cache = new ResultCache(1 << 20, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger computations = new AtomicInteger();
+        List<Future<byte[]>> results = concurrentRequests(cache, () -> {
+            computations.incrementAndGet();
+            awaitUninterruptibly(release);
+            return new byte[]{1, 2, 3};
+        }, release);
+        for (Future<byte[]> result : results) Assertions.assertArrayEquals(new byte[]{1, 2, 3}, result.get());
+        Assertions.assertEquals(1, computations.get());
+        Assertions.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void resultNotKeptByTheLeaderShouldBeComputedAgain() throws Exception {
+        ResultCache cache = new ResultCache(1 << 20, 4);
+        ResultCache.Key key = new ResultCache.Key(3, Map.of("algorithm", "sepia"));
+        ResultCache.Flight leader = cache.join(key);
+        Assertions.assertTrue(leader.isLeader());
+        ResultCache.Flight follower = cache.join(key);
+        Assertions.assertFalse(follower.isLeader());
+        Assertions.assertTrue(leader.hasFollowers());
+
+        // Streamed by the leader, too large to be kept
+        leader.complete(null);
+        Assertions.assertNull(follower.await());
+        // The follower computes it again, nothing was avoided
+        Assertions.assertEquals(0, cache.getSharedComputations());
+        Assertions.assertEquals(0, cache.getWaitingRequests());
+        Assertions.assertArrayEquals(new byte[]{5}, cache.getOrCompute(key, () -> new byte[]{5}));
+
+        // Larger than an entry, not cached either
+        cache.put(key, new byte[5]);
+        Assertions.assertArrayEquals(new byte[]{5}, cache.get(key));
+        Assertions.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void failedComputationShouldFailEveryWaitingRequest() throws Exception {
+        ResultCache cache = new ResultCache(1 << 20);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<byte[]>> results = concurrentRequests(cache, () -> {
+            awaitUninterruptibly(release);
+            throw new IOException("Could not convert image");
+        }, release);
+        for (Future<byte[]> result : results) {
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class, result::get);
+            Assertions.assertTrue(e.getCause() instanceof IOException);
+        }
+        // Nothing is kept, the next request computes again
+        Assertions.assertArrayEquals(new byte[]{4}, cache.getOrCompute(new ResultCache.Key(3, Map.of("algorithm", "sepia")), () -> new byte[]{4}));
+    }
+}
@@ -0,0 +1,81 @@
+package pdl.backend;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+// Every result is larger than an entry of the cache, so none of them is cached
+@SpringBootTest(properties = {"images.store=memory", "images.cache.max-entry-bytes=1024", "images.admission.wait-ms=60000"})
+@AutoConfigureMockMvc
+@AutoConfigureMetrics
+public class ResultSharingTests {
+
+    private static final int REQUESTS = 8;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private Dao<Image> imageDao;
+
+    @Autowired
+    private ResultCache resultCache;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private long computations() {
+        Timer timer = meterRegistry.find("images.algorithm").tag("algorithm", "negative").timer();
+        return (timer != null) ? timer.count() : 0;
+    }
+
+    @Test
+    public void identicalRequestsOverTheEntrySizeShouldShareOneComputation() throws Exception {
+        Image image = imageDao.retrieveAll().stream()
+                .filter(img -> !img.mediaType.equals(MediaType.IMAGE_GIF))
+                .findFirst().orElseThrow();
+        long computationsBefore = computations();
+        long sharedBefore = resultCache.getSharedComputations();
+        ExecutorService executor = Executors.newFixedThreadPool(REQUESTS);
+        List<Future<byte[]>> results = new ArrayList<>();
+        // The leader waits for the budget until every other request waits for it
+        try (AdmissionControl.Ticket ignored = admissionControl.admit(admissionControl.getTotalBytes(), 0)) {
+            for (int i = 0; i < REQUESTS; i++) {
+                results.add(executor.submit(() -> this.mockMvc.perform(get("/images/" + image.getId())
+                                .param("algorithm", "negative"))
+                        .andExpect(status().isOk())
+                        .andReturn().getResponse().getContentAsByteArray()));
+            }
+            long deadline = System.currentTimeMillis() + 30000;
+            while (resultCache.getWaitingRequests() < REQUESTS - 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+        executor.shutdown();
+        byte[] first = results.get(0).get();
+        Assertions.assertTrue(first.length > resultCache.getMaxEntryBytes());
+        for (Future<byte[]> result : results) Assertions.assertArrayEquals(first, result.get());
+        Assertions.assertEquals(1, computations() - computationsBefore);
+        Assertions.assertEquals(REQUESTS - 1, resultCache.getSharedComputations() - sharedBefore);
+        Assertions.assertEquals(0, resultCache.size());
+    }
+}
@@ -0,0 +1,100 @@
+package pdl.backend;
+
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class TileExecutorTests {
+
+    private static Planar<GrayU8> randomImage(int width, int height, int numBands, long seed) {
+        Planar<GrayU8> image = new Planar<>(GrayU8.class, width, height, numBands);
+        Random random = new Random(seed);
+        for (int i = 0; i < numBands; i++) {
+            random.nextBytes(image.getBand(i).data);
+        }
+        return image;
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : query.split("&")) {
+            String[] keyValue = pair.split("=", 2);
+            params.put(keyValue[0], keyValue[1]);
+        }
+        return params;
+    }
+
+    @Test
+    public void bandsShouldCoverEveryRowOnce() {
+        for (int height : new int[]{2, 97, 997, 1009}) {
+            for (int parallelism : new int[]{1, 3, 7, 8}) {
+                AtomicIntegerArray visits = new AtomicIntegerArray(height);
+                AtomicInteger bands = new AtomicInteger();
+                TileExecutor.withMaxParallelism(parallelism, () -> TileExecutor.forEachBand(1000, height, TileExecutor.Tiling.ROW_LOCAL, (y0, y1) -> {
+                    bands.incrementAndGet();
+                    for (int y = y0; y < y1; y++) visits.incrementAndGet(y);
+                }));
+                Assertions.assertTrue(bands.get() <= parallelism);
+                for (int y = 0; y < height; y++) Assertions.assertEquals(1, visits.get(y), "row " + y + " of " + height);
+            }
+        }
+    }
+
+    @Test
+    public void tiledAlgorithmsShouldMatchSequentialOnes() {
+        // 997 rows are split into 7 uneven bands
+        String[] queries = {
+                "algorithm=negative",
+                "algorithm=blur&type=M&size=9",
+                "algorithm=blur&type=G&size=4",
+                "algorithm=gradientImageSobel",
+                "algorithm=equalize&canal=S",
+                "algorithm=rotate&angle=33&interpolation=bilinear",
+                "algorithm=scale&width=611&height=503&filter=bicubic",
+                "algorithm=wave&waveAxis=H&waveOffset=3&waveType=C&amplitude=10&waveLength=40"
+        };
+        Planar<GrayU8> source = randomImage(1000, 997, 3, 21);
+        for (String query : queries) {
+            Map<String, String> params = parseQuery(query);
+            List<Planar<GrayU8>> results = new ArrayList<>();
+            for (int parallelism : new int[]{1, 7}) {
+                Planar<GrayU8> input = source.clone();
+                Planar<GrayU8> output = source.createSameShape();
+                boolean toOutput = TileExecutor.withMaxParallelism(parallelism, () -> ImageModifier.treatInput(input, output, params));
+                results.add(toOutput ? output : input);
+            }
+            Planar<GrayU8> sequential = results.get(0), tiled = results.get(1);
+            Assertions.assertEquals(sequential.width, tiled.width, query);
+            Assertions.assertEquals(sequential.height, tiled.height, query);
+            for (int i = 0; i < sequential.getNumBands(); i++) {
+                for (int y = 0; y < sequential.height; y++) {
+                    for (int x = 0; x < sequential.width; x++) {
+                        if (sequential.getBand(i).get(x, y) != tiled.getBand(i).get(x, y))
+                            Assertions.fail(query + ": band " + i + " differs at " + x + "," + y);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void limitShouldOnlyApplyToTheCallingThread() throws Exception {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int inner = TileExecutor.withMaxParallelism(3, () -> {
+            Assertions.assertEquals(processors, CompletableFuture.supplyAsync(TileExecutor::getMaxParallelism).get());
+            return TileExecutor.withMaxParallelism(5, TileExecutor::getMaxParallelism) * 10 + TileExecutor.getMaxParallelism();
+        });
+        Assertions.assertEquals(53, inner);
+        Assertions.assertEquals(processors, TileExecutor.getMaxParallelism());
+    }
+}
@@ -0,0 +1,36 @@
+package pdl.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.lang.module.ModuleFinder;
+
+/**
+ * Entry point of benchmarks.jar: accepts the usual JMH command line options, but writes the results
+ * as JSON into jmh-result.json unless -rf / -rff say otherwise, so that runs can be compared between commits.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws IOException, CommandLineOptionException, RunnerException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+                || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (!commandLine.getResultFormat().hasValue()) options.resultFormat(ResultFormatType.JSON);
+        if (!commandLine.getResult().hasValue()) options.result("jmh-result.json");
+        // Lets the backend use its SIMD kernels, -jvmArgsPrepend -Dimages.simd=false measures the scalar ones
+        if (!commandLine.getJvmArgsPrepend().hasValue() && ModuleFinder.ofSystem().find("jdk.incubator.vector").isPresent()) {
+            options.jvmArgsPrepend("--add-modules=jdk.incubator.vector");
+        }
+        new Runner(options.build()).run();
+    }
+}
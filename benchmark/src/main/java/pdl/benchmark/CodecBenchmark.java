@@ -0,0 +1,77 @@
+package pdl.benchmark;
+
+import boofcv.io.image.ConvertBufferedImage;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import com.madgag.gif.fmsware.AnimatedGifEncoder;
+import com.madgag.gif.fmsware.GifDecoder;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode and encode cost of the formats handled by ImageController.executeProgram,
+ * including the conversion between BufferedImage and Planar done for every request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+public class CodecBenchmark {
+
+    @Param({"jpeg", "png", "gif"})
+    public String format;
+
+    @Param({"0.3", "2", "12", "48"})
+    public double megapixels;
+
+    private Planar<GrayU8> planar;
+    private BufferedImage image;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // The alpha band is only kept by PNG, JPEG and GIF are benchmarked on RGB images like the ones they store
+        planar = SyntheticImages.create(megapixels, format.equals("png") ? 4 : 3);
+        image = new BufferedImage(planar.width, planar.height, format.equals("png") ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_3BYTE_BGR);
+        ConvertBufferedImage.convertTo(planar, image, true);
+        encoded = encode();
+    }
+
+    @Benchmark
+    public Planar<GrayU8> decode() throws IOException {
+        BufferedImage decoded;
+        if (format.equals("gif")) {
+            GifDecoder gif = new GifDecoder();
+            gif.read(new ByteArrayInputStream(encoded));
+            decoded = gif.getFrame(0);
+        } else {
+            decoded = ImageIO.read(new ByteArrayInputStream(encoded));
+        }
+        return ConvertBufferedImage.convertFromPlanar(decoded, null, true, GrayU8.class);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+        ConvertBufferedImage.convertTo(planar, converted, true);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        if (format.equals("gif")) {
+            AnimatedGifEncoder gif = new AnimatedGifEncoder();
+            gif.setRepeat(0);
+            gif.start(baos);
+            gif.addFrame(converted);
+            gif.finish();
+        } else {
+            ImageIO.write(converted, format, baos);
+        }
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,33 @@
+package pdl.benchmark;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Time of the algorithms which need at least 3 bands, such as the ones working on the hue.
+ */
+public class ColorImageModifierBenchmark extends TreatInputBenchmark {
+
+    // Same query strings as the ones sent to GET /images/{id}
+    @Param({
+            "algorithm=hueFilter&hue=120",
+            "algorithm=gradientImageSobel",
+            "algorithm=rainbow&direction=C",
+            "algorithm=hueSelector&min=30&max=200",
+            "algorithm=reverseHue",
+            "algorithm=halftoning&spread=3&dotSize=6"
+    })
+    public String request;
+
+    @Param({"0.3", "2", "12", "48"})
+    public double megapixels;
+
+    @Param({"3", "4"})
+    public int bands;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        setUp(request, megapixels, bands);
+    }
+}
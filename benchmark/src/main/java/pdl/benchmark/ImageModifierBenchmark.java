@@ -0,0 +1,44 @@
+package pdl.benchmark;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Time of the algorithms which accept images of any number of bands.
+ * The ones needing colors are measured by ColorImageModifierBenchmark.
+ */
+public class ImageModifierBenchmark extends TreatInputBenchmark {
+
+    // Same query strings as the ones sent to GET /images/{id}
+    @Param({
+            "algorithm=addLuminosityRGB&gain=40",
+            "algorithm=equalize&canal=V",
+            "algorithm=blur&type=M&size=5",
+            "algorithm=blur&type=G&size=5",
+            "algorithm=scale&width=640&height=480",
+            "algorithm=scale&width=1155&height=866&filter=bicubic",
+            "algorithm=scale&width=1155&height=866&filter=lanczos3",
+            "algorithm=negative",
+            "algorithm=flip&axis=H",
+            "algorithm=rotate&angle=33",
+            "algorithm=rotate&angle=33&interpolation=bicubic&expand=true",
+            "algorithm=wave&waveAxis=V&waveOffset=0&waveType=C&amplitude=10&waveLength=40",
+            "algorithm=sphere&sphere_type=S",
+            "algorithm=sepia",
+            "algorithm=mozaic",
+            "algorithm=twist&maxAngle=90"
+    })
+    public String request;
+
+    @Param({"0.3", "2", "12", "48"})
+    public double megapixels;
+
+    @Param({"1", "3", "4"})
+    public int bands;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        setUp(request, megapixels, bands);
+    }
+}
@@ -0,0 +1,40 @@
+package pdl.benchmark;
+
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+
+import java.util.Random;
+
+/**
+ * Deterministic images used as benchmark inputs: smooth gradients with some noise, so that codecs
+ * and histogram based algorithms see something closer to a photo than pure noise.
+ */
+final class SyntheticImages {
+
+    private SyntheticImages() {
+    }
+
+    /**
+     * Create a 4:3 image of about the given number of megapixels.
+     *
+     * @param megapixels Number of pixels in millions
+     * @param numBands   Number of bands (1 gray, 3 RGB, 4 RGBA)
+     * @return the image
+     */
+    static Planar<GrayU8> create(double megapixels, int numBands) {
+        int width = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+        int height = (int) Math.round(width * 3.0 / 4);
+        Planar<GrayU8> image = new Planar<>(GrayU8.class, width, height, numBands);
+        Random random = new Random(42);
+        for (int i = 0; i < numBands; i++) {
+            GrayU8 band = image.getBand(i);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int value = (i == 3) ? 255 : (x * (i + 1) + y * (3 - i % 3)) * 255 / (width + height) + random.nextInt(24);
+                    band.set(x, y, Math.min(value, 255));
+                }
+            }
+        }
+        return image;
+    }
+}
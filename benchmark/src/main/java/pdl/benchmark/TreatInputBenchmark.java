@@ -0,0 +1,59 @@
+package pdl.benchmark;
+
+import boofcv.alg.misc.GImageMiscOps;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import org.openjdk.jmh.annotations.*;
+import pdl.backend.ImageModifier;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of an algorithm dispatched by ImageModifier.treatInput, on an already decoded image.
+ * Each invocation starts from a fresh copy of the input, as the in-place algorithms modify it.
+ * The subclasses give the requests and the sizes, every combination of their parameters being supported.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+public abstract class TreatInputBenchmark {
+
+    private Map<String, String> params;
+    private Planar<GrayU8> source;
+    private Planar<GrayU8> input;
+    private Planar<GrayU8> output;
+
+    static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : query.split("&")) {
+            String[] keyValue = pair.split("=", 2);
+            params.put(keyValue[0], keyValue[1]);
+        }
+        return params;
+    }
+
+    // Called by the trial setup of the subclasses, with the values of their parameters
+    protected void setUp(String request, double megapixels, int bands) {
+        params = parseQuery(request);
+        source = SyntheticImages.create(megapixels, bands);
+        input = source.createSameShape();
+        output = source.createSameShape();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        input.setTo(source);
+        output.reshape(source.width, source.height);
+        GImageMiscOps.fill(output, 0);
+    }
+
+    @Benchmark
+    public Planar<GrayU8> treatInput() {
+        return ImageModifier.treatInput(input, output, params) ? output : input;
+    }
+}
@@ -22,6 +22,9 @@ function handleError(error : any) {
     case 415:
       p.textContent = "Error : Unsupported media type"
       break
+    case 429:
+      p.textContent = "Error : The server is busy with other images, please try again in a moment"
+      break
     case 500:
       p.textContent = "Error : Something went wrong server side, please contact the administrator"
       break
@@ -40,26 +43,30 @@ export async function getImageList() {
 
 
 // Perform a request to the server with the parameter specified and returns the result as a blob
-export async function getImage(id : number, stringParams : string[][] | undefined, chainAlgo : boolean) {
-  if (chainAlgo) {
-    let formData = new FormData()
-    formData.append('file', img.getModifiedImageRef().value)
-    if (stringParams !== undefined)
-      for (const param of stringParams)
-        formData.append(param[0], param[1])
-    return await axios.post("/images", formData, { headers: { 'Content-Type': 'multipart/form-data' }, responseType: "blob"})
-      .then(function (response) {
-        return response.data
-      })
-      .catch(handleError)
-  } else {
-    const urlParam = new URLSearchParams(stringParams)
-    return await axios.get('/images/' + id, {responseType : "blob", params : urlParam})
-      .then(function (response) {
-        return response.data
-      })
-      .catch(handleError)
-  }
+export async function getImage(id : number, stringParams : string[][] | undefined) {
+  const urlParam = new URLSearchParams(stringParams)
+  return await axios.get('/images/' + id, {responseType : "blob", params : urlParam})
+    .then(function (response) {
+      return response.data
+    })
+    .catch(handleError)
+}
+
+// Perform a request applying every step, in order, to the image with the id "id" and returns the result as a blob
+// With preview, one of the rendition sizes, the steps are applied to a reduced copy of the image
+export async function getPipelineImage(id : number, steps : string[][][], preview? : string) {
+  const body = steps.map(function (stringParams) {
+    const step : { [name : string] : string } = {}
+    for (const param of stringParams)
+      step[param[0]] = param[1]
+    return step
+  })
+  const params = preview === undefined ? undefined : {preview : preview}
+  return await axios.post('/images/' + id + '/pipeline', body, {responseType : "blob", params : params})
+    .then(function (response) {
+      return response.data
+    })
+    .catch(handleError)
 }
 
 // Sends a request to the backend server to delete the image with the id "id"
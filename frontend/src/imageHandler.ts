@@ -12,14 +12,19 @@ images.value = {}
 
 const modifiedImage = ref()
 let imageHistory : Blob[]
+// Algorithms applied to the chosen image to get each image of the history
+let stepHistory : string[][][][]
 let historyCursor = -1
 
-// Refresh imageList and images
+// Size of the renditions shown in the gallery, one of the sizes generated by the server
+const thumbnailSize = '128'
+
+// Refresh imageList and images, the gallery only loads the thumbnails
 export function refreshImageList() {
     http.getImageList().then( function(newImageList) {
         imageList.value = newImageList
         for (const image of newImageList) {
-            http.getImage(image.id, undefined, false).then( function(imageValue) {
+            http.getImage(image.id, [['size', thumbnailSize]]).then( function(imageValue) {
                 images.value[image.id] = imageValue
             })
         }
@@ -37,18 +42,54 @@ export function deleteImage(id : number, imageEl : HTMLElement | null) {
 }
 
 // Send a request to the server with the specified parameters and put the result in the show element
+// When chainAlgo is set, the algorithm is applied after the ones that led to the current image, in a single request
 export function showAlgo(imageEl : HTMLElement | null, param : string[][], chainAlgo : boolean) {
   http.removeErrorMessage()
-  http.getImage(chosenImage.value.id, param, chainAlgo)
+  const steps = chainAlgo ? stepHistory[historyCursor].concat([param]) : [param]
+  http.getPipelineImage(chosenImage.value.id, steps)
     .then(function (imageValue) {
       if (imageValue === null) return
       modifiedImage.value = imageValue
-      saveImageInHistory(modifiedImage.value)
+      saveImageInHistory(modifiedImage.value, steps)
       showImage(imageEl)
     }
   )
 }
 
+// Size of the reduced copy the previews are computed on
+const previewSize = '512'
+// Preview requested while another one was running, only the latest is sent
+let pendingPreview : string[][] | undefined
+let previewRunning = false
+
+// Show the result of the algorithm on a reduced copy of the chosen image, without adding it to the history
+// Used while a parameter is being changed, the full image is only computed by showAlgo
+export function showPreview(imageEl : HTMLElement | null, param : string[][], chainAlgo : boolean) {
+  if (chosenImage.value === undefined) return
+  if (previewRunning) {
+    pendingPreview = param
+    return
+  }
+  previewRunning = true
+  const steps = chainAlgo ? stepHistory[historyCursor].concat([param]) : [param]
+  http.getPipelineImage(chosenImage.value.id, steps, previewSize)
+    .then(function (imageValue) {
+      if (imageValue !== null) {
+        const reader = new window.FileReader()
+        reader.readAsDataURL(imageValue)
+        reader.onload = function() {
+          imageEl?.setAttribute("src", (reader.result as string))
+        }
+      }
+      previewRunning = false
+      if (pendingPreview !== undefined) {
+        const next = pendingPreview
+        pendingPreview = undefined
+        showPreview(imageEl, next, chainAlgo)
+      }
+    })
+}
+
 // Return the ref containing the current image size
 export function getImageSizeRef() {
   return imageSize
@@ -64,11 +105,14 @@ export function getModifiedImageRef() {
   return modifiedImage
 }
 
-// Set chosenImage
+// Set chosenImage, the full image is loaded before the returned promise resolves
 export function setChosenImage(image : any) {
-  chosenImage.value = image
-  modifiedImage.value = images.value[image.id]
-  initialiseHistory()
+  return http.getImage(image.id, undefined).then(function (imageValue) {
+    if (imageValue === null || imageValue === undefined) return
+    chosenImage.value = image
+    modifiedImage.value = imageValue
+    initialiseHistory()
+  })
 }
 
 //Get image size
@@ -84,7 +128,7 @@ export function getImageSize(imageData : Blob, imageSize : Ref) {
 // Returns the ref of imageList
 export function getImageListRef() { return imageList }
 
-// Set the image with the id "id" in the gallery (the image is taken from the images.value array)
+// Set the thumbnail of the image with the id "id" in the gallery (the image is taken from the images.value array)
 export function setImageInGallery(id : number | string) {
   if (images.value[id] == null) return
   const reader = new window.FileReader()
@@ -121,17 +165,20 @@ export function getImageHistorySize(){
 // Empty and initialize the history
 export function initialiseHistory() {
   imageHistory = []
-  saveImageInHistory(modifiedImage.value)
-  historyCursor = 0
+  stepHistory = []
+  historyCursor = -1
+  saveImageInHistory(modifiedImage.value, [])
 
 }
 
 // Add the current image in the history and increase the cursor
-export function saveImageInHistory(image : Blob) {
+export function saveImageInHistory(image : Blob, steps : string[][][]) {
   while (historyCursor < imageHistory.length-1) {
     imageHistory.pop()
+    stepHistory.pop()
   }
   imageHistory.push(image)
+  stepHistory.push(steps)
   historyCursor++
 }
 